@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.SignatureVerificationKey;
+import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.AuthenticationFilterHelper;
+import com.kloudtek.kryptotek.rest.RESTRequestSigner;
+import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import com.kloudtek.kryptotek.rest.ReplayAttackValidatorNoOpImpl;
+import com.kloudtek.util.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side cost of authenticating a request (reading the content, looking up the principal and verifying the
+ * signature) and of signing its response, using an in-memory principal backend. The helper is shared by all threads,
+ * as it would be in a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AuthenticationBenchmark {
+    @Param({"0", "1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    @Param({"HMAC", "RSA"})
+    public String keyType;
+    private InMemoryFilterHelper helper;
+    private byte[] content;
+    private String nonce;
+    private String timestamp;
+    private String signature;
+    private byte[] responseDataToSign;
+
+    @Setup
+    public void setup() throws Exception {
+        CryptoEngine cryptoEngine = BenchmarkSupport.createCryptoEngine();
+        BenchmarkSupport.Keys keys = BenchmarkSupport.createKeys(cryptoEngine, keyType);
+        content = BenchmarkSupport.createPayload(payloadSize);
+        long now = System.currentTimeMillis();
+        RESTRequestSigner requestSigner = new RESTRequestSigner("POST", BenchmarkSupport.URI, new BenchmarkSupport.FixedClock(now), 0,
+                BenchmarkSupport.IDENTITY, content);
+        nonce = requestSigner.getNonce();
+        timestamp = requestSigner.getTimestamp();
+        signature = StringUtils.base64Encode(cryptoEngine.sign(keys.signingKey, DigestAlgorithm.SHA256, requestSigner.getDataToSign()));
+        responseDataToSign = new RESTResponseSigner(nonce, signature, 200, content).getDataToSign();
+        helper = new InMemoryFilterHelper(cryptoEngine, keys);
+        helper.setClock(new BenchmarkSupport.FixedClock(now));
+    }
+
+    @Benchmark
+    public String authenticateRequest() throws Exception {
+        return helper.authenticateRequest(new ByteArrayInputStream(content), nonce, BenchmarkSupport.IDENTITY, timestamp, signature,
+                "POST", BenchmarkSupport.PATH, BenchmarkSupport.QUERY, Collections.<String, String>emptyMap());
+    }
+
+    @Benchmark
+    public String signResponse() throws Exception {
+        return helper.signResponse(BenchmarkSupport.IDENTITY, responseDataToSign);
+    }
+
+    /**
+     * Helper whose principals are identities, with a single identity held in memory. Requests are represented by
+     * their headers.
+     */
+    static class InMemoryFilterHelper extends AuthenticationFilterHelper<String, Map<String, String>> {
+        private final BenchmarkSupport.Keys keys;
+
+        InMemoryFilterHelper(CryptoEngine cryptoEngine, BenchmarkSupport.Keys keys) {
+            super(cryptoEngine, null, DigestAlgorithm.SHA256, DEFAULT_EXPIRY, new ReplayAttackValidatorNoOpImpl());
+            this.keys = keys;
+        }
+
+        @Override
+        protected void replaceDataStream(Map<String, String> requestObj, InputStream inputStream) {
+        }
+
+        @Override
+        protected String getHeader(Map<String, String> requestObj, String name) {
+            return requestObj.get(name);
+        }
+
+        @Override
+        protected String findUserPrincipal(String identity) {
+            return BenchmarkSupport.IDENTITY.equals(identity) ? identity : null;
+        }
+
+        @Override
+        protected SignatureVerificationKey findVerificationKey(String principal) {
+            return keys.verificationKey;
+        }
+
+        @Override
+        protected SigningKey findSigningKey(String principal) {
+            return keys.signingKey;
+        }
+    }
+}
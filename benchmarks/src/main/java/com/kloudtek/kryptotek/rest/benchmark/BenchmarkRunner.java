@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.TreeSet;
+
+/**
+ * Runs the benchmarks with 1, 4 and one thread per core, with the GC profiler so allocation rates are reported
+ * ({@code gc.alloc.rate.norm} is the number of bytes allocated per operation). Results are also written to
+ * {@code jmh-<threads>t.json}.
+ * <p>
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar [benchmark regexp]}. To pass other JMH options, use
+ * {@code java -cp benchmarks/target/benchmarks.jar org.openjdk.jmh.Main -prof gc ...} instead.
+ * </p>
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        TreeSet<Integer> threadCounts = new TreeSet<Integer>();
+        threadCounts.add(1);
+        threadCounts.add(4);
+        threadCounts.add(Runtime.getRuntime().availableProcessors());
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .forks(1)
+                    .warmupIterations(5)
+                    .measurementIterations(5)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-" + threads + "t.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
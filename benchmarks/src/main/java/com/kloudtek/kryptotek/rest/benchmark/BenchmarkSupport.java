@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.HMACKey;
+import com.kloudtek.kryptotek.key.RSAKeyPair;
+import com.kloudtek.kryptotek.key.SignatureVerificationKey;
+import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.CachingCryptoEngine;
+import com.kloudtek.kryptotek.rest.Clock;
+
+import java.util.Random;
+
+/**
+ * Keys, payloads and clock shared by the benchmarks
+ */
+final class BenchmarkSupport {
+    static final String IDENTITY = "benchmark";
+    static final String PATH = "/api/resource";
+    static final String QUERY = "id=1234&expand=true";
+    static final String URI = PATH + "?" + QUERY;
+    static final int RSA_KEY_SIZE = 2048;
+
+    private BenchmarkSupport() {
+    }
+
+    static CryptoEngine createCryptoEngine() {
+        return new CachingCryptoEngine(CryptoUtils.getEngine());
+    }
+
+    static byte[] createPayload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    /**
+     * Create the keys of an identity
+     *
+     * @param cryptoEngine Crypto engine
+     * @param keyType      HMAC or RSA
+     * @return signing and verification keys (the same key for HMAC)
+     */
+    static Keys createKeys(CryptoEngine cryptoEngine, String keyType) {
+        if (keyType.equals("HMAC")) {
+            HMACKey key = cryptoEngine.generateHMACKey(DigestAlgorithm.SHA256);
+            return new Keys(key, key);
+        } else if (keyType.equals("RSA")) {
+            RSAKeyPair keyPair = cryptoEngine.generateRSAKeyPair(RSA_KEY_SIZE);
+            return new Keys(keyPair.getPrivateKey(), keyPair.getPublicKey());
+        } else {
+            throw new IllegalArgumentException("Unsupported key type: " + keyType);
+        }
+    }
+
+    static class Keys {
+        final SigningKey signingKey;
+        final SignatureVerificationKey verificationKey;
+
+        Keys(SigningKey signingKey, SignatureVerificationKey verificationKey) {
+            this.signingKey = signingKey;
+            this.verificationKey = verificationKey;
+        }
+    }
+
+    /**
+     * Clock frozen at the time requests were signed, so they never expire however long the benchmark runs
+     */
+    static class FixedClock implements Clock {
+        private final long time;
+
+        FixedClock(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.HCInterceptor;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.RestAuthCredential;
+import com.kloudtek.util.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpCoreContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.kloudtek.kryptotek.rest.RESTRequestSigner.HEADER_NONCE;
+import static com.kloudtek.kryptotek.rest.RESTRequestSigner.HEADER_SIGNATURE;
+
+/**
+ * Client side cost of signing a request and of verifying its response with {@link HCInterceptor}, without any I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HCInterceptorBenchmark {
+    private static final String REQUEST_SIGNATURE = "c2lnbmF0dXJl";
+    @Param({"0", "1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    @Param({"HMAC", "RSA"})
+    public String keyType;
+    private HCInterceptor interceptor;
+    private BasicCredentialsProvider credentialsProvider;
+    private HttpClientContext responseContext;
+    private byte[] payload;
+    private String responseSignature;
+
+    @Setup
+    public void setup() throws Exception {
+        CryptoEngine cryptoEngine = BenchmarkSupport.createCryptoEngine();
+        BenchmarkSupport.Keys keys = BenchmarkSupport.createKeys(cryptoEngine, keyType);
+        payload = BenchmarkSupport.createPayload(payloadSize);
+        interceptor = new HCInterceptor(cryptoEngine, null);
+        credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(AuthScope.ANY, new RestAuthCredential(BenchmarkSupport.IDENTITY, keys.signingKey,
+                keys.verificationKey, DigestAlgorithm.SHA256));
+        responseContext = createContext();
+        String nonce = "0f5a3bd4-52c8-4bb4-9d8c-07c1b5c3b6a1";
+        responseContext.setAttribute(HEADER_NONCE, nonce);
+        responseContext.setAttribute(HCInterceptor.REQUEST_AUTHZ, REQUEST_SIGNATURE);
+        byte[] dataToSign = new RESTResponseSigner(nonce, REQUEST_SIGNATURE, 200, payload).getDataToSign();
+        responseSignature = StringUtils.base64Encode(cryptoEngine.sign(keys.signingKey, DigestAlgorithm.SHA256, dataToSign));
+    }
+
+    @Benchmark
+    public BasicHttpEntityEnclosingRequest signRequest() throws Exception {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", BenchmarkSupport.URI);
+        request.setEntity(new ByteArrayEntity(payload));
+        interceptor.process(request, createContext());
+        return request;
+    }
+
+    @Benchmark
+    public BasicHttpResponse verifyResponse() throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(payload));
+        response.addHeader(HEADER_SIGNATURE, responseSignature);
+        interceptor.process(response, responseContext);
+        return response;
+    }
+
+    private HttpClientContext createContext() {
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credentialsProvider);
+        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, new HttpHost("localhost", 8080));
+        return context;
+    }
+}
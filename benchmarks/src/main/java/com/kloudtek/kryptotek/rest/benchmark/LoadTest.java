@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.HCInterceptor;
+import org.HdrHistogram.Histogram;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test: starts an embedded server on the loopback interface (see {@link LoadTestServer}), and sends
+ * requests to it at a fixed rate, first to an unsigned baseline endpoint and then to the signed endpoint, so that the
+ * cost of authentication can be isolated from the cost of HTTP itself.
+ * <p>
+ * Latencies are measured from the time each request was scheduled to be sent rather than from when it was actually
+ * sent, so that stalls aren't hidden by the client backing off (coordinated omission). Service times (measured from
+ * the actual send) are reported alongside for comparison.
+ * </p>
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar com.kloudtek.kryptotek.rest.benchmark.LoadTest [options]}
+ * </p>
+ * <ul>
+ * <li>{@code --server jaxrs|servlet}: authentication filter to test (default jaxrs)</li>
+ * <li>{@code --rate n}: total requests per second (default 1000)</li>
+ * <li>{@code --threads n}: client threads (default 8)</li>
+ * <li>{@code --duration s}: measurement duration in seconds (default 30)</li>
+ * <li>{@code --warmup s}: warmup duration in seconds (default 10)</li>
+ * <li>{@code --identities n}: number of identities requests are spread across (default 100)</li>
+ * <li>{@code --payload size:weight,...}: payload size mix (default 1024:90,65536:10)</li>
+ * <li>{@code --key HMAC|RSA}: key type of the identities (default HMAC)</li>
+ * </ul>
+ */
+public class LoadTest {
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+    private final String server;
+    private final int rate;
+    private final int threads;
+    private final int duration;
+    private final int warmup;
+    private final int identityCount;
+    private final String keyType;
+    private final int[] payloadSizes;
+    private final int[] payloadWeights;
+
+    LoadTest(String[] args) {
+        String server = "jaxrs";
+        int rate = 1000;
+        int threads = 8;
+        int duration = 30;
+        int warmup = 10;
+        int identityCount = 100;
+        String keyType = "HMAC";
+        String payload = "1024:90,65536:10";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            if (option.equals("--server")) {
+                server = value;
+            } else if (option.equals("--rate")) {
+                rate = Integer.parseInt(value);
+            } else if (option.equals("--threads")) {
+                threads = Integer.parseInt(value);
+            } else if (option.equals("--duration")) {
+                duration = Integer.parseInt(value);
+            } else if (option.equals("--warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (option.equals("--identities")) {
+                identityCount = Integer.parseInt(value);
+            } else if (option.equals("--payload")) {
+                payload = value;
+            } else if (option.equals("--key")) {
+                keyType = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Missing value for option: " + args[args.length - 1]);
+        }
+        if (rate <= 0 || threads <= 0 || duration <= 0 || warmup < 0 || identityCount <= 0) {
+            throw new IllegalArgumentException("Invalid load test parameters");
+        }
+        this.server = server;
+        this.rate = rate;
+        this.threads = threads;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.identityCount = identityCount;
+        this.keyType = keyType;
+        String[] mix = payload.split(",");
+        payloadSizes = new int[mix.length];
+        payloadWeights = new int[mix.length];
+        for (int i = 0; i < mix.length; i++) {
+            String[] entry = mix[i].split(":");
+            payloadSizes[i] = Integer.parseInt(entry[0].trim());
+            payloadWeights[i] = (i > 0 ? payloadWeights[i - 1] : 0) + (entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+    }
+
+    void run() throws Exception {
+        CryptoEngine cryptoEngine = BenchmarkSupport.createCryptoEngine();
+        System.out.println("Generating " + identityCount + " " + keyType + " identities");
+        LoadTestIdentities identities = new LoadTestIdentities(cryptoEngine, identityCount, keyType);
+        LoadTestServer loadTestServer = new LoadTestServer(server, cryptoEngine, identities);
+        String url = loadTestServer.start();
+        CloseableHttpClient baselineClient = createClientBuilder(HttpClientBuilder.create()).build();
+        CloseableHttpClient signedClient = createClientBuilder(new HCInterceptor(cryptoEngine, null).createClientBuilder()).build();
+        try {
+            System.out.println("Load test of " + server + " filter at " + url + ": " + rate + " req/s, " + threads + " threads");
+            Result baseline = runPhase("baseline", baselineClient, url + LoadTestServer.BASELINE_PATH, null);
+            Result signed = runPhase("signed", signedClient, url + LoadTestServer.SIGNED_PATH, identities);
+            System.out.println();
+            baseline.print();
+            signed.print();
+            // service times, since at a sustainable rate queueing would only add noise to the difference
+            Histogram baselineLatency = baseline.serviceTime;
+            Histogram signedLatency = signed.serviceTime;
+            System.out.println(String.format("auth cost (service time)  p50 %+.1fus (x%.2f)   p99 %+.1fus (x%.2f)   mean %+.1fus (x%.2f)",
+                    (double) (signedLatency.getValueAtPercentile(50) - baselineLatency.getValueAtPercentile(50)),
+                    ratio(signedLatency.getValueAtPercentile(50), baselineLatency.getValueAtPercentile(50)),
+                    (double) (signedLatency.getValueAtPercentile(99) - baselineLatency.getValueAtPercentile(99)),
+                    ratio(signedLatency.getValueAtPercentile(99), baselineLatency.getValueAtPercentile(99)),
+                    signedLatency.getMean() - baselineLatency.getMean(),
+                    ratio(signedLatency.getMean(), baselineLatency.getMean())));
+        } finally {
+            baselineClient.close();
+            signedClient.close();
+            loadTestServer.stop();
+        }
+    }
+
+    private HttpClientBuilder createClientBuilder(HttpClientBuilder builder) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(threads);
+        connectionManager.setDefaultMaxPerRoute(threads);
+        return builder.setConnectionManager(connectionManager);
+    }
+
+    private Result runPhase(String name, HttpClient client, String url, LoadTestIdentities identities) throws InterruptedException {
+        if (warmup > 0) {
+            System.out.println("Warming up " + name + " for " + warmup + "s");
+            runWorkers(name, client, url, identities, warmup);
+        }
+        System.out.println("Measuring " + name + " for " + duration + "s");
+        return runWorkers(name, client, url, identities, duration);
+    }
+
+    private Result runWorkers(String name, HttpClient client, String url, LoadTestIdentities identities, int seconds) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads; i++) {
+            // staggered so the threads don't all send at the same instant
+            Worker worker = new Worker(client, url, identities, start + intervalNanos * i / threads, end, intervalNanos, i);
+            workers.add(worker);
+            worker.start();
+        }
+        Result result = new Result(name);
+        for (Worker worker : workers) {
+            worker.join();
+            result.add(worker);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static double ratio(double value, double baseline) {
+        return baseline > 0 ? value / baseline : Double.NaN;
+    }
+
+    private class Worker extends Thread {
+        private final HttpClient client;
+        private final String url;
+        private final LoadTestIdentities identities;
+        private final long start;
+        private final long end;
+        private final long interval;
+        private final Random random;
+        private final byte[][] payloads;
+        private final Histogram latency = new Histogram(HIGHEST_LATENCY, 3);
+        private final Histogram serviceTime = new Histogram(HIGHEST_LATENCY, 3);
+        private long count;
+        private long errors;
+
+        Worker(HttpClient client, String url, LoadTestIdentities identities, long start, long end, long interval, int index) {
+            super("loadtest-" + index);
+            this.client = client;
+            this.url = url;
+            this.identities = identities;
+            this.start = start;
+            this.end = end;
+            this.interval = interval;
+            random = new Random(index);
+            payloads = new byte[payloadSizes.length][];
+            for (int i = 0; i < payloadSizes.length; i++) {
+                payloads[i] = BenchmarkSupport.createPayload(payloadSizes[i]);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (long intended = start; intended < end; intended += interval) {
+                for (long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                long sent = System.nanoTime();
+                if (!send()) {
+                    errors++;
+                }
+                long done = System.nanoTime();
+                latency.recordValue(Math.min(HIGHEST_LATENCY, TimeUnit.NANOSECONDS.toMicros(done - intended)));
+                serviceTime.recordValue(Math.min(HIGHEST_LATENCY, TimeUnit.NANOSECONDS.toMicros(done - sent)));
+                count++;
+            }
+        }
+
+        private boolean send() {
+            HttpPost post = new HttpPost(url);
+            post.setEntity(new ByteArrayEntity(selectPayload(), ContentType.APPLICATION_OCTET_STREAM));
+            HttpClientContext context = HttpClientContext.create();
+            if (identities != null) {
+                context.setCredentialsProvider(identities.getCredentialsProvider(random.nextInt(identities.size())));
+            }
+            try {
+                HttpResponse response = client.execute(post, context);
+                try {
+                    return response.getStatusLine().getStatusCode() == 200;
+                } finally {
+                    EntityUtils.consume(response.getEntity());
+                }
+            } catch (Exception e) {
+                // includes responses whose signature failed to verify
+                return false;
+            }
+        }
+
+        private byte[] selectPayload() {
+            int value = random.nextInt(payloadWeights[payloadWeights.length - 1]);
+            for (int i = 0; i < payloadWeights.length; i++) {
+                if (value < payloadWeights[i]) {
+                    return payloads[i];
+                }
+            }
+            return payloads[payloads.length - 1];
+        }
+    }
+
+    private static class Result {
+        private final String name;
+        private final Histogram latency = new Histogram(HIGHEST_LATENCY, 3);
+        private final Histogram serviceTime = new Histogram(HIGHEST_LATENCY, 3);
+        private long count;
+        private long errors;
+        private long elapsedNanos;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        void add(Worker worker) {
+            latency.add(worker.latency);
+            serviceTime.add(worker.serviceTime);
+            count += worker.count;
+            errors += worker.errors;
+        }
+
+        void print() {
+            double throughput = count / (elapsedNanos / 1e9);
+            System.out.println(String.format("%-8s %9.1f req/s  errors %d / %d", name, throughput, errors, count));
+            print("latency", latency);
+            print("service", serviceTime);
+        }
+
+        private void print(String label, Histogram histogram) {
+            System.out.println(String.format("  %-8s p50 %8dus  p99 %8dus  p99.9 %8dus  max %8dus", label,
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue()));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.SignatureVerificationKey;
+import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.RestAuthCredential;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identities used by the load test, shared by the embedded server and the client. Each identity uses the same key to
+ * sign requests and responses.
+ */
+class LoadTestIdentities {
+    private final String[] names;
+    private final CredentialsProvider[] credentialsProviders;
+    private final Map<String, BenchmarkSupport.Keys> keys = new HashMap<String, BenchmarkSupport.Keys>();
+
+    LoadTestIdentities(CryptoEngine cryptoEngine, int count, String keyType) {
+        names = new String[count];
+        credentialsProviders = new CredentialsProvider[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "user" + i;
+            BenchmarkSupport.Keys identityKeys = BenchmarkSupport.createKeys(cryptoEngine, keyType);
+            keys.put(names[i], identityKeys);
+            BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY, new RestAuthCredential(names[i], identityKeys.signingKey,
+                    identityKeys.verificationKey, DigestAlgorithm.SHA256));
+            credentialsProviders[i] = credentialsProvider;
+        }
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    CredentialsProvider getCredentialsProvider(int index) {
+        return credentialsProviders[index];
+    }
+
+    boolean exists(String identity) {
+        return keys.containsKey(identity);
+    }
+
+    SignatureVerificationKey getVerificationKey(String identity) {
+        BenchmarkSupport.Keys identityKeys = keys.get(identity);
+        return identityKeys != null ? identityKeys.verificationKey : null;
+    }
+
+    SigningKey getSigningKey(String identity) {
+        BenchmarkSupport.Keys identityKeys = keys.get(identity);
+        return identityKeys != null ? identityKeys.signingKey : null;
+    }
+}
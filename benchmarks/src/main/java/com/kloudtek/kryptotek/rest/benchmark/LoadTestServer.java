@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.key.SignatureVerificationKey;
+import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.ReplayAttackValidatorInMemoryImpl;
+import com.kloudtek.kryptotek.rest.RestAsyncAuthenticationFilter;
+import com.kloudtek.kryptotek.rest.server.jaxrs.RESTAuthenticationFilter;
+import com.kloudtek.util.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Embedded Jetty server for the load test, listening on the loopback interface. Signed requests go to
+ * {@code /api/echo} and unsigned ones to {@code /baseline/echo}, both of which echo the request body through the same
+ * stack, except for the authentication filter.
+ */
+class LoadTestServer {
+    static final String SIGNED_PATH = "/api/echo";
+    static final String BASELINE_PATH = "/baseline/echo";
+    // RESTEasy instantiates applications by class name, so they pick up the filter from here
+    private static volatile RESTAuthenticationFilter jaxrsFilter;
+    private final Server server;
+
+    /**
+     * Constructor
+     *
+     * @param type         Filter to use: {@code jaxrs} for {@link RESTAuthenticationFilter} or {@code servlet} for
+     *                     {@link RestAsyncAuthenticationFilter}
+     * @param cryptoEngine Crypto engine
+     * @param identities   Identities
+     */
+    LoadTestServer(String type, CryptoEngine cryptoEngine, LoadTestIdentities identities) {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        if (type.equals("jaxrs")) {
+            jaxrsFilter = new LoadTestJaxrsFilter(cryptoEngine, identities);
+            context.addServlet(createDispatcher(SignedApplication.class, "/api"), "/api/*");
+            context.addServlet(createDispatcher(BaselineApplication.class, "/baseline"), "/baseline/*");
+        } else if (type.equals("servlet")) {
+            FilterHolder filter = new FilterHolder(new LoadTestAsyncFilter(cryptoEngine, identities));
+            filter.setAsyncSupported(true);
+            context.addFilter(filter, "/api/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+            ServletHolder servlet = new ServletHolder(new EchoServlet());
+            servlet.setAsyncSupported(true);
+            context.addServlet(servlet, "/api/*");
+            context.addServlet(new ServletHolder(new EchoServlet()), "/baseline/*");
+        } else {
+            throw new IllegalArgumentException("Unsupported server type: " + type);
+        }
+        server.setHandler(context);
+    }
+
+    String start() throws Exception {
+        server.start();
+        return "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    private static ServletHolder createDispatcher(Class<? extends Application> application, String prefix) {
+        ServletHolder holder = new ServletHolder(new HttpServletDispatcher());
+        holder.setInitParameter("javax.ws.rs.Application", application.getName());
+        holder.setInitParameter("resteasy.servlet.mapping.prefix", prefix);
+        return holder;
+    }
+
+    @Path("/echo")
+    public static class EchoResource {
+        @POST
+        @Consumes("*/*")
+        @Produces("application/octet-stream")
+        public byte[] echo(byte[] body) {
+            return body;
+        }
+    }
+
+    public static class SignedApplication extends Application {
+        @Override
+        public Set<Class<?>> getClasses() {
+            return Collections.<Class<?>>singleton(EchoResource.class);
+        }
+
+        @Override
+        public Set<Object> getSingletons() {
+            Set<Object> singletons = new HashSet<Object>();
+            singletons.add(jaxrsFilter);
+            return singletons;
+        }
+    }
+
+    public static class BaselineApplication extends Application {
+        @Override
+        public Set<Class<?>> getClasses() {
+            return Collections.<Class<?>>singleton(EchoResource.class);
+        }
+    }
+
+    static class EchoServlet extends HttpServlet {
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            byte[] data = IOUtils.toByteArray(req.getInputStream());
+            resp.setContentType("application/octet-stream");
+            resp.setContentLength(data.length);
+            resp.getOutputStream().write(data);
+        }
+    }
+
+    static class LoadTestJaxrsFilter extends RESTAuthenticationFilter {
+        private final LoadTestIdentities identities;
+
+        LoadTestJaxrsFilter(CryptoEngine cryptoEngine, LoadTestIdentities identities) {
+            super(cryptoEngine, new ReplayAttackValidatorInMemoryImpl());
+            this.identities = identities;
+        }
+
+        @Override
+        protected Principal findUserPrincipal(String identity) {
+            return identities.exists(identity) ? new LoadTestPrincipal(identity) : null;
+        }
+
+        @Override
+        protected SignatureVerificationKey findVerificationKey(Principal principal) {
+            return identities.getVerificationKey(principal.getName());
+        }
+
+        @Override
+        protected SigningKey findSigningKey(Principal principal) {
+            return identities.getSigningKey(principal.getName());
+        }
+    }
+
+    static class LoadTestAsyncFilter extends RestAsyncAuthenticationFilter {
+        private final LoadTestIdentities identities;
+
+        LoadTestAsyncFilter(CryptoEngine cryptoEngine, LoadTestIdentities identities) {
+            super(cryptoEngine, new ReplayAttackValidatorInMemoryImpl());
+            this.identities = identities;
+        }
+
+        @Override
+        protected Principal findUserPrincipal(String identity) {
+            return identities.exists(identity) ? new LoadTestPrincipal(identity) : null;
+        }
+
+        @Override
+        protected SignatureVerificationKey findVerificationKey(Principal principal) {
+            return identities.getVerificationKey(principal.getName());
+        }
+
+        @Override
+        protected SigningKey findSigningKey(Principal principal) {
+            return identities.getSigningKey(principal.getName());
+        }
+    }
+
+    static class LoadTestPrincipal implements Principal {
+        private final String name;
+
+        LoadTestPrincipal(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
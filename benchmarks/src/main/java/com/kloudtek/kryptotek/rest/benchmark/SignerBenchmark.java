@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.benchmark;
+
+import com.kloudtek.kryptotek.rest.RESTRequestSigner;
+import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the data to sign for requests and responses (no cryptography involved, so it doesn't depend on the
+ * key type).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SignerBenchmark {
+    @Param({"0", "1024", "65536", "1048576", "10485760"})
+    public int payloadSize;
+    private RESTRequestSigner requestSigner;
+    private RESTResponseSigner responseSigner;
+
+    @Setup
+    public void setup() {
+        byte[] payload = BenchmarkSupport.createPayload(payloadSize);
+        requestSigner = new RESTRequestSigner("POST", BenchmarkSupport.URI, 0, BenchmarkSupport.IDENTITY, payload);
+        responseSigner = new RESTResponseSigner(requestSigner.getNonce(), "c2lnbmF0dXJl", 200, payload);
+    }
+
+    @Benchmark
+    public byte[] requestDataToSign() throws IOException {
+        return requestSigner.getDataToSign();
+    }
+
+    @Benchmark
+    public byte[] responseDataToSign() throws IOException {
+        return responseSigner.getDataToSign();
+    }
+}
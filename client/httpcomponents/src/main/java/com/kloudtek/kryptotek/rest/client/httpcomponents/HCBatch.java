@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client.httpcomponents;
+
+import com.kloudtek.kryptotek.rest.BatchEnvelope;
+import com.kloudtek.kryptotek.rest.BatchRequestPart;
+import com.kloudtek.kryptotek.rest.BatchResponsePart;
+import com.kloudtek.util.io.IOUtils;
+import org.apache.http.*;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups several requests into a single batch (see {@link BatchEnvelope}), which is sent as one POST request. When
+ * executed through a client using {@link HCInterceptor}, the batch is signed and its response verified like any other
+ * request, so all sub-requests only cost a single signature.
+ * <p>
+ * Example:
+ * </p>
+ * <pre>
+ * HCBatch batch = new HCBatch();
+ * batch.add(new HttpGet("/api/users/1"));
+ * batch.add(new HttpGet("/api/users/2"));
+ * List&lt;HttpResponse&gt; responses = HCBatch.parseResponse(httpClient.execute(batch.createRequest(url + "/batch")));
+ * </pre>
+ */
+public class HCBatch {
+    private final List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+
+    /**
+     * Add a request to the batch. Only the path and query of the request URI are used.
+     *
+     * @param request Request
+     * @return this batch
+     * @throws IOException If an error occurred while reading the request content
+     */
+    public HCBatch add(HttpRequest request) throws IOException {
+        URI uri = URI.create(request.getRequestLine().getUri());
+        StringBuilder path = new StringBuilder(uri.getRawPath() != null ? uri.getRawPath() : "/");
+        if (uri.getRawQuery() != null) {
+            path.append('?').append(uri.getRawQuery());
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (Header header : request.getAllHeaders()) {
+            String existing = headers.get(header.getName());
+            headers.put(header.getName(), existing != null ? existing + ", " + header.getValue() : header.getValue());
+        }
+        byte[] content = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                content = IOUtils.toByteArray(entity.getContent());
+                if (entity.getContentType() != null) {
+                    headers.put(HTTP.CONTENT_TYPE, entity.getContentType().getValue());
+                }
+            }
+        }
+        parts.add(new BatchRequestPart(request.getRequestLine().getMethod(), path.toString(), headers, content));
+        return this;
+    }
+
+    public int size() {
+        return parts.size();
+    }
+
+    /**
+     * Create the batch request
+     *
+     * @param url URL of the batch endpoint
+     * @return request
+     */
+    public HttpPost createRequest(String url) {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new ByteArrayEntity(BatchEnvelope.encodeRequests(parts), ContentType.create(BatchEnvelope.CONTENT_TYPE)));
+        return post;
+    }
+
+    /**
+     * Extract the responses to each sub-request from a batch response
+     *
+     * @param response Response to the batch request
+     * @return responses in the same order as the sub-requests were added
+     * @throws IOException If the batch failed or the response is invalid
+     */
+    public static List<HttpResponse> parseResponse(HttpResponse response) throws IOException {
+        StatusLine statusLine = response.getStatusLine();
+        if (statusLine.getStatusCode() != 200 || response.getEntity() == null) {
+            throw new IOException("Batch failed: " + statusLine);
+        }
+        List<HttpResponse> responses = new ArrayList<HttpResponse>();
+        for (BatchResponsePart part : BatchEnvelope.decodeResponses(IOUtils.toByteArray(response.getEntity().getContent()))) {
+            BasicHttpResponse subResponse = new BasicHttpResponse(new BasicStatusLine(statusLine.getProtocolVersion(), part.getStatus(), null));
+            for (Map.Entry<String, String> header : part.getHeaders().entrySet()) {
+                subResponse.addHeader(header.getKey(), header.getValue());
+            }
+            ByteArrayEntity entity = new ByteArrayEntity(part.getContent());
+            String contentType = part.getHeader(HTTP.CONTENT_TYPE);
+            if (contentType != null) {
+                entity.setContentType(contentType);
+            }
+            subResponse.setEntity(entity);
+            responses.add(subResponse);
+        }
+        return responses;
+    }
+}
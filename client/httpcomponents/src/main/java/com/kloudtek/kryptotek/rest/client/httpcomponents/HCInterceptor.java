@@ -6,28 +6,47 @@ package com.kloudtek.kryptotek.rest.client.httpcomponents;
 
 import com.kloudtek.kryptotek.CryptoEngine;
 import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.Digest;
+import com.kloudtek.kryptotek.DigestOutputStream;
 import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.DHKeyPair;
+import com.kloudtek.kryptotek.key.HMACKey;
 import com.kloudtek.kryptotek.key.SignatureVerificationKey;
 import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.AuthMetrics;
+import com.kloudtek.kryptotek.rest.AuthStage;
+import com.kloudtek.kryptotek.rest.Clock;
+import com.kloudtek.kryptotek.rest.NoOpAuthMetrics;
 import com.kloudtek.kryptotek.rest.RESTRequestSigner;
 import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import com.kloudtek.kryptotek.rest.SessionHandshake;
+import com.kloudtek.kryptotek.rest.SystemClock;
+import com.kloudtek.kryptotek.rest.TimestampCodec;
 import com.kloudtek.util.StringUtils;
+import com.kloudtek.util.TempFile;
 import com.kloudtek.util.io.BoundedOutputStream;
+import com.kloudtek.util.io.IOUtils;
 import org.apache.http.*;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.text.ParseException;
 import java.util.logging.Logger;
 
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
@@ -41,8 +60,20 @@ public class HCInterceptor implements HttpRequestInterceptor, HttpResponseInterc
     public static final String KRYPTOTEK_REST_SIGNTOKEN = "kryptotek.rest.signtoken";
     public static final String AUTHORIZATION = "AUTHORIZATION";
     public static final String REQUEST_AUTHZ = "request_authz";
+    public static final String SPOOL_FILE = "kryptotek.rest.spoolfile";
+    public static final String SESSION = "kryptotek.rest.session";
+    public static final String SESSION_HANDSHAKE = "kryptotek.rest.sessionhandshake";
+    public static final String REQUEST_TIME = "kryptotek.rest.requesttime";
+    public static final String ACCEPT_DIGESTED_RESPONSE = "kryptotek.rest.acceptdigestedresponse";
+    public static final long DEFAULT_SPOOL_THRESHOLD = 65536L;
     private CryptoEngine cryptoEngine;
     private Long responseSizeLimit;
+    private boolean streamingRequests;
+    private boolean declareSignatureAlgorithm;
+    private boolean trackTimeDifferential;
+    private long spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+    private Clock clock = SystemClock.INSTANCE;
+    private AuthMetrics metrics = NoOpAuthMetrics.INSTANCE;
 
     public HCInterceptor(Long responseSizeLimit) {
         this(CryptoUtils.getEngine(), responseSizeLimit);
@@ -60,63 +91,245 @@ public class HCInterceptor implements HttpRequestInterceptor, HttpResponseInterc
         if (credentials != null) {
             Long timeDifferential = credentials.getTimeDifferential();
             TimeSync timeSync = credentials.getTimeSync();
-            if (timeSync != null && timeDifferential == null) {
+            if (timeSync instanceof TimeSyncService) {
+                // kept up to date in the background, and only blocks until the first synchronisation has completed
+                timeDifferential = timeSync.getTimeDifferential(request, context);
+            } else if (timeSync != null && timeDifferential == null) {
                 // yes this is not synchronized, there's no harm in worse case scenario (worse can happen is syncing happening another time or two)
                 timeDifferential = timeSync.getTimeDifferential(request, context);
                 credentials.setTimeDifferential(timeDifferential);
             }
             RequestLine requestLine = request.getRequestLine();
-            RESTRequestSigner requestSigner = new RESTRequestSigner(requestLine.getMethod(), requestLine.getUri(),
-                    timeDifferential != null ? timeDifferential : 0, credentials.getIdentity());
+            RESTRequestSigner requestSigner = new RESTRequestSigner(requestLine.getMethod(), requestLine.getUri(), clock,
+                    timeDifferential != null ? timeDifferential : 0, credentials.getIdentity(), null);
             request.addHeader(HEADER_NONCE, requestSigner.getNonce());
             context.setAttribute(HEADER_NONCE, requestSigner.getNonce());
             request.addHeader(HEADER_TIMESTAMP, requestSigner.getTimestamp());
             request.addHeader(HEADER_IDENTITY, credentials.getIdentity());
-            // TODO sign content-length and type
-            byte[] content = getContent(request);
-            if (content != null) {
-                requestSigner.setContent(content);
+            if (declareSignatureAlgorithm && credentials.getDigestAlgorithm() != null) {
+                request.addHeader(HEADER_SIGNATURE_ALG, credentials.getDigestAlgorithm().name());
+            }
+            RestSession session = getSession(credentials, context);
+            if (session != null) {
+                request.addHeader(HEADER_SESSION, session.getId());
+                context.setAttribute(SESSION, session);
             }
+            // TODO sign content-length and type
+            boolean signed = false;
             try {
-                String signature = sign(requestSigner.getDataToSign(), credentials.getClientKey(), credentials.getDigestAlgorithm());
-                context.setAttribute(REQUEST_AUTHZ, signature);
-                request.addHeader(HEADER_SIGNATURE, signature);
-            } catch (Exception e) {
-                throw new HttpException(e.getMessage(), e);
+                byte[] content;
+                if (streamingRequests) {
+                    // digested responses are always verified as they are read, so the server may stream them
+                    request.addHeader(HEADER_ACCEPT_DIGESTBODY, "true");
+                    context.setAttribute(ACCEPT_DIGESTED_RESPONSE, Boolean.TRUE);
+                    content = getContentDigest(request, context, credentials);
+                    if (content != null) {
+                        request.addHeader(HEADER_DIGESTBODY, "true");
+                        requestSigner.setDigestedContent(true);
+                    }
+                } else {
+                    content = getContent(request);
+                }
+                if (content != null) {
+                    requestSigner.setContent(content);
+                }
+                try {
+                    long start = metrics.start();
+                    String signature = sign(requestSigner.getDataToSign(), session != null ? session.getKey() : credentials.getClientKey(),
+                            credentials.getDigestAlgorithm());
+                    metrics.stop(AuthStage.REQUEST_SIGNING, start);
+                    context.setAttribute(REQUEST_AUTHZ, signature);
+                    request.addHeader(HEADER_SIGNATURE, signature);
+                    if (trackTimeDifferential) {
+                        context.setAttribute(REQUEST_TIME, clock.currentTimeMillis());
+                    }
+                } catch (Exception e) {
+                    throw new HttpException(e.getMessage(), e);
+                }
+                signed = true;
+            } finally {
+                if (!signed) {
+                    deleteSpoolFile(context);
+                }
             }
         }
     }
 
     @Override
-    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+    public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+        final long received = trackTimeDifferential ? clock.currentTimeMillis() : 0;
+        deleteSpoolFile(context);
+        final RestSession session = (RestSession) context.getAttribute(SESSION);
+        if (response.getStatusLine().getStatusCode() == 401 && session != null) {
+            // session has expired on the server (or the server was restarted)
+            RestAuthCredential credentials = getCredentials(context);
+            if (credentials != null && credentials.getSession() == session) {
+                credentials.setSession(null);
+            }
+        }
         if (response.getStatusLine().getStatusCode() != 401) {
             Header[] signatures = response.getHeaders(HEADER_SIGNATURE);
             if (signatures == null || signatures.length != 1) {
                 throw new HttpException("response is missing (or has more than one) " + HEADER_SIGNATURE + " header");
             }
-            RestAuthCredential credentials = getCredentials(context);
+            final RestAuthCredential credentials = getCredentials(context);
             if (credentials != null) {
-                RESTResponseSigner responseSigner = new RESTResponseSigner((String) context.getAttribute(HEADER_NONCE),
+                final SignatureVerificationKey serverKey = session != null ? session.getKey() : credentials.getServerKey();
+                final RESTResponseSigner responseSigner = new RESTResponseSigner((String) context.getAttribute(HEADER_NONCE),
                         (String) context.getAttribute(REQUEST_AUTHZ), response.getStatusLine().getStatusCode());
-                Header[] excludeBodyHeaders = response.getHeaders(HEADER_EXCLUDEBODY);
-                responseSigner.setExcludeContent(excludeBodyHeaders.length > 0 && Boolean.parseBoolean(excludeBodyHeaders[0].getValue()));
-                HttpEntity entity = loadEntity(response, responseSizeLimit);
-                byte[] content = getContent(entity);
-                if (content != null) {
-                    responseSigner.setContent(content);
+                final String signature = signatures[0].getValue();
+                responseSigner.setExcludeContent(isHeaderTrue(response, HEADER_EXCLUDEBODY));
+                if (!responseSigner.isExcludeContent()) {
+                    if (isHeaderTrue(response, HEADER_DIGESTBODY)) {
+                        if (!Boolean.TRUE.equals(context.getAttribute(ACCEPT_DIGESTED_RESPONSE))) {
+                            throw new HttpException("Received digested response to a request that didn't accept one");
+                        }
+                        responseSigner.setDigestedContent(true);
+                        Digest digest = cryptoEngine.digest(getContentDigestAlgorithm(credentials));
+                        if (response.getEntity() != null) {
+                            // content will be verified as it is read by the application
+                            response.setEntity(new SignatureVerifyingEntity(response.getEntity(), digest, responseSizeLimit) {
+                                @Override
+                                protected boolean verify(byte[] contentDigest) throws IOException {
+                                    responseSigner.setContent(contentDigest);
+                                    try {
+                                        if (verifyResponseSignature(signature, responseSigner, serverKey, credentials)) {
+                                            updateTimeDifferential(response, context, credentials, received);
+                                            return true;
+                                        }
+                                        return false;
+                                    } catch (InvalidKeyException e) {
+                                        throw new IOException(e.getMessage(), e);
+                                    }
+                                }
+                            });
+                            return;
+                        }
+                        responseSigner.setContent(digest.digest());
+                    } else {
+                        HttpEntity entity = loadEntity(response, responseSizeLimit);
+                        byte[] content = getContent(entity);
+                        if (content != null) {
+                            responseSigner.setContent(content);
+                        }
+                    }
                 }
                 try {
-                    verifySignature(signatures[0].getValue(), responseSigner.getDataToSign(), credentials.getServerKey(),
-                            credentials.getDigestAlgorithm());
+                    if (!verifyResponseSignature(signature, responseSigner, serverKey, credentials)) {
+                        throw new HttpException("Invalid response signature");
+                    }
+                    updateTimeDifferential(response, context, credentials, received);
                 } catch (InvalidKeyException e) {
                     throw new HttpException(e.getMessage(), e);
-                } catch (SignatureException e) {
-                    throw new HttpException("Invalid response signature");
                 }
             }
         }
     }
 
+    private boolean verifyResponseSignature(String signature, RESTResponseSigner responseSigner, SignatureVerificationKey serverKey,
+                                            RestAuthCredential credentials) throws IOException, InvalidKeyException {
+        long start = metrics.start();
+        try {
+            verifySignature(signature, responseSigner.getDataToSign(), serverKey, credentials.getDigestAlgorithm());
+            metrics.stop(AuthStage.RESPONSE_VERIFICATION, start);
+            return true;
+        } catch (SignatureException e) {
+            metrics.failure(AuthStage.RESPONSE_VERIFICATION);
+            return false;
+        }
+    }
+
+    /**
+     * Update the credentials time differential from the timestamp of a verified response. Credentials using a
+     * {@link TimeSyncService} are skipped: requests use the service's differential, and the credentials' own one is
+     * never set, so the estimator would take its reference from an unsigned response timestamp.
+     */
+    private void updateTimeDifferential(HttpResponse response, HttpContext context, RestAuthCredential credentials, long received) {
+        Long sent = (Long) context.getAttribute(REQUEST_TIME);
+        Header timestamp = response.getFirstHeader(HEADER_TIMESTAMP);
+        if (!trackTimeDifferential || sent == null || timestamp == null || credentials.getTimeSync() instanceof TimeSyncService) {
+            return;
+        }
+        try {
+            TimeDifferentialEstimator estimator = credentials.getTimeDifferentialEstimator();
+            Long timeDifferential = estimator.update(sent, received, TimestampCodec.parse(timestamp.getValue()), credentials.getTimeDifferential());
+            if (timeDifferential != null) {
+                credentials.setTimeDifferential(timeDifferential);
+            }
+            if (estimator.isResyncRequired() && credentials.getTimeSync() != null) {
+                // response timestamps aren't signed, so large adjustments come from time synchronisation instead
+                logger.warning("Response timestamps differ too much from the synchronised time, synchronising again");
+                estimator.restart();
+                credentials.setTimeDifferential(null);
+            }
+        } catch (ParseException e) {
+            logger.fine("Invalid response timestamp: " + timestamp.getValue());
+        }
+    }
+
+    /**
+     * Open a session (see {@link SessionHandshake}), so that subsequent requests to the same server are signed with a
+     * symmetric session key rather than the client key. The session is stored in the {@link RestAuthCredential} used
+     * for the request, and is dropped once it expires or is rejected by the server, at which point requests are
+     * signed with the client key again until a new session is opened.
+     *
+     * @param httpClient Client (must be using this interceptor)
+     * @param sessionUrl URL of the server's session endpoint
+     * @return session
+     * @throws IOException If the handshake failed
+     */
+    public RestSession openSession(HttpClient httpClient, String sessionUrl) throws IOException {
+        DHKeyPair keyPair = SessionHandshake.generateKeyPair(cryptoEngine);
+        HttpPost post = new HttpPost(sessionUrl);
+        post.setEntity(new ByteArrayEntity(SessionHandshake.encodePublicKey(keyPair), ContentType.create(SessionHandshake.CONTENT_TYPE)));
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(SESSION_HANDSHAKE, Boolean.TRUE);
+        long start = clock.currentTimeMillis();
+        HttpResponse response = httpClient.execute(post, context);
+        try {
+            if (response.getStatusLine().getStatusCode() != 200 || response.getEntity() == null) {
+                throw new IOException("Unable to open session: " + response.getStatusLine());
+            }
+            SessionHandshake.Response handshake = SessionHandshake.decodeResponse(EntityUtils.toByteArray(response.getEntity()));
+            RestAuthCredential credentials = getCredentials(context);
+            if (credentials == null) {
+                throw new IOException("No REST credentials found for " + sessionUrl);
+            }
+            HMACKey key = SessionHandshake.deriveKey(cryptoEngine, keyPair.getPrivateKey(), handshake.getPublicKey());
+            RestSession session = new RestSession(handshake.getSessionId(), key, start + handshake.getTtl());
+            credentials.setSession(session);
+            return session;
+        } catch (InvalidKeyException e) {
+            throw new IOException("Invalid session public key: " + e.getMessage(), e);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (response instanceof Closeable) {
+                IOUtils.close((Closeable) response);
+            }
+        }
+    }
+
+    private RestSession getSession(RestAuthCredential credentials, HttpContext context) {
+        RestSession session = credentials.getSession();
+        if (session == null || context.getAttribute(SESSION_HANDSHAKE) != null) {
+            return null;
+        }
+        if (session.isExpired(clock.currentTimeMillis())) {
+            credentials.setSession(null);
+            return null;
+        }
+        return session;
+    }
+
+    private static boolean isHeaderTrue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null && Boolean.parseBoolean(header.getValue());
+    }
+
+    private static DigestAlgorithm getContentDigestAlgorithm(RestAuthCredential credentials) {
+        return credentials.getDigestAlgorithm() != null ? credentials.getDigestAlgorithm() : DigestAlgorithm.SHA256;
+    }
+
     private RestAuthCredential getCredentials(HttpContext context) {
         HttpHost targetHost = ((HttpClientContext) context).getTargetHost();
         int port = targetHost.getPort();
@@ -159,6 +372,95 @@ public class HCInterceptor implements HttpRequestInterceptor, HttpResponseInterc
         return createClientBuilder().setDefaultCredentialsProvider(credentialsProvider).build();
     }
 
+    public boolean isStreamingRequests() {
+        return streamingRequests;
+    }
+
+    /**
+     * If set to true, request signatures will cover the digest of the content (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * rather than the content itself, which avoids having to load request entities in memory. Repeatable entities are
+     * digested in place, while non-repeatable entities are digested as they are spooled to a temporary file (or to memory
+     * when smaller than {@link #getSpoolThreshold()}), since the signature header has to be sent before the content.
+     * Temporary files are deleted once the response is received, or by {@link #deleteSpoolFile(HttpContext)} when the
+     * request fails.
+     * The credentials digest algorithm must match the one used by the server for content digests (SHA256 by default).
+     * All requests (including those without content) also declare that digested responses are accepted (see
+     * {@link RESTRequestSigner#HEADER_ACCEPT_DIGESTBODY}), so that the server can stream large responses.
+     *
+     * @param streamingRequests true to sign request content digests
+     */
+    public void setStreamingRequests(boolean streamingRequests) {
+        this.streamingRequests = streamingRequests;
+    }
+
+    public boolean isDeclareSignatureAlgorithm() {
+        return declareSignatureAlgorithm;
+    }
+
+    /**
+     * If set to true, requests declare the digest algorithm of their credentials (see
+     * {@link RESTRequestSigner#HEADER_SIGNATURE_ALG}), so the server verifies and signs with it instead of its default
+     * algorithm. The server must allow the algorithm for the identity.
+     *
+     * @param declareSignatureAlgorithm true to declare the signature algorithm
+     */
+    public void setDeclareSignatureAlgorithm(boolean declareSignatureAlgorithm) {
+        this.declareSignatureAlgorithm = declareSignatureAlgorithm;
+    }
+
+    public boolean isTrackTimeDifferential() {
+        return trackTimeDifferential;
+    }
+
+    /**
+     * If set to true, the time differential of the credentials is updated from the timestamp of every verified
+     * response (see {@link TimeDifferentialEstimator}), so that clock skew corrects itself without dedicated time
+     * synchronisation requests, as long as it stays within the server's expiry. The response timestamp isn't covered
+     * by the response signature, so only responses with a valid signature are used, outliers are ignored, and the
+     * differential is never moved more than {@link TimeDifferentialEstimator#DEFAULT_MAX_ADJUSTMENT} from the
+     * synchronised one. When responses try to move it further, the credentials' {@link TimeSync} (if any) is used again
+     * on the next request. Credentials using a {@link TimeSyncService} keep using the service's differential.
+     *
+     * @param trackTimeDifferential true to track the time differential from responses
+     */
+    public void setTrackTimeDifferential(boolean trackTimeDifferential) {
+        this.trackTimeDifferential = trackTimeDifferential;
+    }
+
+    public long getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    public void setSpoolThreshold(long spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the clock used for request timestamps
+     *
+     * @param clock clock
+     */
+    public void setClock(@NotNull Clock clock) {
+        this.clock = clock;
+    }
+
+    public AuthMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics that request signing and response verification are reported to
+     *
+     * @param metrics metrics, or null to disable them
+     */
+    public void setMetrics(AuthMetrics metrics) {
+        this.metrics = metrics != null ? metrics : NoOpAuthMetrics.INSTANCE;
+    }
+
     public Long getResponseSizeLimit() {
         return responseSizeLimit;
     }
@@ -167,6 +469,61 @@ public class HCInterceptor implements HttpRequestInterceptor, HttpResponseInterc
         this.responseSizeLimit = responseSizeLimit;
     }
 
+    private byte[] getContentDigest(HttpRequest request, HttpContext context, RestAuthCredential credentials) throws IOException {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                Digest digest = cryptoEngine.digest(getContentDigestAlgorithm(credentials));
+                if (entity.isRepeatable()) {
+                    entity.writeTo(new DigestSink(digest));
+                } else {
+                    ((HttpEntityEnclosingRequest) request).setEntity(spoolEntity(entity, digest, context));
+                }
+                return digest.digest();
+            }
+        }
+        return null;
+    }
+
+    private HttpEntity spoolEntity(HttpEntity entity, Digest digest, HttpContext context) throws IOException {
+        AbstractHttpEntity spooled;
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= spoolThreshold) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+            entity.writeTo(new DigestOutputStream(buffer, digest));
+            spooled = new ByteArrayEntity(buffer.toByteArray());
+        } else {
+            TempFile file = new TempFile("kryptotek-rest");
+            context.setAttribute(SPOOL_FILE, file);
+            OutputStream os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(file)), digest);
+            try {
+                entity.writeTo(os);
+                os.flush();
+            } finally {
+                IOUtils.close(os);
+            }
+            spooled = new FileEntity(file);
+        }
+        spooled.setContentType(entity.getContentType());
+        spooled.setContentEncoding(entity.getContentEncoding());
+        spooled.setChunked(entity.isChunked());
+        return spooled;
+    }
+
+    /**
+     * Delete the temporary file that a non-repeatable request entity was spooled to (see
+     * {@link #setStreamingRequests(boolean)}), if any. This is done when the response is received, so callers only need
+     * to call it when executing the request failed.
+     *
+     * @param context Context the request was executed with
+     */
+    public static void deleteSpoolFile(HttpContext context) {
+        TempFile file = (TempFile) context.removeAttribute(SPOOL_FILE);
+        if (file != null) {
+            IOUtils.close(file);
+        }
+    }
+
     private static byte[] getContent(HttpRequest request) throws IOException {
         return getContent(loadEntity(request));
     }
@@ -218,4 +575,25 @@ public class HCInterceptor implements HttpRequestInterceptor, HttpResponseInterc
             return new ByteArrayEntity(buffer.toByteArray());
         }
     }
+
+    /**
+     * Updates a digest with everything written to it, without retaining any data.
+     */
+    private static class DigestSink extends OutputStream {
+        private final Digest digest;
+
+        DigestSink(Digest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
 }
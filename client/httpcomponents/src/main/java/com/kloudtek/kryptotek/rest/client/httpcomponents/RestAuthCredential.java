@@ -21,7 +21,9 @@ public class RestAuthCredential implements Credentials {
     private SignatureVerificationKey serverKey;
     private DigestAlgorithm digestAlgorithm;
     private TimeSync timeSync;
-    private Long timeDifferential;
+    private volatile Long timeDifferential;
+    private final TimeDifferentialEstimator timeDifferentialEstimator = new TimeDifferentialEstimator();
+    private volatile RestSession session;
 
     public RestAuthCredential(String identity, SigningKey clientKey, SignatureVerificationKey serverKey, DigestAlgorithm digestAlgorithm, TimeSync timeSync) {
         this.identity = identity;
@@ -72,4 +74,27 @@ public class RestAuthCredential implements Credentials {
     public void setTimeDifferential(Long timeDifferential) {
         this.timeDifferential = timeDifferential;
     }
+
+    /**
+     * Get the estimator that tracks the time differential from response timestamps (see
+     * {@link HCInterceptor#setTrackTimeDifferential(boolean)})
+     *
+     * @return estimator
+     */
+    public TimeDifferentialEstimator getTimeDifferentialEstimator() {
+        return timeDifferentialEstimator;
+    }
+
+    public RestSession getSession() {
+        return session;
+    }
+
+    /**
+     * Set the session used to sign requests (see {@link HCInterceptor#openSession(org.apache.http.client.HttpClient, String)})
+     *
+     * @param session session, or null to sign requests with the client key
+     */
+    public void setSession(RestSession session) {
+        this.session = session;
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client.httpcomponents;
+
+import com.kloudtek.kryptotek.key.HMACKey;
+
+/**
+ * Session opened through {@link HCInterceptor#openSession(org.apache.http.client.HttpClient, String)}, whose key
+ * signs requests (and verifies responses) instead of the identity's keys until it expires.
+ */
+public class RestSession {
+    private final String id;
+    private final HMACKey key;
+    private final long expiresAt;
+
+    public RestSession(String id, HMACKey key, long expiresAt) {
+        this.id = id;
+        this.key = key;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public HMACKey getKey() {
+        return key;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client.httpcomponents;
+
+import com.kloudtek.kryptotek.Digest;
+import com.kloudtek.kryptotek.rest.DigestVerifyingInputStream;
+import com.kloudtek.kryptotek.rest.InvalidContentSignatureException;
+import com.kloudtek.util.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Response entity whose content is verified as it is read by the application. Once the end of the content has been
+ * reached (or the content stream is closed), {@link #verify(byte[])} is called with the digest of the content, and if
+ * that fails an {@link InvalidContentSignatureException} is thrown.
+ */
+public abstract class SignatureVerifyingEntity extends HttpEntityWrapper {
+    private final Digest digest;
+    private final Long maxSize;
+    private DigestVerifyingInputStream stream;
+
+    public SignatureVerifyingEntity(HttpEntity wrappedEntity, Digest digest, Long maxSize) {
+        super(wrappedEntity);
+        this.digest = digest;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return stream == null || !stream.isVerified();
+    }
+
+    @Override
+    public synchronized InputStream getContent() throws IOException {
+        if (stream == null) {
+            stream = new DigestVerifyingInputStream(wrappedEntity.getContent(), digest, maxSize) {
+                @Override
+                protected boolean verify(byte[] contentDigest) throws IOException {
+                    return SignatureVerifyingEntity.this.verify(contentDigest);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        // unread content still needs to be verified, this also allows the connection to be reused
+                        verifyFully();
+                    } finally {
+                        super.close();
+                    }
+                }
+            };
+        }
+        return stream;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        InputStream is = getContent();
+        try {
+            IOUtils.copy(is, outStream);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void consumeContent() throws IOException {
+        getContent().close();
+    }
+
+    /**
+     * Verify the digest of the content
+     *
+     * @param contentDigest Digest of the full content
+     * @return true if the content is valid
+     * @throws IOException If an error occurred while verifying the content
+     */
+    protected abstract boolean verify(byte[] contentDigest) throws IOException;
+}
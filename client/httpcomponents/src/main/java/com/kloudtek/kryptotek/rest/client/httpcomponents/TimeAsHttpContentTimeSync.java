@@ -4,9 +4,12 @@
 
 package com.kloudtek.kryptotek.rest.client.httpcomponents;
 
-import com.kloudtek.util.TimeUtils;
+import com.kloudtek.kryptotek.rest.Clock;
+import com.kloudtek.kryptotek.rest.SystemClock;
+import com.kloudtek.kryptotek.rest.TimestampCodec;
 import com.kloudtek.util.io.IOUtils;
 import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -21,23 +24,33 @@ import java.text.ParseException;
  */
 public class TimeAsHttpContentTimeSync implements TimeSync {
     private String url;
+    private Clock clock;
 
     public TimeAsHttpContentTimeSync(String url) {
+        this(url, SystemClock.INSTANCE);
+    }
+
+    public TimeAsHttpContentTimeSync(String url, Clock clock) {
         this.url = url;
+        this.clock = clock;
     }
 
     @Override
     public long getTimeDifferential(HttpRequest request, HttpContext context) throws IOException {
-        CloseableHttpClient httpClient = HttpClientBuilder.create().build();
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(TimeSyncService.DEFAULT_TIMEOUT)
+                .setSocketTimeout(TimeSyncService.DEFAULT_TIMEOUT).build();
+        CloseableHttpClient httpClient = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
         try {
+            long sent = clock.currentTimeMillis();
             CloseableHttpResponse response = httpClient.execute(new HttpGet(url));
             if (response.getStatusLine().getStatusCode() != 200) {
                 throw new IOException("Unable to sync time, server returned error code " + response.getStatusLine().getStatusCode() + " : " + response.getStatusLine().getReasonPhrase());
             }
-            long now = System.currentTimeMillis();
+            long now = clock.currentTimeMillis();
             String serverTimestamp = IOUtils.toString(response.getEntity().getContent());
             try {
-                return now - TimeUtils.parseISOUTCDateTime(serverTimestamp).getTime();
+                // the server time is read half way through the round trip on average, and is truncated to the second
+                return sent + (now - sent) / 2 - (TimestampCodec.parse(serverTimestamp) + 500);
             } catch (ParseException e) {
                 throw new IOException("Unable to sync time, invalid time returned by server: " + serverTimestamp);
             }
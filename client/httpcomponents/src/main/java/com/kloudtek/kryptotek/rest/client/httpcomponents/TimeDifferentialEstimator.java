@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client.httpcomponents;
+
+/**
+ * Estimates the time differential (local time minus server time) from the timestamps of server responses (see
+ * {@link HCInterceptor#setTrackTimeDifferential(boolean)}).
+ * <p>
+ * Each response gives a sample: the midpoint between sending the request and receiving the response, minus the
+ * server timestamp (which is truncated to the second, so half a second is added to it). Samples are smoothed with an
+ * exponentially weighted moving average, which also tracks their mean deviation. A sample that is further from the
+ * estimate than {@code outlierThreshold} or four times the deviation is ignored, unless {@link #MAX_OUTLIERS} samples
+ * in a row are, in which case one of the clocks has been adjusted and the estimate restarts from the latest sample.
+ * Samples with a round trip longer than {@code maxRoundTrip} are ignored, since their error is up to half of it.
+ * </p>
+ * <p>
+ * Response timestamps aren't signed, so the estimate is kept within {@code maxAdjustment} of a reference differential:
+ * the initial one (ie: from time synchronisation), or the first sample when there's none. Samples that would move it
+ * further (including restarts after repeated outliers) are not trusted, and {@link #isResyncRequired()} returns true
+ * so that the reference can be re-established by a time synchronisation (see {@link #restart()}).
+ * </p>
+ */
+public class TimeDifferentialEstimator {
+    public static final double DEFAULT_GAIN = 0.125;
+    public static final long DEFAULT_OUTLIER_THRESHOLD = 2000L;
+    public static final long DEFAULT_MAX_ROUND_TRIP = 10000L;
+    public static final long DEFAULT_MAX_ADJUSTMENT = 10000L;
+    public static final int MAX_OUTLIERS = 3;
+    private final double gain;
+    private final long outlierThreshold;
+    private final long maxRoundTrip;
+    private final long maxAdjustment;
+    private boolean initialized;
+    private double reference;
+    private double estimate;
+    private double deviation;
+    private int outliers;
+    private boolean resyncRequired;
+
+    public TimeDifferentialEstimator() {
+        this(DEFAULT_GAIN, DEFAULT_OUTLIER_THRESHOLD, DEFAULT_MAX_ROUND_TRIP, DEFAULT_MAX_ADJUSTMENT);
+    }
+
+    public TimeDifferentialEstimator(double gain, long outlierThreshold, long maxRoundTrip) {
+        this(gain, outlierThreshold, maxRoundTrip, DEFAULT_MAX_ADJUSTMENT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param gain             Weight of each new sample (between 0 and 1)
+     * @param outlierThreshold Minimum difference from the estimate for a sample to be considered an outlier, in milliseconds
+     * @param maxRoundTrip     Maximum round trip time of a sample, in milliseconds
+     * @param maxAdjustment    Maximum difference between the estimate and the reference differential, in milliseconds
+     */
+    public TimeDifferentialEstimator(double gain, long outlierThreshold, long maxRoundTrip, long maxAdjustment) {
+        if (gain <= 0 || gain > 1) {
+            throw new IllegalArgumentException("gain must be greater than 0 and at most 1");
+        }
+        this.gain = gain;
+        this.outlierThreshold = outlierThreshold;
+        this.maxRoundTrip = maxRoundTrip;
+        this.maxAdjustment = maxAdjustment;
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param sent            Local time at which the request was sent
+     * @param received        Local time at which the response was received
+     * @param serverTimestamp Response timestamp
+     * @param current         Current time differential (used as the initial estimate and reference), or null
+     * @return new estimate, or null if the sample was ignored
+     */
+    public synchronized Long update(long sent, long received, long serverTimestamp, Long current) {
+        long roundTrip = received - sent;
+        if (roundTrip < 0 || roundTrip > maxRoundTrip) {
+            return null;
+        }
+        double sample = sent + roundTrip / 2.0 - (serverTimestamp + 500);
+        if (!initialized && current != null) {
+            initialized = true;
+            reference = current;
+            estimate = current;
+            deviation = 500;
+        }
+        if (!initialized) {
+            reference = sample;
+            reset(sample, roundTrip);
+        } else {
+            double error = sample - estimate;
+            if (Math.abs(error) > Math.max(outlierThreshold, 4 * deviation)) {
+                if (++outliers < MAX_OUTLIERS) {
+                    return null;
+                }
+                if (Math.abs(sample - reference) > maxAdjustment) {
+                    // either the clocks have drifted too far apart, or the timestamps are being tampered with
+                    outliers = 0;
+                    resyncRequired = true;
+                    return null;
+                }
+                reset(sample, roundTrip);
+            } else {
+                outliers = 0;
+                estimate += gain * error;
+                deviation += gain * (Math.abs(error) - deviation);
+                if (Math.abs(estimate - reference) > maxAdjustment) {
+                    estimate = estimate > reference ? reference + maxAdjustment : reference - maxAdjustment;
+                    resyncRequired = true;
+                }
+            }
+        }
+        return Math.round(estimate);
+    }
+
+    private void reset(double sample, long roundTrip) {
+        initialized = true;
+        outliers = 0;
+        estimate = sample;
+        // truncation of the server timestamp and asymmetric network delays
+        deviation = 500 + roundTrip / 2.0;
+    }
+
+    /**
+     * Discard the estimate, so that the next sample's current differential becomes the new reference (ie: after a time
+     * synchronisation)
+     */
+    public synchronized void restart() {
+        initialized = false;
+        outliers = 0;
+        resyncRequired = false;
+    }
+
+    /**
+     * Check if samples have tried to move the estimate further than {@code maxAdjustment} from the reference
+     *
+     * @return true if the time differential should be synchronised again
+     */
+    public synchronized boolean isResyncRequired() {
+        return resyncRequired;
+    }
+
+    /**
+     * Get the current estimate
+     *
+     * @return time differential in milliseconds, or null if no sample has been added
+     */
+    public synchronized Long getEstimate() {
+        return initialized ? Math.round(estimate) : null;
+    }
+
+    /**
+     * Get the mean deviation of samples from the estimate
+     *
+     * @return deviation in milliseconds
+     */
+    public synchronized double getDeviation() {
+        return deviation;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client.httpcomponents;
+
+import com.kloudtek.kryptotek.rest.Clock;
+import com.kloudtek.kryptotek.rest.SystemClock;
+import com.kloudtek.kryptotek.rest.TimestampCodec;
+import com.kloudtek.util.io.IOUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the difference between the local and server clocks in the background, using a time endpoint that
+ * returns the server time as its content (like TimeServlet).
+ * <p>
+ * Each synchronisation takes several samples over a pooled (kept alive) connection, and estimates the offset from
+ * the midpoint of the request's round trip, keeping the sample with the shortest round trip since it has the
+ * smallest error (like NTP). Synchronisation runs when the service is started and then periodically on a daemon
+ * thread, so that drift is tracked in long-lived processes. The offset is published through a volatile field: once
+ * the first synchronisation has completed, requests never wait on time synchronisation. Requests sent before that
+ * wait for it (or run it, if the service hasn't been started). Connecting and reading are bounded by {@code timeout},
+ * so an unresponsive server can't hold those requests (or the synchronisation thread) forever.
+ * </p>
+ * <p>
+ * {@link HCInterceptor} reads the current offset on every request when a credential uses this service, instead of
+ * only on the first one.
+ * </p>
+ */
+public class TimeSyncService implements TimeSync, Closeable {
+    private static final Logger logger = Logger.getLogger(TimeSyncService.class.getName());
+    public static final long DEFAULT_REFRESH_INTERVAL = 600000L;
+    public static final int DEFAULT_SAMPLES = 4;
+    public static final int DEFAULT_TIMEOUT = 10000;
+    private final String url;
+    private final Clock clock;
+    private final long refreshInterval;
+    private final int samples;
+    private final CloseableHttpClient httpClient;
+    private final Object syncLock = new Object();
+    private volatile Long timeDifferential;
+    private volatile long lastRoundTrip = -1;
+    private ScheduledExecutorService executor;
+
+    public TimeSyncService(String url) {
+        this(url, SystemClock.INSTANCE, DEFAULT_REFRESH_INTERVAL, DEFAULT_SAMPLES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param url             URL of the time endpoint
+     * @param clock           Local clock
+     * @param refreshInterval Interval between synchronisations, in milliseconds
+     * @param samples         Number of samples taken on each synchronisation
+     */
+    public TimeSyncService(String url, Clock clock, long refreshInterval, int samples) {
+        this(url, clock, refreshInterval, samples, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param url             URL of the time endpoint
+     * @param clock           Local clock
+     * @param refreshInterval Interval between synchronisations, in milliseconds
+     * @param samples         Number of samples taken on each synchronisation
+     * @param timeout         Connect, read and connection pool timeout, in milliseconds
+     */
+    public TimeSyncService(String url, Clock clock, long refreshInterval, int samples, int timeout) {
+        if (refreshInterval <= 0 || samples <= 0 || timeout <= 0) {
+            throw new IllegalArgumentException("refreshInterval, samples and timeout must be greater than 0");
+        }
+        this.url = url;
+        this.clock = clock;
+        this.refreshInterval = refreshInterval;
+        this.samples = samples;
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(1);
+        connectionManager.setDefaultMaxPerRoute(1);
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout).build();
+        httpClient = HttpClientBuilder.create().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).build();
+    }
+
+    /**
+     * Start synchronising in the background (the first synchronisation starts immediately)
+     *
+     * @return this service
+     */
+    public synchronized TimeSyncService start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "rest-time-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Time synchronisation failed: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Time synchronisation failed: " + e.getMessage(), e);
+                    }
+                }
+            }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stop synchronising and release the connection
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        IOUtils.close(httpClient);
+    }
+
+    @Override
+    public long getTimeDifferential(HttpRequest request, HttpContext context) throws IOException {
+        Long timeDifferential = this.timeDifferential;
+        if (timeDifferential != null) {
+            return timeDifferential;
+        }
+        synchronized (syncLock) {
+            // another thread may have synchronised while we were waiting
+            timeDifferential = this.timeDifferential;
+            return timeDifferential != null ? timeDifferential : sync();
+        }
+    }
+
+    /**
+     * Get the current time differential
+     *
+     * @return local time minus server time in milliseconds, or null if not synchronised yet
+     */
+    public Long getTimeDifferential() {
+        return timeDifferential;
+    }
+
+    /**
+     * Get the round trip time of the sample the current time differential was estimated from, which bounds its error
+     * (the differential is within half of it, plus half a second since server timestamps are truncated to the second,
+     * from the actual one)
+     *
+     * @return round trip time in milliseconds, or -1 if not synchronised yet
+     */
+    public long getLastRoundTrip() {
+        return lastRoundTrip;
+    }
+
+    /**
+     * Synchronise now
+     *
+     * @return time differential (local time minus server time) in milliseconds
+     * @throws IOException If no sample could be taken
+     */
+    public long sync() throws IOException {
+        synchronized (syncLock) {
+            long bestDifferential = 0;
+            long bestRoundTrip = Long.MAX_VALUE;
+            IOException error = null;
+            for (int i = 0; i < samples; i++) {
+                try {
+                    long sent = clock.currentTimeMillis();
+                    long serverTime = fetchServerTime();
+                    long received = clock.currentTimeMillis();
+                    long roundTrip = received - sent;
+                    if (roundTrip < bestRoundTrip) {
+                        bestRoundTrip = roundTrip;
+                        // the server time is read half way through the round trip on average, and is truncated to the second
+                        bestDifferential = sent + roundTrip / 2 - (serverTime + 500);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (bestRoundTrip == Long.MAX_VALUE) {
+                throw error;
+            }
+            timeDifferential = bestDifferential;
+            lastRoundTrip = bestRoundTrip;
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Time synchronised with " + url + ": differential " + bestDifferential + "ms, round trip " + bestRoundTrip + "ms");
+            }
+            return bestDifferential;
+        }
+    }
+
+    private long fetchServerTime() throws IOException {
+        CloseableHttpResponse response = httpClient.execute(new HttpGet(url));
+        try {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Unable to sync time, server returned error code " + response.getStatusLine().getStatusCode() + " : " + response.getStatusLine().getReasonPhrase());
+            }
+            // fully consumed so that the connection can be reused
+            String serverTimestamp = EntityUtils.toString(response.getEntity()).trim();
+            try {
+                return TimestampCodec.parse(serverTimestamp);
+            } catch (ParseException e) {
+                throw new IOException("Unable to sync time, invalid time returned by server: " + serverTimestamp);
+            }
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -5,24 +5,40 @@
 package com.kloudtek.kryptotek.rest.client;
 
 import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.CryptoUtils;
 import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.jce.JCECryptoEngine;
+import com.kloudtek.kryptotek.key.DHKeyPair;
 import com.kloudtek.kryptotek.key.HMACKey;
+import com.kloudtek.kryptotek.rest.CachingCryptoEngine;
+import com.kloudtek.kryptotek.rest.InvalidContentSignatureException;
 import com.kloudtek.kryptotek.rest.RESTRequestSigner;
 import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import com.kloudtek.kryptotek.rest.SessionHandshake;
+import com.kloudtek.kryptotek.rest.SystemClock;
+import com.kloudtek.kryptotek.rest.TimestampCodec;
 import com.kloudtek.kryptotek.rest.client.httpcomponents.HCInterceptor;
 import com.kloudtek.kryptotek.rest.client.httpcomponents.RestAuthCredential;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.RestSession;
 import com.kloudtek.kryptotek.rest.client.httpcomponents.TimeAsHttpContentTimeSync;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.TimeDifferentialEstimator;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.TimeSync;
+import com.kloudtek.kryptotek.rest.client.httpcomponents.TimeSyncService;
 import com.kloudtek.util.StringUtils;
+import com.kloudtek.util.TempFile;
 import com.kloudtek.util.TimeUtils;
+import com.kloudtek.util.io.IOUtils;
 import org.apache.http.HttpException;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -35,8 +51,11 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
 import java.util.Date;
 
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
@@ -54,11 +73,16 @@ public class HCInterceptorTest {
     private static final byte[] DATA_RESP = "fs7fyw3jkfh8sjwqafliu8rujlsajf".getBytes();
     public static final String TIME_PATH = "/time";
     public static final String TIME_PATH_FULL = "/test/time";
+    public static final String SESSION_PATH = "/session";
+    public static final String SESSION_PATH_FULL = "/test/session";
     private CloseableHttpClient httpClient;
     private Server server;
     private String url;
     private TestServlet testServlet;
     private TimeServlet timeServlet;
+    private SessionServlet sessionServlet;
+    private HCInterceptor interceptor;
+    private RestAuthCredential credentials;
 
     @BeforeMethod
     public void setup() throws Exception {
@@ -68,7 +92,9 @@ public class HCInterceptorTest {
         testServlet = new TestServlet();
         timeServlet = new TimeServlet();
         context.addServlet(new ServletHolder(testServlet), TEST_SERVLET_PATH);
+        sessionServlet = new SessionServlet();
         context.addServlet(new ServletHolder(timeServlet), TIME_PATH);
+        context.addServlet(new ServletHolder(sessionServlet), SESSION_PATH);
         server.setHandler(context);
         server.start();
         url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
@@ -99,6 +125,142 @@ public class HCInterceptorTest {
         assertEquals(200, response.getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void testHmacStreaming() throws Exception {
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertTrue(testServlet.digestBody);
+        assertTrue(testServlet.acceptDigestBody);
+    }
+
+    @Test
+    public void testHmacStreamingNonRepeatable() throws Exception {
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream(DATA)));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertTrue(testServlet.digestBody);
+    }
+
+    @Test
+    public void testSpoolFileDeletedOnFailure() throws Exception {
+        httpClient = createClient(null, true);
+        ServerSocket serverSocket = new ServerSocket(0);
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        HttpPost post = new HttpPost("http://localhost:" + port + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream(DATA)));
+        HttpClientContext context = HttpClientContext.create();
+        try {
+            httpClient.execute(post, context);
+            fail("Did not get expected connection failure");
+        } catch (IOException e) {
+            // expected
+        }
+        TempFile file = (TempFile) context.getAttribute(HCInterceptor.SPOOL_FILE);
+        assertNotNull(file);
+        assertTrue(file.exists());
+        HCInterceptor.deleteSpoolFile(context);
+        assertFalse(file.exists());
+        assertNull(context.getAttribute(HCInterceptor.SPOOL_FILE));
+    }
+
+    @Test
+    public void testSpoolFileDeletedOnSpoolingFailure() throws Exception {
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new InputStreamEntity(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken entity");
+            }
+        }));
+        HttpClientContext context = HttpClientContext.create();
+        try {
+            httpClient.execute(post, context);
+            fail("Did not get expected spooling failure");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(context.getAttribute(HCInterceptor.SPOOL_FILE));
+    }
+
+    @Test
+    public void testHmacStreamingResponse() throws Exception {
+        testServlet.digestResponse = true;
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(EntityUtils.toByteArray(response.getEntity()), DATA_RESP);
+    }
+
+    @Test
+    public void testDigestedResponseNotAccepted() throws Exception {
+        testServlet.digestResponse = true;
+        httpClient = createClient();
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        try {
+            httpClient.execute(post);
+            fail("Did not get expected error");
+        } catch (ClientProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDigestSentAsResponseBody() throws Exception {
+        testServlet.digestSentAsBody = true;
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        try {
+            httpClient.execute(post);
+            fail("Did not get expected error");
+        } catch (ClientProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHmacStreamingResponseInvalid() throws Exception {
+        testServlet.digestResponse = true;
+        testServlet.badReply = true;
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        try {
+            EntityUtils.toByteArray(response.getEntity());
+            fail("Did not get expected error");
+        } catch (InvalidContentSignatureException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHmacStreamingResponseInvalidClosed() throws Exception {
+        testServlet.digestResponse = true;
+        testServlet.badReply = true;
+        httpClient = createClient(null, true);
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        try {
+            response.getEntity().getContent().close();
+            fail("Did not get expected error");
+        } catch (InvalidContentSignatureException e) {
+            // expected
+        }
+    }
+
     @Test
     public void timeHmacTimeOutSync() throws Exception {
         testServlet.timeSlip = 100000L;
@@ -110,6 +272,106 @@ public class HCInterceptorTest {
         assertEquals(200, response.getStatusLine().getStatusCode());
     }
 
+    @Test
+    public void timeHmacTimeSyncService() throws Exception {
+        testServlet.timeSlip = 100000L;
+        timeServlet.timeSlip = 100000L;
+        TimeSyncService timeSync = new TimeSyncService(url + TIME_PATH_FULL).start();
+        try {
+            httpClient = createClient(timeSync);
+            HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+            post.setEntity(new ByteArrayEntity(DATA));
+            CloseableHttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue(Math.abs(timeSync.getTimeDifferential() + 100000L) <= 1000L + timeSync.getLastRoundTrip());
+            timeServlet.timeSlip = 200000L;
+            timeSync.sync();
+            assertTrue(Math.abs(timeSync.getTimeDifferential() + 200000L) <= 1000L + timeSync.getLastRoundTrip());
+        } finally {
+            timeSync.close();
+        }
+    }
+
+    @Test
+    public void testTrackTimeDifferentialSkippedWithTimeSyncService() throws Exception {
+        testServlet.timeSlip = 100000L;
+        timeServlet.timeSlip = 100000L;
+        TimeSyncService timeSync = new TimeSyncService(url + TIME_PATH_FULL).start();
+        try {
+            httpClient = createClient(timeSync);
+            interceptor.setTrackTimeDifferential(true);
+            for (int i = 0; i < 5; i++) {
+                HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+                post.setEntity(new ByteArrayEntity(DATA));
+                CloseableHttpResponse response = httpClient.execute(post);
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+                response.close();
+            }
+            // the service's differential is used, and unsigned response timestamps aren't tracked
+            assertNull(credentials.getTimeDifferential());
+            assertNotNull(timeSync.getTimeDifferential());
+        } finally {
+            timeSync.close();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void timeSyncServiceUnresponsiveServer() throws Exception {
+        // accepts connections (through the backlog) but never responds
+        ServerSocket serverSocket = new ServerSocket(0);
+        TimeSyncService timeSync = new TimeSyncService("http://localhost:" + serverSocket.getLocalPort() + TIME_PATH_FULL,
+                SystemClock.INSTANCE, TimeSyncService.DEFAULT_REFRESH_INTERVAL, 1, 200);
+        try {
+            timeSync.sync();
+            fail("Did not get expected timeout");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            timeSync.close();
+            serverSocket.close();
+        }
+        assertNull(timeSync.getTimeDifferential());
+    }
+
+    @Test
+    public void testTrackTimeDifferential() throws Exception {
+        httpClient = createClient();
+        interceptor.setTrackTimeDifferential(true);
+        // request timestamps are truncated to the second, so the skew must stay small for the test servlet to accept them
+        credentials.setTimeDifferential(800L);
+        for (int i = 0; i < 20; i++) {
+            HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+            post.setEntity(new ByteArrayEntity(DATA));
+            CloseableHttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+            response.close();
+        }
+        Long timeDifferential = credentials.getTimeDifferential();
+        assertNotNull(timeDifferential);
+        assertTrue(Math.abs(timeDifferential) <= 500L, "Time differential: " + timeDifferential);
+    }
+
+    @Test
+    public void testTrackTimeDifferentialForgedTimestamps() throws Exception {
+        httpClient = createTimeSyncedClient();
+        interceptor.setTrackTimeDifferential(true);
+        testServlet.responseTimestampSkew = 60000L;
+        for (int i = 0; i < TimeDifferentialEstimator.MAX_OUTLIERS + 1; i++) {
+            HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+            post.setEntity(new ByteArrayEntity(DATA));
+            CloseableHttpResponse response = httpClient.execute(post);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+            response.close();
+            Long timeDifferential = credentials.getTimeDifferential();
+            assertTrue(timeDifferential == null || Math.abs(timeDifferential) <= 1500L, "Time differential: " + timeDifferential);
+        }
+        // synchronised again once the forged timestamps were detected
+        assertFalse(credentials.getTimeDifferentialEstimator().isResyncRequired());
+    }
+
     @Test
     public void testHmacInvalidReply() throws Exception {
         testServlet.badReply = true;
@@ -127,12 +389,47 @@ public class HCInterceptorTest {
         fail("Did not get expected error");
     }
 
+    @Test
+    public void testDeclareSignatureAlgorithm() throws Exception {
+        httpClient = createClient();
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        httpClient.execute(post).close();
+        assertNull(testServlet.signatureAlgorithm);
+        interceptor.setDeclareSignatureAlgorithm(true);
+        post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(testServlet.signatureAlgorithm, "SHA256");
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        httpClient = createClient();
+        RestSession session = interceptor.openSession(httpClient, url + SESSION_PATH_FULL);
+        assertEquals(session.getId(), sessionServlet.sessionId);
+        assertEquals(session.getKey().getEncoded().getEncodedKey(), sessionServlet.sessionKey.getEncoded().getEncodedKey());
+        HttpPost post = new HttpPost(url + TEST_SERVLET_PATH_FULL);
+        post.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(testServlet.sessionId, session.getId());
+    }
+
     public class TestServlet extends HttpServlet {
         private static final long serialVersionUID = -2507734802640341400L;
         private Date timestamp;
         private long timeSlip = 0;
+        private long responseTimestampSkew = 0;
         private boolean badReply;
         private boolean responseBodyExcluded;
+        private boolean digestBody;
+        private boolean acceptDigestBody;
+        private boolean digestResponse;
+        private boolean digestSentAsBody;
+        private String sessionId;
+        private String signatureAlgorithm;
 
         @Override
         protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -153,15 +450,35 @@ public class HCInterceptorTest {
                     fail("Time difference too large: " + diff);
                 }
                 RESTRequestSigner requestSigner = new RESTRequestSigner("POST", TEST_SERVLET_PATH_FULL, nonce, timestampStr, "user");
-                requestSigner.setContent(DATA);
+                digestBody = Boolean.parseBoolean(req.getHeader(HEADER_DIGESTBODY));
+                acceptDigestBody = Boolean.parseBoolean(req.getHeader(HEADER_ACCEPT_DIGESTBODY));
+                assertEquals(IOUtils.toByteArray(req.getInputStream()), DATA);
+                requestSigner.setContent(digestBody ? CryptoUtils.digest(DATA, DigestAlgorithm.SHA256) : DATA);
+                requestSigner.setDigestedContent(digestBody);
                 String sig = req.getHeader(HEADER_SIGNATURE);
-                cryptoEngine.verifySignature(HMAC_KEY, requestSigner.getDataToSign(), StringUtils.base64Decode(sig));
-                RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, sig, 200, responseBodyExcluded, badReply ? "fdsafads".getBytes() : DATA_RESP);
-                resp.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(cryptoEngine.sign(HMAC_KEY, responseSigner.getDataToSign())));
+                sessionId = req.getHeader(HEADER_SESSION);
+                signatureAlgorithm = req.getHeader(HEADER_SIGNATURE_ALG);
+                HMACKey key = HMAC_KEY;
+                if (sessionId != null) {
+                    assertEquals(sessionId, sessionServlet.sessionId);
+                    key = sessionServlet.sessionKey;
+                }
+                cryptoEngine.verifySignature(key, requestSigner.getDataToSign(), StringUtils.base64Decode(sig));
+                byte[] signedResp = badReply ? "fdsafads".getBytes() : DATA_RESP;
+                if (digestResponse || digestSentAsBody) {
+                    signedResp = CryptoUtils.digest(signedResp, DigestAlgorithm.SHA256);
+                }
+                if (digestResponse) {
+                    resp.setHeader(HEADER_DIGESTBODY, "true");
+                }
+                RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, sig, 200, responseBodyExcluded, signedResp);
+                responseSigner.setDigestedContent(digestResponse || digestSentAsBody);
+                resp.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(cryptoEngine.sign(key, responseSigner.getDataToSign())));
+                resp.setHeader(HEADER_TIMESTAMP, TimestampCodec.format(System.currentTimeMillis() + timeSlip + responseTimestampSkew));
                 if( responseBodyExcluded ) {
                     resp.addHeader(HEADER_EXCLUDEBODY,"true");
                 }
-                resp.getOutputStream().write(DATA_RESP);
+                resp.getOutputStream().write(digestSentAsBody ? signedResp : DATA_RESP);
             } catch (Exception e) {
                 fail(e.getMessage(), e);
             }
@@ -191,10 +508,18 @@ public class HCInterceptorTest {
         return createClient(null);
     }
 
-    private CloseableHttpClient createClient(TimeAsHttpContentTimeSync timeSync) {
+    private CloseableHttpClient createClient(TimeSync timeSync) {
+        return createClient(timeSync, false);
+    }
+
+    private CloseableHttpClient createClient(TimeSync timeSync, boolean streamingRequests) {
         BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(AuthScope.ANY, new RestAuthCredential(IDENTITY, HMAC_KEY, HMAC_KEY, DigestAlgorithm.SHA256, timeSync));
-        return new HCInterceptor(cryptoEngine, null).createClient(credentialsProvider);
+        credentials = new RestAuthCredential(IDENTITY, HMAC_KEY, HMAC_KEY, DigestAlgorithm.SHA256, timeSync);
+        credentialsProvider.setCredentials(AuthScope.ANY, credentials);
+        interceptor = new HCInterceptor(new CachingCryptoEngine(cryptoEngine), null);
+        interceptor.setStreamingRequests(streamingRequests);
+        interceptor.setSpoolThreshold(0);
+        return interceptor.createClient(credentialsProvider);
     }
 
     public class TimeServlet extends HttpServlet {
@@ -208,4 +533,33 @@ public class HCInterceptorTest {
             resp.getWriter().write(timeStr);
         }
     }
-}
\ No newline at end of file
+
+    public class SessionServlet extends HttpServlet {
+        private String sessionId;
+        private HMACKey sessionKey;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            try {
+                String nonce = req.getHeader(HEADER_NONCE);
+                assertNull(req.getHeader(HEADER_SESSION));
+                assertEquals(req.getContentType(), SessionHandshake.CONTENT_TYPE);
+                byte[] clientPublicKey = IOUtils.toByteArray(req.getInputStream());
+                RESTRequestSigner requestSigner = new RESTRequestSigner("POST", SESSION_PATH_FULL, nonce, req.getHeader(HEADER_TIMESTAMP), IDENTITY);
+                requestSigner.setContent(clientPublicKey);
+                String sig = req.getHeader(HEADER_SIGNATURE);
+                cryptoEngine.verifySignature(HMAC_KEY, requestSigner.getDataToSign(), StringUtils.base64Decode(sig));
+                DHKeyPair keyPair = SessionHandshake.generateKeyPair(cryptoEngine);
+                sessionKey = SessionHandshake.deriveKey(cryptoEngine, keyPair.getPrivateKey(), clientPublicKey);
+                sessionId = "session1";
+                byte[] data = SessionHandshake.encodeResponse(sessionId, 60000L, SessionHandshake.encodePublicKey(keyPair));
+                RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, sig, 200, data);
+                resp.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(cryptoEngine.sign(HMAC_KEY, responseSigner.getDataToSign())));
+                resp.setContentType(SessionHandshake.CONTENT_TYPE);
+                resp.getOutputStream().write(data);
+            } catch (Exception e) {
+                fail(e.getMessage(), e);
+            }
+        }
+    }
+}
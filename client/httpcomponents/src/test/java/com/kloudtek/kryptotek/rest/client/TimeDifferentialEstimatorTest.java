@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.client;
+
+import com.kloudtek.kryptotek.rest.client.httpcomponents.TimeDifferentialEstimator;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class TimeDifferentialEstimatorTest {
+    @Test
+    public void testConvergence() {
+        TimeDifferentialEstimator estimator = new TimeDifferentialEstimator();
+        Random random = new Random(1);
+        long differential = 12345L;
+        long now = 1500000000000L;
+        for (int i = 0; i < 200; i++) {
+            now += 1000 + random.nextInt(1000);
+            long roundTrip = 10 + random.nextInt(40);
+            long serverTime = now + roundTrip / 2 - differential;
+            // servers send timestamps truncated to the second
+            assertNotNull(estimator.update(now, now + roundTrip, serverTime - serverTime % 1000, null));
+        }
+        assertTrue(Math.abs(estimator.getEstimate() - differential) <= 150L, "Estimate: " + estimator.getEstimate());
+    }
+
+    @Test
+    public void testOutliers() {
+        TimeDifferentialEstimator estimator = new TimeDifferentialEstimator();
+        assertEquals(estimator.update(10000, 10000, 5500 - 500, null), Long.valueOf(4500));
+        assertNull(estimator.update(20000, 20000, 1000, null));
+        assertEquals(estimator.getEstimate(), Long.valueOf(4500));
+        assertNull(estimator.update(20000, 30000 + TimeDifferentialEstimator.DEFAULT_MAX_ROUND_TRIP, 20000, null));
+        // clock has been adjusted
+        assertNull(estimator.update(30000, 30000, 29500, null));
+        assertEquals(estimator.update(40000, 40000, 39500, null), Long.valueOf(0));
+    }
+
+    @Test
+    public void testMaxAdjustment() {
+        TimeDifferentialEstimator estimator = new TimeDifferentialEstimator();
+        assertEquals(estimator.update(10000, 10000, 9500, 800L), Long.valueOf(700));
+        // forged timestamps can't move the estimate away from the synchronised differential
+        for (int i = 0; i < TimeDifferentialEstimator.MAX_OUTLIERS * 2; i++) {
+            assertNull(estimator.update(20000, 20000, 20000 - 60000, null));
+        }
+        assertEquals(estimator.getEstimate(), Long.valueOf(700));
+        assertTrue(estimator.isResyncRequired());
+        estimator.restart();
+        assertFalse(estimator.isResyncRequired());
+        assertEquals(estimator.update(30000, 30000, 29500 - 60000, 60000L), Long.valueOf(60000));
+    }
+
+    @Test
+    public void testInitialDifferential() {
+        TimeDifferentialEstimator estimator = new TimeDifferentialEstimator();
+        assertEquals(estimator.update(10000, 10000, 9500, 800L), Long.valueOf(700));
+    }
+}
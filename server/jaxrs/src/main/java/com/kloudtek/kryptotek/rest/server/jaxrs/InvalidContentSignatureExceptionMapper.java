@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.server.jaxrs;
+
+import com.kloudtek.kryptotek.rest.InvalidContentSignatureException;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+/**
+ * Maps the exception thrown when a resource reads a streamed request body that doesn't match its signature to a 401
+ * response (rather than a server error). It should be registered along with {@link RESTAuthenticationFilter}.
+ */
+@Provider
+public class InvalidContentSignatureExceptionMapper implements ExceptionMapper<InvalidContentSignatureException> {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(InvalidContentSignatureExceptionMapper.class);
+
+    @Override
+    public Response toResponse(InvalidContentSignatureException exception) {
+        logger.warn("Streamed request content is invalid: " + exception.getMessage());
+        return Response.status(UNAUTHORIZED).build();
+    }
+}
@@ -5,13 +5,14 @@
 package com.kloudtek.kryptotek.rest.server.jaxrs;
 
 import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.Digest;
 import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.key.SignatureVerificationKey;
 import com.kloudtek.kryptotek.key.SigningKey;
 import com.kloudtek.kryptotek.rest.*;
 import com.kloudtek.util.BackendAccessException;
 import com.kloudtek.util.InvalidBackendDataException;
-import com.kloudtek.util.TimeUtils;
+import com.kloudtek.util.io.IOUtils;
 import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.WebApplicationException;
@@ -19,15 +20,16 @@ import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.WriterInterceptor;
 import javax.ws.rs.ext.WriterInterceptorContext;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.Principal;
-import java.util.Date;
 import java.util.List;
 
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
@@ -40,6 +42,15 @@ import static javax.ws.rs.core.Response.Status.*;
 public abstract class RESTAuthenticationFilter extends AuthenticationFilterHelper<Principal, ContainerRequestContext> implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(RESTAuthenticationFilter.class);
     public static final String TMP_REQDETAILS = "X-TMP-REQDETAILS";
+    public static final String TMP_VERIFYINGSTREAM = "X-TMP-VERIFYINGSTREAM";
+    private static final int DIGEST_BUFFER_SIZE = 65536;
+    private static final ThreadLocal<ByteBuffer> digestBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+        }
+    };
+    private BatchDispatcher<ContainerRequestContext> batchDispatcher;
 
     public RESTAuthenticationFilter() {
     }
@@ -59,18 +70,42 @@ public abstract class RESTAuthenticationFilter extends AuthenticationFilterHelpe
     @Override
     public void filter(ContainerRequestContext requestContext) throws IOException {
         URI reqUri = requestContext.getUriInfo().getRequestUri();
+        long start = metrics.start();
         try {
-            Principal principal = authenticateRequest(requestContext.getEntityStream(), requestContext.getHeaderString(HEADER_NONCE),
+            // the entity stream is only accessed once the headers have been checked, so bad requests don't get a 100 Continue
+            AuthResult<Principal> result = checkHeaders(requestContext.getHeaderString(HEADER_NONCE),
                     requestContext.getHeaderString(HEADER_IDENTITY), requestContext.getHeaderString(HEADER_TIMESTAMP),
                     requestContext.getHeaderString(HEADER_SIGNATURE), requestContext.getMethod(), reqUri.getPath(),
                     reqUri.getRawQuery(), requestContext);
+            if (result.isSuccess()) {
+                result = checkBody(result.getPending(), requestContext.getEntityStream(), requestContext);
+            }
+            if (!result.isSuccess()) {
+                // already reported to the security logger, and not worth the cost of an exception
+                requestContext.abortWith(Response.status(UNAUTHORIZED).build());
+                return;
+            }
+            Principal principal = result.getPrincipal();
+            metrics.stop(AuthStage.AUTHENTICATION, start);
+            boolean batch = batchDispatcher != null && isBatchRequest(requestContext.getMethod(), reqUri.getPath());
+            boolean session = isSessionRequest(requestContext.getMethod(), reqUri.getPath());
+            byte[] content = batch || session ? readVerifiedContent(requestContext.getEntityStream()) : null;
             RESTSecurityContext sc = new RESTSecurityContext(principal, requestContext.getSecurityContext().isSecure());
             requestContext.setSecurityContext(sc);
-        } catch (AuthenticationFailedException e) {
-            logger.warn(e.getMessage(), e);
-            throw new WebApplicationException(e.getMessage(), e, UNAUTHORIZED);
+            if (batch) {
+                processBatch(requestContext, content);
+                return;
+            } else if (session) {
+                byte[] data = openSession(principal, requestContext.getHeaderString(HEADER_IDENTITY),
+                        requestContext.getHeaderString(HEADER_SESSION), content, requestContext);
+                requestContext.abortWith(Response.ok(data, SessionHandshake.CONTENT_TYPE).build());
+                return;
+            }
+            if (requestContext.getEntityStream() instanceof DigestVerifyingInputStream) {
+                requestContext.setProperty(TMP_VERIFYINGSTREAM, requestContext.getEntityStream());
+            }
         } catch (InvalidRequestException e) {
-            logger.warn(e.getMessage(), e);
+            logger.warn(e.getMessage());
             throw new WebApplicationException(e.getMessage(), e, UNAUTHORIZED);
         } catch (InvalidBackendDataException e) {
             logger.error(e.getMessage(), e);
@@ -78,49 +113,175 @@ public abstract class RESTAuthenticationFilter extends AuthenticationFilterHelpe
         }
     }
 
+    private byte[] readVerifiedContent(InputStream stream) {
+        try {
+            byte[] content = IOUtils.toByteArray(stream);
+            if (stream instanceof DigestVerifyingInputStream) {
+                ((DigestVerifyingInputStream) stream).verifyFully();
+            }
+            return content;
+        } catch (IOException e) {
+            logger.warn("Request content is invalid: " + e.getMessage(), e);
+            throw new WebApplicationException(e.getMessage(), e, UNAUTHORIZED);
+        }
+    }
+
+    /**
+     * Dispatch the sub-requests of a batch, and abort the request with a response containing their responses (which
+     * will be signed by this filter as usual).
+     */
+    private void processBatch(ContainerRequestContext requestContext, byte[] envelope) {
+        List<BatchRequestPart> parts;
+        try {
+            parts = BatchEnvelope.decodeRequests(envelope, batchProcessor.getMaxParts());
+        } catch (IOException e) {
+            logger.warn("Invalid batch: " + e.getMessage(), e);
+            requestContext.abortWith(Response.status(BAD_REQUEST).build());
+            return;
+        }
+        byte[] data = BatchEnvelope.encodeResponses(batchProcessor.process(requestContext, parts, batchDispatcher));
+        requestContext.abortWith(Response.ok(data, BatchEnvelope.CONTENT_TYPE).build());
+    }
+
+    public BatchDispatcher<ContainerRequestContext> getBatchDispatcher() {
+        return batchDispatcher;
+    }
+
+    /**
+     * Set the dispatcher for batch sub-requests. JAX-RS doesn't provide a portable way to re-dispatch a request, so
+     * batches are only enabled once both a dispatcher and a batch path (see {@link #setBatchPath(String)}) are set.
+     * Since this filter runs after resource matching, {@link RESTEndpointFilter} should also be registered unless a
+     * resource exists at the batch path.
+     *
+     * @param batchDispatcher dispatcher
+     */
+    public void setBatchDispatcher(BatchDispatcher<ContainerRequestContext> batchDispatcher) {
+        this.batchDispatcher = batchDispatcher;
+    }
+
     @Override
     protected void replaceDataStream(ContainerRequestContext requestContext, InputStream inputStream) {
         requestContext.setEntityStream(inputStream);
     }
 
+    @Override
+    protected String getHeader(ContainerRequestContext requestContext, String name) {
+        return requestContext.getHeaderString(name);
+    }
+
     @Override
     public void aroundWriteTo(WriterInterceptorContext responseCtx) throws IOException, WebApplicationException {
         RequestDetails requestDetails = (RequestDetails) responseCtx.getProperty(TMP_REQDETAILS);
         if (requestDetails.principal != null) {
-            ByteArrayOutputStream content = new ByteArrayOutputStream();
-            OutputStream oldStream = responseCtx.getOutputStream();
-            responseCtx.setOutputStream(content);
-            responseCtx.proceed();
-            byte[] contentData = content.toByteArray();
-            RESTResponseSigner responseSigner = new RESTResponseSigner(requestDetails.nonce, requestDetails.signature, requestDetails.statusCode, contentData);
+            Object entity = responseCtx.getEntity();
+            if (entity instanceof byte[]) {
+                // data already in memory, no need to copy it
+                addSignatureHeaders(responseCtx, requestDetails, (byte[]) entity, false);
+                responseCtx.proceed();
+            } else if (requestDetails.digestBody && (entity instanceof File || entity instanceof ByteBuffer)) {
+                // client accepts digested content, so we can sign and send the data without loading it in memory
+                addSignatureHeaders(responseCtx, requestDetails, digest(entity, requestDetails.signatureAlgorithm), true);
+                write(entity, responseCtx);
+            } else {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                OutputStream oldStream = responseCtx.getOutputStream();
+                responseCtx.setOutputStream(content);
+                responseCtx.proceed();
+                byte[] contentData = content.toByteArray();
+                addSignatureHeaders(responseCtx, requestDetails, contentData, false);
+                oldStream.write(contentData);
+            }
+        }
+    }
+
+    private void addSignatureHeaders(WriterInterceptorContext responseCtx, RequestDetails requestDetails, byte[] content, boolean digested) throws IOException {
+        RESTResponseSigner responseSigner = new RESTResponseSigner(requestDetails.nonce, requestDetails.signature, requestDetails.statusCode, content);
+        responseSigner.setDigestedContent(digested);
+        try {
+            List<Object> signatures = responseCtx.getHeaders().get(HEADER_SIGNATURE);
+            if (signatures != null && !signatures.isEmpty()) {
+                throw new IllegalStateException("Signature header already exists in response");
+            }
+            responseCtx.getHeaders().add(HEADER_TIMESTAMP, requestDetails.responseTimestamp);
+            if (digested) {
+                responseCtx.getHeaders().add(HEADER_DIGESTBODY, "true");
+            }
+            responseCtx.getHeaders().add(HEADER_SIGNATURE, signResponse(requestDetails.principal, requestDetails.sessionId, requestDetails.signatureAlgorithm, responseSigner.getDataToSign()));
+        } catch (InvalidBackendDataException e) {
+            logger.error("Invalid key for identity " + requestDetails.identity + " : " + e.getMessage(), e);
+            throw new WebApplicationException(INTERNAL_SERVER_ERROR);
+        } catch (BackendAccessException e) {
+            logger.error("Unexpected BackendAccessException" + e.getMessage(), e);
+            throw new WebApplicationException(INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private byte[] digest(Object entity, DigestAlgorithm signatureAlgorithm) throws IOException {
+        Digest digest = createContentDigest(signatureAlgorithm);
+        if (entity instanceof ByteBuffer) {
+            digest.update(((ByteBuffer) entity).duplicate());
+        } else {
+            FileChannel channel = new RandomAccessFile((File) entity, "r").getChannel();
             try {
-                List<Object> signatures = responseCtx.getHeaders().get(HEADER_SIGNATURE);
-                if (signatures != null && !signatures.isEmpty()) {
-                    throw new IllegalStateException("Signature header already exists in response");
+                ByteBuffer buffer = digestBuffer.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
                 }
-                responseCtx.getHeaders().add(HEADER_TIMESTAMP, requestDetails.responseTimestamp);
-                responseCtx.getHeaders().add(HEADER_SIGNATURE, signResponse(requestDetails.principal, responseSigner.getDataToSign()));
-            } catch (InvalidBackendDataException e) {
-                logger.error("Invalid key for identity " + requestDetails.identity + " : " + e.getMessage(), e);
-                throw new WebApplicationException(INTERNAL_SERVER_ERROR);
-            } catch (BackendAccessException e) {
-                logger.error("Unexpected BackendAccessException" + e.getMessage(), e);
-                throw new WebApplicationException(INTERNAL_SERVER_ERROR);
+            } finally {
+                channel.close();
+            }
+        }
+        return digest.digest();
+    }
+
+    private void write(Object entity, WriterInterceptorContext responseCtx) throws IOException {
+        WritableByteChannel out = Channels.newChannel(responseCtx.getOutputStream());
+        if (entity instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) entity).duplicate();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } else {
+            FileChannel channel = new RandomAccessFile((File) entity, "r").getChannel();
+            try {
+                long size = channel.size();
+                long pos = 0;
+                while (pos < size) {
+                    pos += channel.transferTo(pos, size - pos, out);
+                }
+            } finally {
+                channel.close();
             }
-            oldStream.write(contentData);
         }
     }
 
     @Override
     public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        DigestVerifyingInputStream verifyingStream = (DigestVerifyingInputStream) requestContext.getProperty(TMP_VERIFYINGSTREAM);
+        if (verifyingStream != null) {
+            try {
+                verifyingStream.verifyFully();
+            } catch (IOException e) {
+                logger.warn("Streamed request content is invalid: " + e.getMessage(), e);
+                responseContext.setStatus(UNAUTHORIZED.getStatusCode());
+                responseContext.setEntity(null);
+                return;
+            }
+        }
         RequestDetails requestDetails = new RequestDetails(requestContext.getHeaderString(HEADER_NONCE),
                 requestContext.getHeaderString(HEADER_SIGNATURE), requestContext.getHeaderString(HEADER_IDENTITY),
-                requestContext.getSecurityContext().getUserPrincipal(), responseContext.getStatus());
+                requestContext.getSecurityContext().getUserPrincipal(), responseContext.getStatus(),
+                Boolean.parseBoolean(requestContext.getHeaderString(HEADER_ACCEPT_DIGESTBODY)));
+        requestDetails.sessionId = requestContext.getHeaderString(HEADER_SESSION);
+        requestDetails.signatureAlgorithm = getSignatureAlgorithm(requestContext);
         if (responseContext.getEntity() == null && requestDetails.principal != null) {
             RESTResponseSigner responseSigner = new RESTResponseSigner(requestDetails.nonce, requestDetails.signature, requestDetails.statusCode, null);
             responseContext.getHeaders().add(HEADER_TIMESTAMP, requestDetails.responseTimestamp);
             try {
-                responseContext.getHeaders().add(HEADER_SIGNATURE, signResponse(requestDetails.principal, responseSigner.getDataToSign()));
+                responseContext.getHeaders().add(HEADER_SIGNATURE, signResponse(requestDetails.principal, requestDetails.sessionId, requestDetails.signatureAlgorithm, responseSigner.getDataToSign()));
             } catch (InvalidBackendDataException e) {
                 throw new WebApplicationException(INTERNAL_SERVER_ERROR);
             }
@@ -142,14 +303,22 @@ public abstract class RESTAuthenticationFilter extends AuthenticationFilterHelpe
         private String responseTimestamp;
         private Principal principal;
         private int statusCode;
+        private boolean digestBody;
+        private String sessionId;
+        private DigestAlgorithm signatureAlgorithm;
 
         public RequestDetails(String nonce, String signature, String identity, Principal principal, int statusCode) {
+            this(nonce, signature, identity, principal, statusCode, false);
+        }
+
+        public RequestDetails(String nonce, String signature, String identity, Principal principal, int statusCode, boolean digestBody) {
             this.nonce = nonce;
             this.signature = signature;
             this.identity = identity;
             this.principal = principal;
             this.statusCode = statusCode;
-            responseTimestamp = TimeUtils.formatISOUTCDateTime(new Date());
+            this.digestBody = digestBody;
+            responseTimestamp = createResponseTimestamp();
         }
     }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.server.jaxrs;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import java.io.IOException;
+
+/**
+ * Pre-matching filter that handles the batch (see {@link com.kloudtek.kryptotek.rest.BatchEnvelope}) and session (see
+ * {@link com.kloudtek.kryptotek.rest.SessionHandshake}) endpoints before JAX-RS looks for a resource matching their
+ * path. Other requests are left to the {@link RESTAuthenticationFilter}.
+ */
+@PreMatching
+public class RESTEndpointFilter implements ContainerRequestFilter {
+    private final RESTAuthenticationFilter authenticationFilter;
+
+    public RESTEndpointFilter(RESTAuthenticationFilter authenticationFilter) {
+        this.authenticationFilter = authenticationFilter;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        String method = requestContext.getMethod();
+        String path = requestContext.getUriInfo().getRequestUri().getPath();
+        if ((authenticationFilter.getBatchDispatcher() != null && authenticationFilter.isBatchRequest(method, path))
+                || authenticationFilter.isSessionRequest(method, path)) {
+            // aborts the request with the endpoint's response
+            authenticationFilter.filter(requestContext);
+        }
+    }
+}
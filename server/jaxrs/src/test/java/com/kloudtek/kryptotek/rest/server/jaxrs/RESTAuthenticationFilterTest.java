@@ -4,6 +4,9 @@
 
 package com.kloudtek.kryptotek.rest.server.jaxrs;
 
+import com.kloudtek.kryptotek.rest.AuthResult;
+import com.kloudtek.kryptotek.rest.AuthStage;
+import com.kloudtek.kryptotek.rest.AuthenticationFailedException;
 import com.kloudtek.kryptotek.rest.server.TestHelper;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
@@ -18,6 +21,9 @@ import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.util.logging.Logger;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 public class RESTAuthenticationFilterTest {
     private static final Logger logger = Logger.getLogger(RESTAuthenticationFilterTest.class.getName());
     private String url;
@@ -48,18 +54,86 @@ public class RESTAuthenticationFilterTest {
         testHelper.testValidHmac();
     }
 
+    @Test
+    public void testValidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testValidHmacStreaming();
+    }
+
+    @Test
+    public void testInvalidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testInvalidHmacStreaming();
+    }
+
+    @Test
+    public void testDigestSentAsBody() throws IOException, InvalidKeyException {
+        testHelper.testDigestSentAsBody();
+    }
+
+    @Test
+    public void testFileResponseStreaming() throws IOException, InvalidKeyException {
+        testHelper.testFileResponseStreaming();
+    }
+
     @Test
     public void testExpiredHmac() throws IOException, InvalidKeyException {
         testHelper.testExpiredHmac();
     }
 
+    @Test
+    public void testRejectedBeforeBody() throws IOException, InvalidKeyException {
+        testHelper.testRejectedBeforeBody();
+    }
+
     @Test
     public void testInvalidHmac() throws Exception {
         testHelper.testInvalidHmac();
     }
 
+    @Test
+    public void testRejectedNonceNotRecorded() throws Exception {
+        testHelper.testRejectedNonceNotRecorded();
+    }
+
     @Test
     public void testException() throws Exception {
         testHelper.testException(true);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBatch() throws Exception {
+        testHelper.testBatch();
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        testHelper.testSession();
+    }
+
+    @Test
+    public void testSignatureAlgorithm() throws Exception {
+        testHelper.testSignatureAlgorithm();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        long authentications = TestApp.METRICS.getHistogram(AuthStage.AUTHENTICATION).getCount();
+        long verifications = TestApp.METRICS.getHistogram(AuthStage.SIGNATURE_VERIFICATION).getCount();
+        long responses = TestApp.METRICS.getHistogram(AuthStage.RESPONSE_SIGNING).getCount();
+        long failures = TestApp.METRICS.getFailures(AuthenticationFailedException.Reason.INVALID_SIGNATURE);
+        testHelper.testValidHmac();
+        testHelper.testInvalidHmac();
+        assertEquals(TestApp.METRICS.getHistogram(AuthStage.AUTHENTICATION).getCount(), authentications + 1);
+        assertEquals(TestApp.METRICS.getHistogram(AuthStage.SIGNATURE_VERIFICATION).getCount(), verifications + 1);
+        assertEquals(TestApp.METRICS.getHistogram(AuthStage.RESPONSE_SIGNING).getCount(), responses + 1);
+        assertEquals(TestApp.METRICS.getFailures(AuthenticationFailedException.Reason.INVALID_SIGNATURE), failures + 1);
+    }
+
+    @Test
+    public void testSecurityLogging() throws Exception {
+        TestApp.REJECTED.clear();
+        testHelper.testInvalidHmac();
+        testHelper.testRejectedBeforeBody();
+        assertTrue(TestApp.REJECTED.contains(AuthResult.Code.INVALID_SIGNATURE));
+        assertTrue(TestApp.REJECTED.contains(AuthResult.Code.EXPIRED_TIMESTAMP));
+    }
+}
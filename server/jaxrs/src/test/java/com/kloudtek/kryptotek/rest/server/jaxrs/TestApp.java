@@ -4,20 +4,55 @@
 
 package com.kloudtek.kryptotek.rest.server.jaxrs;
 
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.rest.AuthResult;
+import com.kloudtek.kryptotek.rest.InMemoryAuthMetrics;
+import com.kloudtek.kryptotek.rest.SecurityLogger;
+import com.kloudtek.kryptotek.rest.SessionTable;
+import com.kloudtek.kryptotek.rest.server.TestHelper;
+
 import javax.ws.rs.core.Application;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by yannick on 29/10/2014.
  */
 @SuppressWarnings("unchecked")
 public class TestApp extends Application {
-    HashSet<Class<?>> classes = new HashSet<Class<?>>(Arrays.asList(TestService.class,Verifier.class));
+    static final InMemoryAuthMetrics METRICS = new InMemoryAuthMetrics();
+    static final List<AuthResult.Code> REJECTED = new CopyOnWriteArrayList<AuthResult.Code>();
+    HashSet<Class<?>> classes = new HashSet<Class<?>>(Arrays.<Class<?>>asList(TestService.class, InvalidContentSignatureExceptionMapper.class));
+    HashSet<Object> singletons = new HashSet<Object>();
+
+    public TestApp() {
+        Verifier verifier = new Verifier();
+        verifier.setBatchPath(TestHelper.BATCH_PATH);
+        verifier.setBatchDispatcher(new TestBatchDispatcher());
+        verifier.enableSessions(TestHelper.SESSION_PATH, SessionTable.DEFAULT_TTL, SessionTable.DEFAULT_MAX_SESSIONS);
+        verifier.setAllowedSignatureAlgorithms(TestHelper.USER, DigestAlgorithm.SHA256, DigestAlgorithm.SHA512);
+        verifier.setMetrics(METRICS);
+        verifier.setSecurityLogger(new SecurityLogger() {
+            @Override
+            public void log(String identity, AuthResult.Code code, String message) {
+                REJECTED.add(code);
+                super.log(identity, code, message);
+            }
+        });
+        singletons.add(verifier);
+        singletons.add(new RESTEndpointFilter(verifier));
+    }
 
     @Override
     public Set<Class<?>> getClasses() {
         return classes;
     }
+
+    @Override
+    public Set<Object> getSingletons() {
+        return singletons;
+    }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest.server.jaxrs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kloudtek.kryptotek.rest.BatchDispatcher;
+import com.kloudtek.kryptotek.rest.BatchRequestPart;
+import com.kloudtek.kryptotek.rest.BatchResponsePart;
+import com.kloudtek.util.StringUtils;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+/**
+ * Dispatches batch sub-requests straight to {@link TestService}
+ */
+public class TestBatchDispatcher implements BatchDispatcher<ContainerRequestContext> {
+    private final TestService service = new TestService();
+
+    @Override
+    public BatchResponsePart dispatch(ContainerRequestContext context, BatchRequestPart part) throws Exception {
+        try {
+            if (part.getUri().startsWith("/test/dostuff?x=")) {
+                String x = StringUtils.urlDecode(part.getUri().substring("/test/dostuff?x=".length()));
+                byte[] content = new ObjectMapper().writeValueAsBytes(service.doStuff(x, new ByteArrayInputStream(part.getContent())));
+                return new BatchResponsePart(200, Collections.singletonMap("Content-Type", "application/json"), content);
+            } else if (part.getUri().equals("/test/exception1")) {
+                service.doStuff();
+            }
+            return new BatchResponsePart(404, null, null);
+        } catch (WebApplicationException e) {
+            return new BatchResponsePart(e.getResponse().getStatus(), null, null);
+        }
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+}
@@ -10,6 +10,7 @@ import org.testng.Assert;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashMap;
@@ -36,6 +37,16 @@ public class TestService {
         return results;
     }
 
+    @Path("/file")
+    @GET
+    @Produces("application/octet-stream")
+    public File getFile() throws IOException {
+        File file = File.createTempFile("kryptotek", "test");
+        file.deleteOnExit();
+        IOUtils.write(file, TestHelper.FILE_DATA);
+        return file;
+    }
+
     @Path("/exception1")
     @POST
     public String doStuff() throws IOException {
@@ -4,9 +4,11 @@
 
 package com.kloudtek.kryptotek.rest.server.jaxrs;
 
+import com.kloudtek.kryptotek.CryptoUtils;
 import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.key.SignatureVerificationKey;
 import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.ReplayAttackValidatorInMemoryImpl;
 import com.kloudtek.kryptotek.rest.server.TestHelper;
 import com.kloudtek.util.BackendAccessException;
 
@@ -21,7 +23,9 @@ public class Verifier extends RESTAuthenticationFilter {
     private DigestAlgorithm digestAlgorithm;
 
     public Verifier() {
+        super(CryptoUtils.getEngine(), new ReplayAttackValidatorInMemoryImpl());
         this.digestAlgorithm = DigestAlgorithm.SHA1;
+        setStreamingVerificationAllowed(true);
     }
 
     @Override
@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.util.BackendAccessException;
+import com.kloudtek.util.InvalidBackendDataException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.*;
+import java.security.Principal;
+
+import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
+
+/**
+ * Servlet 3.1 authentication filter, which reads and verifies request bodies without blocking container threads.
+ * <p>
+ * Checks that only need the request headers are done first, and requests that fail them are rejected before their
+ * body is read (so clients sending {@code Expect: 100-continue} never transfer it). Otherwise the request is put in
+ * asynchronous mode, and its body is read using a {@link ReadListener} as data arrives. Once
+ * it has been fully received and the signature verified, the request is dispatched again to the application, which
+ * receives the verified body and can retrieve the authenticated principal through
+ * {@link HttpServletRequest#getUserPrincipal()}. The response is buffered, signed, and written using a
+ * {@link WriteListener}. This way slow clients don't tie up container threads, so a small thread pool can serve many
+ * of them. Requests that fail authentication are rejected with a 401 status.
+ * </p>
+ * <p>
+ * The filter and the servlets it is applied to must support async, and the filter must be mapped for both the
+ * {@link DispatcherType#REQUEST} and {@link DispatcherType#ASYNC} dispatcher types. The application itself must not
+ * use asynchronous processing, as its response then can't be signed. Principal and key lookups run on the
+ * container thread that completes the read, so caching them is recommended (see {@link #enableCaching(long, int)}).
+ * </p>
+ */
+public abstract class RestAsyncAuthenticationFilter extends AuthenticationFilterHelper<Principal, HttpServletRequest> implements Filter {
+    private static final Logger logger = LoggerFactory.getLogger(RestAsyncAuthenticationFilter.class);
+    public static final long DEFAULT_READ_TIMEOUT = 30000L;
+    private static final String STREAM_ATTR = RestAsyncAuthenticationFilter.class.getName() + ".stream";
+    private static final String STATE_ATTR = RestAsyncAuthenticationFilter.class.getName() + ".state";
+    private static final int BUFFER_SIZE = 8192;
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+
+    public RestAsyncAuthenticationFilter() {
+    }
+
+    public RestAsyncAuthenticationFilter(CryptoEngine cryptoEngine) {
+        super(cryptoEngine);
+    }
+
+    public RestAsyncAuthenticationFilter(CryptoEngine cryptoEngine, ReplayAttackValidator replayAttackValidator) {
+        super(cryptoEngine, replayAttackValidator);
+    }
+
+    public RestAsyncAuthenticationFilter(CryptoEngine cryptoEngine, Long contentMaxSize, DigestAlgorithm digestAlgorithm, long expiry, ReplayAttackValidator replayAttackValidator) {
+        super(cryptoEngine, contentMaxSize, digestAlgorithm, expiry, replayAttackValidator);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        AuthenticatedRequest authenticatedRequest = (AuthenticatedRequest) request.getAttribute(STATE_ATTR);
+        if (authenticatedRequest != null && request.getDispatcherType() == DispatcherType.ASYNC) {
+            request.removeAttribute(STATE_ATTR);
+            invokeApplication(request, response, chain, authenticatedRequest);
+        } else {
+            if (!request.isAsyncSupported()) {
+                throw new ServletException("Async support must be enabled for the REST authentication filter and servlet");
+            }
+            long start = metrics.start();
+            AuthResult<Principal> result;
+            try {
+                // checked before touching the body, so that bad requests don't get a 100 Continue
+                result = checkHeaders(request.getHeader(HEADER_NONCE), request.getHeader(HEADER_IDENTITY),
+                        request.getHeader(HEADER_TIMESTAMP), request.getHeader(HEADER_SIGNATURE), request.getMethod(),
+                        request.getRequestURI(), request.getQueryString(), request);
+            } catch (BackendAccessException e) {
+                logger.error(e.getMessage(), e);
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+            if (!result.isSuccess()) {
+                // already reported to the security logger
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            PendingAuthentication<Principal> pending = result.getPending();
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(readTimeout);
+            BodyReader bodyReader = new BodyReader(asyncContext, request, response, pending, start);
+            asyncContext.addListener(bodyReader);
+            request.getInputStream().setReadListener(bodyReader);
+        }
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Set how long to wait for the request body
+     *
+     * @param readTimeout Timeout in milliseconds
+     */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    protected void replaceDataStream(HttpServletRequest request, InputStream inputStream) {
+        request.setAttribute(STREAM_ATTR, inputStream);
+    }
+
+    @Override
+    protected String getHeader(HttpServletRequest request, String name) {
+        return request.getHeader(name);
+    }
+
+    /**
+     * Authenticate a request once its body has been fully received, and dispatch it to the application
+     */
+    private void authenticate(AsyncContext asyncContext, HttpServletRequest request, HttpServletResponse response,
+                              PendingAuthentication<Principal> pending, long start, byte[] body) {
+        String nonce = request.getHeader(HEADER_NONCE);
+        String signature = request.getHeader(HEADER_SIGNATURE);
+        try {
+            AuthResult<Principal> result = checkBody(pending, new ByteArrayInputStream(body), request);
+            if (!result.isSuccess()) {
+                // already reported to the security logger
+                reject(asyncContext, response, HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            Principal principal = result.getPrincipal();
+            InputStream stream = (InputStream) request.getAttribute(STREAM_ATTR);
+            request.removeAttribute(STREAM_ATTR);
+            if (stream instanceof DigestVerifyingInputStream) {
+                // the body is in memory, so there's no reason to defer verification
+                try {
+                    ((DigestVerifyingInputStream) stream).verifyFully();
+                } catch (IOException e) {
+                    // reported to the security logger by the stream
+                    reject(asyncContext, response, HttpServletResponse.SC_UNAUTHORIZED);
+                    return;
+                }
+                stream = new ByteArrayInputStream(body);
+            }
+            metrics.stop(AuthStage.AUTHENTICATION, start);
+            if (isSessionRequest(request.getMethod(), request.getRequestURI())) {
+                byte[] data = openSession(principal, request.getHeader(HEADER_IDENTITY), request.getHeader(HEADER_SESSION), body, request);
+                RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, HttpServletResponse.SC_OK, false, data);
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setContentType(SessionHandshake.CONTENT_TYPE);
+                response.setContentLength(data.length);
+                response.setHeader(HEADER_TIMESTAMP, createResponseTimestamp());
+                response.setHeader(HEADER_SIGNATURE, signResponse(principal, null, getSignatureAlgorithm(request), responseSigner.getDataToSign()));
+                write(asyncContext, response.getOutputStream(), data);
+                return;
+            }
+            request.setAttribute(STATE_ATTR, new AuthenticatedRequest(principal, stream, nonce, signature));
+            asyncContext.dispatch();
+        } catch (InvalidRequestException e) {
+            logger.warn(e.getMessage());
+            reject(asyncContext, response, HttpServletResponse.SC_UNAUTHORIZED);
+        } catch (InvalidBackendDataException e) {
+            logger.error(e.getMessage(), e);
+            reject(asyncContext, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (BackendAccessException e) {
+            logger.error(e.getMessage(), e);
+            reject(asyncContext, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            reject(asyncContext, response, HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+
+    private void invokeApplication(HttpServletRequest request, HttpServletResponse response, FilterChain chain,
+                                   AuthenticatedRequest authenticatedRequest) throws IOException, ServletException {
+        BufferedResponse bufferedResponse = new BufferedResponse(response);
+        chain.doFilter(new AuthenticatedRequestWrapper(request, authenticatedRequest), bufferedResponse);
+        if (request.isAsyncStarted()) {
+            logger.warn("Application started async processing, response will not be signed");
+            return;
+        }
+        byte[] data = bufferedResponse.getData();
+        boolean error = bufferedResponse.err != null;
+        RESTResponseSigner responseSigner = new RESTResponseSigner(authenticatedRequest.nonce, authenticatedRequest.signature,
+                error ? bufferedResponse.err : response.getStatus(), error, data);
+        try {
+            response.setHeader(HEADER_TIMESTAMP, createResponseTimestamp());
+            response.setHeader(HEADER_SIGNATURE, signResponse(authenticatedRequest.principal, request.getHeader(HEADER_SESSION), getSignatureAlgorithm(request),
+                    responseSigner.getDataToSign()));
+        } catch (InvalidBackendDataException e) {
+            logger.error(e.getMessage(), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        if (error) {
+            response.setHeader(HEADER_EXCLUDEBODY, "true");
+            if (bufferedResponse.errMsg != null) {
+                response.sendError(bufferedResponse.err, bufferedResponse.errMsg);
+            } else {
+                response.sendError(bufferedResponse.err);
+            }
+        } else if (data.length > 0) {
+            response.setContentLength(data.length);
+            write(request.startAsync(), response.getOutputStream(), data);
+        }
+    }
+
+    private static void write(final AsyncContext asyncContext, final ServletOutputStream out, final byte[] data) {
+        out.setWriteListener(new WriteListener() {
+            private boolean written;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                if (!written) {
+                    written = true;
+                    out.write(data);
+                }
+                if (out.isReady()) {
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.debug("Failed to write response: " + t.getMessage(), t);
+                asyncContext.complete();
+            }
+        });
+    }
+
+    private static void reject(AsyncContext asyncContext, HttpServletResponse response, int status) {
+        if (!response.isCommitted()) {
+            response.setStatus(status);
+        }
+        asyncContext.complete();
+    }
+
+    private class BodyReader implements ReadListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final PendingAuthentication<Principal> pending;
+        private final long start;
+        private final long readStart;
+        private final ServletInputStream in;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private boolean done;
+
+        BodyReader(AsyncContext asyncContext, HttpServletRequest request, HttpServletResponse response,
+                   PendingAuthentication<Principal> pending, long start) throws IOException {
+            this.asyncContext = asyncContext;
+            this.request = request;
+            this.response = response;
+            this.pending = pending;
+            this.start = start;
+            readStart = metrics.start();
+            in = request.getInputStream();
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!done && in.isReady()) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    return;
+                }
+                if (contentMaxSize != null && body.size() + read > contentMaxSize) {
+                    done = true;
+                    reject(asyncContext, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            if (!done) {
+                done = true;
+                // time spent waiting for the body isn't part of the authentication cost
+                authenticate(asyncContext, request, response, pending, start + (metrics.start() - readStart), body.toByteArray());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (!done) {
+                done = true;
+                logger.debug("Failed to read request: " + t.getMessage(), t);
+                reject(asyncContext, response, HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (!done) {
+                done = true;
+                reject(asyncContext, response, HttpServletResponse.SC_REQUEST_TIMEOUT);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+
+    private static class AuthenticatedRequest {
+        private final Principal principal;
+        private final InputStream stream;
+        private final String nonce;
+        private final String signature;
+
+        AuthenticatedRequest(Principal principal, InputStream stream, String nonce, String signature) {
+            this.principal = principal;
+            this.stream = stream;
+            this.nonce = nonce;
+            this.signature = signature;
+        }
+    }
+
+    private static class AuthenticatedRequestWrapper extends HttpServletRequestWrapper {
+        private final AuthenticatedRequest authenticatedRequest;
+        private final VerifiedInputStream inputStream;
+
+        AuthenticatedRequestWrapper(HttpServletRequest request, AuthenticatedRequest authenticatedRequest) {
+            super(request);
+            this.authenticatedRequest = authenticatedRequest;
+            inputStream = new VerifiedInputStream(authenticatedRequest.stream);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(inputStream, encoding != null ? encoding : "ISO-8859-1"));
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return authenticatedRequest.principal;
+        }
+
+        @Override
+        public String getRemoteUser() {
+            return authenticatedRequest.principal.getName();
+        }
+    }
+
+    /**
+     * Verified request body, which is already in memory so it never blocks
+     */
+    private static class VerifiedInputStream extends ServletInputStream {
+        private final InputStream is;
+        private boolean finished;
+        private ReadListener readListener;
+
+        VerifiedInputStream(InputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.readListener = readListener;
+            try {
+                readListener.onDataAvailable();
+            } catch (IOException e) {
+                readListener.onError(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return checkFinished(is.read());
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            return checkFinished(is.read(b, off, len));
+        }
+
+        @Override
+        public int available() throws IOException {
+            return is.available();
+        }
+
+        private int checkFinished(int read) throws IOException {
+            if (read == -1 && !finished) {
+                finished = true;
+                if (readListener != null) {
+                    readListener.onAllDataRead();
+                }
+            }
+            return read;
+        }
+    }
+
+    private static class BufferedResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+        private Integer err;
+        private String errMsg;
+
+        BufferedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        try {
+                            writeListener.onWritePossible();
+                        } catch (IOException e) {
+                            writeListener.onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        buffer.write(b);
+                    }
+
+                    @Override
+                    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                        buffer.write(b, off, len);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            err = sc;
+            errMsg = msg;
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            err = sc;
+        }
+
+        byte[] getData() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return buffer.toByteArray();
+        }
+    }
+}
@@ -4,23 +4,29 @@
 
 package com.kloudtek.kryptotek.rest;
 
-import com.kloudtek.util.TimeUtils;
-
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Date;
 
 /**
  * Created by yannick on 28/10/2014.
  */
 public class TimeServlet extends HttpServlet {
+    private final Clock clock;
+
+    public TimeServlet() {
+        this(SystemClock.INSTANCE);
+    }
+
+    public TimeServlet(Clock clock) {
+        this.clock = clock;
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        long time = System.currentTimeMillis();
-        String timeStr = TimeUtils.formatISOUTCDateTime(new Date(time));
+        String timeStr = TimestampCodec.formatCached(clock.currentTimeMillis());
         resp.setContentLength(timeStr.length());
         resp.getWriter().write(timeStr);
     }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.key.SignatureVerificationKey;
+import com.kloudtek.kryptotek.key.SigningKey;
+import com.kloudtek.kryptotek.rest.server.TestHelper;
+import com.kloudtek.util.BackendAccessException;
+import com.kloudtek.util.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+public class RestAsyncAuthenticationFilterTest {
+    private Server server;
+    private TestHelper testHelper;
+
+    @BeforeClass
+    public void init() throws Exception {
+        server = new Server(0);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        FilterHolder filter = new FilterHolder(new TestFilter());
+        filter.setAsyncSupported(true);
+        context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+        ServletHolder servlet = new ServletHolder(new TestServlet());
+        servlet.setAsyncSupported(true);
+        context.addServlet(servlet, "/*");
+        server.setHandler(context);
+        server.start();
+        testHelper = new TestHelper("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort());
+    }
+
+    @AfterClass
+    public void close() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testValidHmac() throws IOException, InvalidKeyException {
+        testHelper.testValidHmac();
+    }
+
+    @Test
+    public void testValidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testValidHmacStreaming();
+    }
+
+    @Test
+    public void testInvalidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testInvalidHmacStreaming();
+    }
+
+    @Test
+    public void testDigestSentAsBody() throws IOException, InvalidKeyException {
+        testHelper.testDigestSentAsBody();
+    }
+
+    @Test
+    public void testExpiredHmac() throws IOException, InvalidKeyException {
+        testHelper.testExpiredHmac();
+    }
+
+    @Test
+    public void testRejectedBeforeBody() throws IOException, InvalidKeyException {
+        testHelper.testRejectedBeforeBody();
+    }
+
+    @Test
+    public void testInvalidHmac() throws Exception {
+        testHelper.testInvalidHmac();
+    }
+
+    @Test
+    public void testRejectedNonceNotRecorded() throws Exception {
+        testHelper.testRejectedNonceNotRecorded();
+    }
+
+    @Test
+    public void testException() throws Exception {
+        testHelper.testException(true);
+    }
+
+    public static class TestFilter extends RestAsyncAuthenticationFilter {
+        public TestFilter() {
+            super(CryptoUtils.getEngine(), new ReplayAttackValidatorInMemoryImpl());
+            setStreamingVerificationAllowed(true);
+        }
+
+        @Override
+        protected Principal findUserPrincipal(final String identity) throws BackendAccessException {
+            return new Principal() {
+                @Override
+                public String getName() {
+                    return identity;
+                }
+            };
+        }
+
+        @Override
+        protected SignatureVerificationKey findVerificationKey(Principal principal) throws BackendAccessException {
+            return principal.getName().equals(TestHelper.USER) ? TestHelper.HMAC_KEY : null;
+        }
+
+        @Override
+        protected SigningKey findSigningKey(Principal principal) throws BackendAccessException {
+            return principal.getName().equals(TestHelper.USER) ? TestHelper.HMAC_KEY : null;
+        }
+    }
+
+    public static class TestServlet extends HttpServlet {
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            if (req.getUserPrincipal() == null || !req.getUserPrincipal().getName().equals(TestHelper.USER)) {
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            byte[] data = IOUtils.toByteArray(req.getInputStream());
+            if (req.getRequestURI().equals("/test/exception1")) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().write("{\"error\":\"bad\"}");
+            } else if (Arrays.equals(data, TestHelper.DATA)) {
+                resp.setContentType("application/json");
+                resp.getWriter().write("{\"a\":\"b\",\"b\":\"c\"}");
+            } else {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+    }
+}
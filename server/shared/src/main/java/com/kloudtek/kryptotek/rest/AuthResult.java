@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Outcome of authenticating a request through {@link AuthenticationFilterHelper#authenticate}, which reports failures
+ * as a {@link Code} instead of throwing an exception, so that rejecting a request doesn't cost a stack trace.
+ *
+ * @param <P> Principal type
+ */
+public class AuthResult<P> {
+    private final Code code;
+    private final String identity;
+    private final String message;
+    private final P principal;
+    private final AuthenticationFilterHelper.PendingAuthentication<P> pending;
+
+    private AuthResult(Code code, String identity, String message, P principal, AuthenticationFilterHelper.PendingAuthentication<P> pending) {
+        this.code = code;
+        this.identity = identity;
+        this.message = message;
+        this.principal = principal;
+        this.pending = pending;
+    }
+
+    static <P> AuthResult<P> success(P principal) {
+        return new AuthResult<P>(Code.OK, null, null, principal, null);
+    }
+
+    static <P> AuthResult<P> pending(AuthenticationFilterHelper.PendingAuthentication<P> pending) {
+        return new AuthResult<P>(Code.OK, pending.getIdentity(), null, null, pending);
+    }
+
+    static <P> AuthResult<P> failure(Code code, String identity, String message) {
+        return new AuthResult<P>(code, identity, message, null, null);
+    }
+
+    public boolean isSuccess() {
+        return code == Code.OK;
+    }
+
+    public Code getCode() {
+        return code;
+    }
+
+    /**
+     * Get the identity the request claimed
+     *
+     * @return identity, or null if the request failed before it was known
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Get the authenticated principal
+     *
+     * @return principal, or null if authentication failed or only the headers have been checked
+     */
+    public P getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * Get the state of a request whose headers have passed {@link AuthenticationFilterHelper#checkHeaders}
+     *
+     * @return state to pass to {@link AuthenticationFilterHelper#checkBody}
+     */
+    public AuthenticationFilterHelper.PendingAuthentication<P> getPending() {
+        return pending;
+    }
+
+    /**
+     * Get a description of the failure
+     *
+     * @return description (which includes request data, so it must be sanitized before being logged)
+     */
+    public String getMessage() {
+        return message != null ? message : code.getDescription();
+    }
+
+    /**
+     * Throw the exception {@link AuthenticationFilterHelper#authenticateRequest} reports this failure with
+     *
+     * @param requestObj Request object
+     */
+    void throwException(Object requestObj) throws AuthenticationFailedException, InvalidRequestException {
+        if (code.getReason() != null) {
+            throw new AuthenticationFailedException(getMessage(), code.getReason(), requestObj);
+        } else {
+            throw new InvalidRequestException(getMessage(), requestObj);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "AuthResult{OK}" : "AuthResult{" + getMessage() + "}";
+    }
+
+    /**
+     * Result codes. Failures with a {@link #getReason() reason} correspond to an {@link AuthenticationFailedException},
+     * others to an {@link InvalidRequestException}.
+     */
+    public enum Code {
+        OK(null, null, "Authenticated"),
+        MISSING_HEADER(null, null, "Missing header"),
+        INVALID_HEADER(null, null, "Invalid header"),
+        UNSUPPORTED_SIGNATURE_ALGORITHM(null, null, "Unsupported signature algorithm"),
+        STREAMING_NOT_ALLOWED(null, null, "Streaming verification not allowed"),
+        CONTENT_TOO_LARGE(null, null, "Request content too large"),
+        INVALID_TIMESTAMP(null, null, "Invalid timestamp"),
+        EXPIRED_TIMESTAMP(null, AuthStage.TIMESTAMP_CHECK, "Expired timestamp"),
+        REPLAYED_NONCE(null, AuthStage.REPLAY_CHECK, "Duplicated nonce"),
+        SESSION_NOT_FOUND(AuthenticationFailedException.Reason.INVALID_SIGNATURE, null, "Session not found or expired"),
+        USER_NOT_FOUND(AuthenticationFailedException.Reason.USER_NOT_FOUND, null, "Principal not found"),
+        SIGNATURE_ALGORITHM_NOT_ALLOWED(AuthenticationFailedException.Reason.INVALID_SIGNATURE, null, "Signature algorithm not allowed"),
+        KEY_NOT_FOUND(AuthenticationFailedException.Reason.INVALID_SIGNATURE, null, "Verification key not found"),
+        INVALID_SIGNATURE(AuthenticationFailedException.Reason.INVALID_SIGNATURE, null, "Invalid signature");
+
+        private final AuthenticationFailedException.Reason reason;
+        private final AuthStage stage;
+        private final String description;
+
+        Code(AuthenticationFailedException.Reason reason, AuthStage stage, String description) {
+            this.reason = reason;
+            this.stage = stage;
+            this.description = description;
+        }
+
+        /**
+         * Get the reason of the corresponding {@link AuthenticationFailedException}
+         *
+         * @return reason, or null for codes that correspond to an {@link InvalidRequestException}
+         */
+        public AuthenticationFailedException.Reason getReason() {
+            return reason;
+        }
+
+        /**
+         * Get the key failures with this code are counted under in {@link AuthMetrics}
+         *
+         * @return reason, the stage that failed, or null if the failure isn't counted
+         */
+        Enum<?> getMetricsKey() {
+            return reason != null ? reason : stage;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+}
@@ -2,13 +2,15 @@ package com.kloudtek.kryptotek.rest;
 
 import com.kloudtek.kryptotek.CryptoEngine;
 import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.Digest;
 import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.DHKeyPair;
+import com.kloudtek.kryptotek.key.HMACKey;
 import com.kloudtek.kryptotek.key.SignatureVerificationKey;
 import com.kloudtek.kryptotek.key.SigningKey;
 import com.kloudtek.util.BackendAccessException;
 import com.kloudtek.util.InvalidBackendDataException;
 import com.kloudtek.util.StringUtils;
-import com.kloudtek.util.TimeUtils;
 import com.kloudtek.util.io.BoundedOutputStream;
 import com.kloudtek.util.io.IOUtils;
 import org.slf4j.Logger;
@@ -21,12 +23,18 @@ import java.io.InputStream;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
 import java.text.ParseException;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import static com.kloudtek.kryptotek.CryptoUtils.fingerprint;
 import static com.kloudtek.kryptotek.DigestAlgorithm.SHA256;
 import static com.kloudtek.kryptotek.rest.AuthenticationFailedException.Reason.INVALID_SIGNATURE;
-import static com.kloudtek.kryptotek.rest.AuthenticationFailedException.Reason.USER_NOT_FOUND;
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
 
 /**
@@ -40,6 +48,21 @@ public abstract class AuthenticationFilterHelper<P, Q> {
     protected long expiry = DEFAULT_EXPIRY;
     protected ReplayAttackValidator replayAttackValidator;
     protected CryptoEngine cryptoEngine;
+    protected boolean streamingVerificationAllowed;
+    protected volatile BackendCache<String, P> principalCache;
+    protected volatile BackendCache<P, SignatureVerificationKey> verificationKeyCache;
+    protected volatile BackendCache<P, SigningKey> signingKeyCache;
+    protected NegativeIdentityCache negativeIdentityCache;
+    protected Clock clock = SystemClock.INSTANCE;
+    protected String batchPath;
+    protected BatchProcessor batchProcessor = new BatchProcessor();
+    protected String sessionPath;
+    protected volatile SessionTable<P> sessionTable;
+    protected volatile Set<DigestAlgorithm> allowedSignatureAlgorithms;
+    protected final ConcurrentHashMap<String, Set<DigestAlgorithm>> identitySignatureAlgorithms = new ConcurrentHashMap<String, Set<DigestAlgorithm>>();
+    protected AuthMetrics metrics = NoOpAuthMetrics.INSTANCE;
+    protected volatile SecurityLogger securityLogger = new SecurityLogger();
+    private ExecutorService cacheRefreshExecutor;
 
     public AuthenticationFilterHelper() {
         this(CryptoUtils.getEngine());
@@ -58,68 +81,266 @@ public abstract class AuthenticationFilterHelper<P, Q> {
         this.cryptoEngine = cryptoEngine;
         this.contentMaxSize = contentMaxSize;
         this.digestAlgorithm = digestAlgorithm;
+        allowedSignatureAlgorithms = Collections.unmodifiableSet(digestAlgorithm != null ? EnumSet.of(digestAlgorithm) : EnumSet.noneOf(DigestAlgorithm.class));
         this.expiry = expiry;
         this.replayAttackValidator = replayAttackValidator;
     }
 
+    /**
+     * Authenticate a request (both stages, see {@link #authenticateHeaders} and {@link #authenticateBody})
+     */
     public P authenticateRequest(InputStream inputStream, String nonce, String identity, String timestampStr, String signature,
                                  String method, String pathWithoutQuery, String query, Q requestObj) throws AuthenticationFailedException, IOException, InvalidRequestException, InvalidBackendDataException {
+        return authenticateBody(authenticateHeaders(nonce, identity, timestampStr, signature, method, pathWithoutQuery, query, requestObj),
+                inputStream, requestObj);
+    }
+
+    /**
+     * Authenticate a request like {@link #authenticateRequest}, but report failures as a result rather than throwing
+     * an exception.
+     *
+     * @return result, holding the principal if successful
+     */
+    public AuthResult<P> authenticate(InputStream inputStream, String nonce, String identity, String timestampStr, String signature,
+                                      String method, String pathWithoutQuery, String query, Q requestObj) throws IOException, InvalidBackendDataException {
+        AuthResult<P> result = checkHeaders(nonce, identity, timestampStr, signature, method, pathWithoutQuery, query, requestObj);
+        return result.isSuccess() ? checkBody(result.getPending(), inputStream, requestObj) : result;
+    }
+
+    /**
+     * First authentication stage (see {@link #checkHeaders}), which throws an exception on failure
+     *
+     * @return state to pass to {@link #authenticateBody(PendingAuthentication, InputStream, Object)}
+     */
+    public PendingAuthentication<P> authenticateHeaders(String nonce, String identity, String timestampStr, String signature,
+                                                        String method, String pathWithoutQuery, String query, Q requestObj) throws AuthenticationFailedException, InvalidRequestException {
+        AuthResult<P> result = checkHeaders(nonce, identity, timestampStr, signature, method, pathWithoutQuery, query, requestObj);
+        if (!result.isSuccess()) {
+            result.throwException(requestObj);
+        }
+        return result.getPending();
+    }
+
+    /**
+     * First authentication stage, which runs every check that only needs the request headers: required headers,
+     * declared content length, timestamp, principal and key lookups. Filters should call this before
+     * accessing the request body, so that bad requests are rejected without transferring any content (containers
+     * only send {@code 100 Continue} to clients that expect it once the body is first read).
+     *
+     * @return result, holding the state to pass to {@link #checkBody} if successful
+     */
+    public AuthResult<P> checkHeaders(String nonce, String identity, String timestampStr, String signature,
+                                      String method, String pathWithoutQuery, String query, Q requestObj) {
         if (nonce == null) {
-            throw new InvalidRequestException("header " + HEADER_NONCE + " missing", requestObj);
+            return failed(AuthResult.Code.MISSING_HEADER, identity, "header " + HEADER_NONCE + " missing");
         }
         if (identity == null) {
-            throw new InvalidRequestException("header " + HEADER_IDENTITY + " missing", requestObj);
+            return failed(AuthResult.Code.MISSING_HEADER, null, "header " + HEADER_IDENTITY + " missing");
         }
         if (timestampStr == null) {
-            throw new InvalidRequestException("header " + HEADER_TIMESTAMP + " missing", requestObj);
+            return failed(AuthResult.Code.MISSING_HEADER, identity, "header " + HEADER_TIMESTAMP + " missing");
         }
         if (signature == null) {
-            throw new InvalidRequestException("header " + HEADER_TIMESTAMP + " missing", requestObj);
+            return failed(AuthResult.Code.MISSING_HEADER, identity, "header " + HEADER_SIGNATURE + " missing");
+        }
+        final String signatureAlgorithmName = getHeader(requestObj, HEADER_SIGNATURE_ALG);
+        final DigestAlgorithm signatureAlgorithm = signatureAlgorithmName != null ? SignatureAlgorithms.get(signatureAlgorithmName) : digestAlgorithm;
+        if (signatureAlgorithmName != null && signatureAlgorithm == null) {
+            return failed(AuthResult.Code.UNSUPPORTED_SIGNATURE_ALGORITHM, identity, "Unsupported signature algorithm: " + signatureAlgorithmName);
+        }
+        boolean digestBody = Boolean.parseBoolean(getHeader(requestObj, HEADER_DIGESTBODY));
+        if (digestBody && !streamingVerificationAllowed) {
+            return failed(AuthResult.Code.STREAMING_NOT_ALLOWED, identity, "Streaming verification not allowed");
+        }
+        String contentLength = getHeader(requestObj, "Content-Length");
+        if (contentMaxSize != null && contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > contentMaxSize) {
+                    return failed(AuthResult.Code.CONTENT_TOO_LARGE, identity, "Request content too large: " + contentLength);
+                }
+            } catch (NumberFormatException e) {
+                return failed(AuthResult.Code.INVALID_HEADER, identity, "Invalid Content-Length: " + contentLength);
+            }
         }
         StringBuilder path = new StringBuilder(pathWithoutQuery);
         if (query != null) {
             path.append('?').append(query);
         }
         RESTRequestSigner restRequestSigner = new RESTRequestSigner(method, path.toString(), nonce, timestampStr, identity);
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-        IOUtils.copy(inputStream, contentMaxSize != null ? new BoundedOutputStream(content, contentMaxSize, true) : content);
-        byte[] contentData = content.toByteArray();
-        restRequestSigner.setContent(contentData);
-        replaceDataStream(requestObj, new ByteArrayInputStream(contentData));
+        restRequestSigner.setDigestedContent(digestBody);
+        long start = metrics.start();
         try {
-            Date timestamp = TimeUtils.parseISOUTCDateTime(timestampStr);
-            if (timestamp.after(new Date(System.currentTimeMillis() + expiry))) {
-                throw new InvalidRequestException("Unauthorized request (expired timestamp): " + timestampStr, requestObj);
+            long timestamp = TimestampCodec.parse(timestampStr);
+            long now = clock.currentTimeMillis();
+            if (timestamp > now + expiry || timestamp < now - expiry) {
+                return failed(AuthResult.Code.EXPIRED_TIMESTAMP, identity, "Unauthorized request (expired timestamp): " + timestampStr);
             }
-            if (replayAttackValidator.checkNonceReplay(nonce)) {
-                throw new InvalidRequestException("Unauthorized request (duplicated nonce): " + nonce, requestObj);
+            metrics.stop(AuthStage.TIMESTAMP_CHECK, start);
+        } catch (ParseException e) {
+            return failed(AuthResult.Code.INVALID_TIMESTAMP, identity, "Invalid timestamp: " + timestampStr);
+        }
+        start = metrics.start();
+        String sessionId = getHeader(requestObj, HEADER_SESSION);
+        SessionTable.Session<P> session = null;
+        if (sessionId != null) {
+            SessionTable<P> sessionTable = this.sessionTable;
+            session = sessionTable != null ? sessionTable.get(sessionId) : null;
+            if (session == null || !session.getIdentity().equals(identity)) {
+                return failed(AuthResult.Code.SESSION_NOT_FOUND, identity, "Unauthorized request (session not found or expired): " + identity);
+            }
+        }
+        P principal = session != null ? session.getPrincipal() : lookupUserPrincipal(identity);
+        if (principal == null) {
+            return failed(AuthResult.Code.USER_NOT_FOUND, identity, "Unauthorized request (principal not found): " + identity);
+        }
+        metrics.stop(AuthStage.PRINCIPAL_LOOKUP, start);
+        if (signatureAlgorithmName != null && !isSignatureAlgorithmAllowed(identity, principal, signatureAlgorithm)) {
+            return failed(AuthResult.Code.SIGNATURE_ALGORITHM_NOT_ALLOWED, identity, "Unauthorized request (signature algorithm " + signatureAlgorithm + " not allowed): " + identity);
+        }
+        start = metrics.start();
+        SignatureVerificationKey key = session != null ? session.getKey() : lookupVerificationKey(principal);
+        if (key == null) {
+            return failed(AuthResult.Code.KEY_NOT_FOUND, identity, "Unauthorized request (verification key not found): " + identity);
+        }
+        metrics.stop(AuthStage.KEY_LOOKUP, start);
+        if (digestBody && isReplay(nonce)) {
+            // streamed content is verified while the application reads it, which is too late to reject replays
+            return failed(AuthResult.Code.REPLAYED_NONCE, identity, "Unauthorized request (duplicated nonce): " + nonce);
+        }
+        return AuthResult.pending(new PendingAuthentication<P>(restRequestSigner, identity, signature, signatureAlgorithm, digestBody, principal, key));
+    }
+
+    /**
+     * Second authentication stage (see {@link #checkBody}), which throws an exception on failure
+     *
+     * @param pending     Result of {@link #authenticateHeaders}
+     * @param inputStream Request body
+     * @param requestObj  Request object
+     * @return principal
+     */
+    public P authenticateBody(PendingAuthentication<P> pending, InputStream inputStream, Q requestObj) throws AuthenticationFailedException, IOException, InvalidBackendDataException {
+        AuthResult<P> result = checkBody(pending, inputStream, requestObj);
+        if (!result.isSuccess()) {
+            throw new AuthenticationFailedException(result.getMessage(), result.getCode().getReason(), requestObj);
+        }
+        return result.getPrincipal();
+    }
+
+    /**
+     * Second authentication stage, which reads the body (or wraps it for streaming verification) and verifies the
+     * request signature. Nonces are only recorded once the signature has been verified (or once the key has been found,
+     * for streamed content), so that unauthenticated requests can't fill the {@link ReplayAttackValidator}.
+     *
+     * @param pending     State returned by {@link #checkHeaders} or {@link #authenticateHeaders}
+     * @param inputStream Request body
+     * @param requestObj  Request object
+     * @return result, holding the principal if successful
+     */
+    public AuthResult<P> checkBody(PendingAuthentication<P> pending, InputStream inputStream, Q requestObj) throws IOException, InvalidBackendDataException {
+        final AuthMetrics metrics = this.metrics;
+        final SecurityLogger securityLogger = this.securityLogger;
+        final RESTRequestSigner restRequestSigner = pending.requestSigner;
+        final String identity = pending.identity;
+        final String signature = pending.signature;
+        final DigestAlgorithm signatureAlgorithm = pending.signatureAlgorithm;
+        final P principal = pending.principal;
+        final SignatureVerificationKey key = pending.key;
+        if (pending.digestBody) {
+            // body will be verified once it has been fully read by the application
+            DigestVerifyingInputStream verifyingStream = new DigestVerifyingInputStream(inputStream, createContentDigest(signatureAlgorithm), contentMaxSize) {
+                @Override
+                protected boolean verify(byte[] contentDigest) throws IOException {
+                    restRequestSigner.setContent(contentDigest);
+                    try {
+                        if (verifySignature(identity, principal, key, signatureAlgorithm, restRequestSigner.getDataToSign(), signature)) {
+                            return true;
+                        }
+                        // reported here since deferred failures are only seen by whoever reads the stream
+                        metrics.failure(INVALID_SIGNATURE);
+                        if (securityLogger != null) {
+                            securityLogger.log(identity, AuthResult.Code.INVALID_SIGNATURE, "Unauthorized request (invalid streamed content signature): " + restRequestSigner.toString());
+                        }
+                        return false;
+                    } catch (InvalidBackendDataException e) {
+                        throw new InvalidContentSignatureException(e.getMessage(), e);
+                    }
+                }
+            };
+            if (getHeader(requestObj, "Content-Length") == null && getHeader(requestObj, "Transfer-Encoding") == null) {
+                // no body, so there's no reason to defer verification
+                try {
+                    verifyingStream.verifyFully();
+                } catch (InvalidContentSignatureException e) {
+                    // failure already reported by verify()
+                    return AuthResult.failure(AuthResult.Code.INVALID_SIGNATURE, identity, "Unauthorized request (invalid signature): " + restRequestSigner.toString());
+                }
             }
-            P principal = findUserPrincipal(identity);
-            if (principal == null) {
-                throw new AuthenticationFailedException("Unauthorized request (principal not found): " + identity, USER_NOT_FOUND, requestObj);
+            replaceDataStream(requestObj, verifyingStream);
+        } else {
+            long start = metrics.start();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            IOUtils.copy(inputStream, contentMaxSize != null ? new BoundedOutputStream(content, contentMaxSize, true) : content);
+            byte[] contentData = content.toByteArray();
+            restRequestSigner.setContent(contentData);
+            replaceDataStream(requestObj, new ByteArrayInputStream(contentData));
+            metrics.stop(AuthStage.BODY_INGESTION, start);
+            if (!verifySignature(identity, principal, key, signatureAlgorithm, restRequestSigner.getDataToSign(), signature)) {
+                return failed(AuthResult.Code.INVALID_SIGNATURE, identity, "Unauthorized request (invalid signature): " + restRequestSigner.toString());
             }
-            if (!verifySignature(identity, principal, restRequestSigner.getDataToSign(), signature)) {
-                throw new AuthenticationFailedException("Unauthorized request (invalid signature): " + restRequestSigner.toString(), INVALID_SIGNATURE, requestObj);
+            if (isReplay(restRequestSigner.getNonce())) {
+                return failed(AuthResult.Code.REPLAYED_NONCE, identity, "Unauthorized request (duplicated nonce): " + restRequestSigner.getNonce());
             }
-            return principal;
-        } catch (ParseException e) {
-            throw new InvalidRequestException("Invalid timestamp: " + timestampStr, e);
         }
+        return AuthResult.success(principal);
+    }
+
+    private boolean isReplay(String nonce) {
+        long start = metrics.start();
+        if (replayAttackValidator.checkNonceReplay(nonce)) {
+            return true;
+        }
+        metrics.stop(AuthStage.REPLAY_CHECK, start);
+        return false;
+    }
+
+    /**
+     * Report a failure to the metrics and security logger
+     */
+    private AuthResult<P> failed(AuthResult.Code code, String identity, String message) {
+        Enum<?> metricsKey = code.getMetricsKey();
+        if (metricsKey != null) {
+            metrics.failure(metricsKey);
+        }
+        SecurityLogger securityLogger = this.securityLogger;
+        if (securityLogger != null) {
+            securityLogger.log(identity, code, message);
+        }
+        return AuthResult.failure(code, identity, message);
     }
 
     protected abstract void replaceDataStream(Q requestObj, InputStream inputStream);
 
-    private boolean verifySignature(String identity, P principal, byte[] dataToSign, String signature) throws BackendAccessException, InvalidBackendDataException {
+    /**
+     * Retrieve an optional request header. Implementations that don't support this will not be able to use features
+     * that are enabled through optional headers (like streaming verification).
+     *
+     * @param requestObj Request object
+     * @param name       Header name
+     * @return header value or null if not set or not supported
+     */
+    protected String getHeader(Q requestObj, String name) {
+        return null;
+    }
+
+    private boolean verifySignature(String identity, P principal, SignatureVerificationKey key, DigestAlgorithm signatureAlgorithm, byte[] dataToSign, String signature) throws BackendAccessException, InvalidBackendDataException {
         final byte[] signatureData = StringUtils.base64Decode(signature);
         if (logger.isDebugEnabled()) {
             logger.debug("Verifying REST request - principal: " + principal + " data: " + fingerprint(dataToSign) + " signature: " + fingerprint(signatureData));
         }
-        SignatureVerificationKey key = findVerificationKey(principal);
-        if (key == null) {
-            return false;
-        }
+        long start = metrics.start();
         try {
-            cryptoEngine.verifySignature(key, digestAlgorithm, dataToSign, signatureData);
+            cryptoEngine.verifySignature(key, signatureAlgorithm, dataToSign, signatureData);
+            metrics.stop(AuthStage.SIGNATURE_VERIFICATION, start);
             return true;
         } catch (InvalidKeyException e) {
             throw new InvalidBackendDataException("Invalid key for principal " + identity + " found while verifying signature: " + e.getMessage(), e);
@@ -129,22 +350,484 @@ public abstract class AuthenticationFilterHelper<P, Q> {
     }
 
     public String signResponse(P userDetails, byte[] data) throws BackendAccessException, InvalidBackendDataException {
-        SigningKey key = findSigningKey(userDetails);
+        return signResponse(userDetails, null, data);
+    }
+
+    /**
+     * Sign a response
+     *
+     * @param userDetails Principal
+     * @param sessionId   Id of the session used by the request (see {@link RESTRequestSigner#HEADER_SESSION}), or null
+     *                    to sign with the principal's key
+     * @param data        Data to sign
+     * @return signature
+     * @throws InvalidBackendDataException If the key is missing or invalid, or the session has expired
+     */
+    public String signResponse(P userDetails, String sessionId, byte[] data) throws BackendAccessException, InvalidBackendDataException {
+        return signResponse(userDetails, sessionId, digestAlgorithm, data);
+    }
+
+    /**
+     * Sign a response
+     *
+     * @param userDetails        Principal
+     * @param sessionId          Id of the session used by the request (see {@link RESTRequestSigner#HEADER_SESSION}),
+     *                           or null to sign with the principal's key
+     * @param signatureAlgorithm Algorithm used by the request (see {@link #getSignatureAlgorithm(Object)})
+     * @param data               Data to sign
+     * @return signature
+     * @throws InvalidBackendDataException If the key is missing or invalid, or the session has expired
+     */
+    public String signResponse(P userDetails, String sessionId, DigestAlgorithm signatureAlgorithm, byte[] data) throws BackendAccessException, InvalidBackendDataException {
+        long start = metrics.start();
+        SigningKey key;
+        if (sessionId != null) {
+            SessionTable<P> sessionTable = this.sessionTable;
+            SessionTable.Session<P> session = sessionTable != null ? sessionTable.get(sessionId) : null;
+            if (session == null) {
+                throw new InvalidBackendDataException("Session expired while processing request");
+            }
+            key = session.getKey();
+        } else {
+            key = lookupSigningKey(userDetails);
+        }
         if (key == null) {
             String msg = "Unable to find key for response signing: ";
             logger.error(msg, (Exception) null);
             throw new InvalidBackendDataException(msg);
         }
         try {
-            return StringUtils.base64Encode(cryptoEngine.sign(key, digestAlgorithm, data));
+            String signature = StringUtils.base64Encode(cryptoEngine.sign(key, signatureAlgorithm != null ? signatureAlgorithm : digestAlgorithm, data));
+            metrics.stop(AuthStage.RESPONSE_SIGNING, start);
+            return signature;
         } catch (InvalidKeyException e) {
             throw new InvalidBackendDataException("Invalid key: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Create a digest for signing / verifying digested content (see {@link RESTRequestSigner#HEADER_DIGESTBODY}).
+     *
+     * @return digest
+     */
+    public Digest createContentDigest() {
+        return cryptoEngine.digest(digestAlgorithm);
+    }
+
+    /**
+     * Create a digest for signing / verifying digested content, for a request that declared its signature algorithm.
+     *
+     * @param signatureAlgorithm Algorithm used by the request (see {@link #getSignatureAlgorithm(Object)})
+     * @return digest
+     */
+    public Digest createContentDigest(DigestAlgorithm signatureAlgorithm) {
+        return cryptoEngine.digest(signatureAlgorithm != null ? signatureAlgorithm : digestAlgorithm);
+    }
+
+    /**
+     * Get the algorithm a request is signed with (see {@link RESTRequestSigner#HEADER_SIGNATURE_ALG}), which must also
+     * be used to sign its response.
+     *
+     * @param requestObj Request object
+     * @return algorithm, the default algorithm if the request doesn't declare one, or null if the declared algorithm
+     * isn't supported (such requests are rejected by {@link #authenticateRequest})
+     */
+    public DigestAlgorithm getSignatureAlgorithm(Q requestObj) {
+        String name = getHeader(requestObj, HEADER_SIGNATURE_ALG);
+        return name != null ? SignatureAlgorithms.get(name) : digestAlgorithm;
+    }
+
+    /**
+     * Check if a principal may sign requests with an algorithm. Uses the algorithms set for the identity (see
+     * {@link #setAllowedSignatureAlgorithms(String, DigestAlgorithm...)}) if any, and otherwise the ones allowed for
+     * everyone (by default only the default algorithm). Override this to load allow-lists from the backend.
+     *
+     * @param identity           Identity
+     * @param principal          Principal
+     * @param signatureAlgorithm Algorithm
+     * @return true if the algorithm is allowed
+     */
+    protected boolean isSignatureAlgorithmAllowed(String identity, P principal, DigestAlgorithm signatureAlgorithm) {
+        Set<DigestAlgorithm> allowed = identitySignatureAlgorithms.get(identity);
+        return (allowed != null ? allowed : allowedSignatureAlgorithms).contains(signatureAlgorithm);
+    }
+
+    public Set<DigestAlgorithm> getAllowedSignatureAlgorithms() {
+        return allowedSignatureAlgorithms;
+    }
+
+    /**
+     * Set the algorithms all identities may sign requests with (in addition to ones set per identity)
+     *
+     * @param algorithms Allowed algorithms
+     */
+    public void setAllowedSignatureAlgorithms(DigestAlgorithm... algorithms) {
+        allowedSignatureAlgorithms = Collections.unmodifiableSet(EnumSet.copyOf(Arrays.asList(algorithms)));
+    }
+
+    /**
+     * Set the algorithms an identity may sign requests with, which replace the ones allowed for everyone
+     *
+     * @param identity   Identity
+     * @param algorithms Allowed algorithms, or none to remove the identity's allow-list
+     */
+    public void setAllowedSignatureAlgorithms(String identity, DigestAlgorithm... algorithms) {
+        if (algorithms.length == 0) {
+            identitySignatureAlgorithms.remove(identity);
+        } else {
+            identitySignatureAlgorithms.put(identity, Collections.unmodifiableSet(EnumSet.copyOf(Arrays.asList(algorithms))));
+        }
+    }
+
+    /**
+     * Create the timestamp for a response (formatted timestamps are cached for a second)
+     *
+     * @return formatted timestamp
+     */
+    public String createResponseTimestamp() {
+        return TimestampCodec.formatCached(clock.currentTimeMillis());
+    }
+
+    public AuthMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics that authentication stages and failures are reported to
+     *
+     * @param metrics metrics, or null to disable them
+     */
+    public void setMetrics(AuthMetrics metrics) {
+        this.metrics = metrics != null ? metrics : NoOpAuthMetrics.INSTANCE;
+    }
+
+    public SecurityLogger getSecurityLogger() {
+        return securityLogger;
+    }
+
+    /**
+     * Set the logger that rejected requests are reported to (by default a {@link SecurityLogger} with default settings)
+     *
+     * @param securityLogger logger, or null to disable logging of rejected requests
+     */
+    public void setSecurityLogger(SecurityLogger securityLogger) {
+        this.securityLogger = securityLogger;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the clock used to check request timestamps, to create response timestamps, and to expire sessions and cache
+     * entries
+     *
+     * @param clock clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public boolean isStreamingVerificationAllowed() {
+        return streamingVerificationAllowed;
+    }
+
+    /**
+     * Allow clients to use streaming verification (see {@link RESTRequestSigner#HEADER_DIGESTBODY}). When a client
+     * uses it, the request body will not be buffered but instead verified once it has been fully read, so the application
+     * must consider the data unverified until it has reached the end of the stream (reading the last bytes of an
+     * invalid body will throw an {@link InvalidContentSignatureException}). Filters will consume any unread content
+     * once the request has been processed, and replace the response with an unauthorized error if it is invalid.
+     *
+     * @param streamingVerificationAllowed true to allow streaming verification
+     */
+    public void setStreamingVerificationAllowed(boolean streamingVerificationAllowed) {
+        this.streamingVerificationAllowed = streamingVerificationAllowed;
+    }
+
+    /**
+     * Cache principals and keys retrieved through {@link #findUserPrincipal(String)}, {@link #findVerificationKey(Object)}
+     * and {@link #findSigningKey(Object)} (see {@link BackendCache}). Principals are used as keys for the key caches, so
+     * they should implement equals() and hashCode().
+     *
+     * @param ttl     Time after which cached entries expire, in milliseconds
+     * @param maxSize Maximum number of entries in each cache
+     */
+    public synchronized void enableCaching(long ttl, int maxSize) {
+        disableCaching();
+        cacheRefreshExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rest-auth-cache-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Clock cacheClock = getDelegatingClock();
+        principalCache = new BackendCache<String, P>(cacheClock, new BackendCache.Loader<String, P>() {
+            @Override
+            public P load(String identity) throws BackendAccessException {
+                return findUserPrincipal(identity);
+            }
+        }, ttl, maxSize, cacheRefreshExecutor);
+        verificationKeyCache = new BackendCache<P, SignatureVerificationKey>(cacheClock, new BackendCache.Loader<P, SignatureVerificationKey>() {
+            @Override
+            public SignatureVerificationKey load(P principal) throws BackendAccessException {
+                return findVerificationKey(principal);
+            }
+        }, ttl, maxSize, cacheRefreshExecutor);
+        signingKeyCache = new BackendCache<P, SigningKey>(cacheClock, new BackendCache.Loader<P, SigningKey>() {
+            @Override
+            public SigningKey load(P principal) throws BackendAccessException {
+                return findSigningKey(principal);
+            }
+        }, ttl, maxSize, cacheRefreshExecutor);
+    }
+
+    public synchronized void disableCaching() {
+        principalCache = null;
+        verificationKeyCache = null;
+        signingKeyCache = null;
+        if (cacheRefreshExecutor != null) {
+            cacheRefreshExecutor.shutdown();
+            cacheRefreshExecutor = null;
+        }
+    }
+
+    /**
+     * Remove all cached principals and keys (for example after a key has been revoked)
+     */
+    public synchronized void invalidateCaches() {
+        if (principalCache != null) {
+            principalCache.invalidateAll();
+            verificationKeyCache.invalidateAll();
+            signingKeyCache.invalidateAll();
+        }
+    }
+
+    public NegativeIdentityCache getNegativeIdentityCache() {
+        return negativeIdentityCache;
+    }
+
+    /**
+     * Set a cache of unknown identities, which is checked before looking up a principal. The application should call
+     * {@link NegativeIdentityCache#invalidate(String)} (or {@link NegativeIdentityCache#addKnownIdentity(String)} if
+     * it seeded the cache's known identities) when creating a user, otherwise it will only be able to authenticate once
+     * the cache entry has expired. The cache expires entries with its own clock, use
+     * {@link #enableNegativeIdentityCache(long, int)} to create one that uses this helper's clock.
+     *
+     * @param negativeIdentityCache cache or null to disable
+     */
+    public void setNegativeIdentityCache(NegativeIdentityCache negativeIdentityCache) {
+        this.negativeIdentityCache = negativeIdentityCache;
+    }
+
+    /**
+     * Enable a cache of unknown identities (see {@link #setNegativeIdentityCache(NegativeIdentityCache)}), which
+     * expires entries using this helper's clock.
+     *
+     * @param ttl     Time after which unknown identities are looked up again, in milliseconds
+     * @param maxSize Maximum number of unknown identities to remember
+     * @return cache
+     */
+    public NegativeIdentityCache enableNegativeIdentityCache(long ttl, int maxSize) {
+        NegativeIdentityCache negativeIdentityCache = new NegativeIdentityCache(getDelegatingClock(), ttl, maxSize);
+        this.negativeIdentityCache = negativeIdentityCache;
+        return negativeIdentityCache;
+    }
+
+    public String getBatchPath() {
+        return batchPath;
+    }
+
+    /**
+     * Enable batches (see {@link BatchEnvelope}), which are sent as a POST to the specified path. All sub-requests
+     * are processed as the principal that signed the batch.
+     *
+     * @param batchPath Request path of the batch endpoint (including the context path), or null to disable batches
+     */
+    public void setBatchPath(String batchPath) {
+        this.batchPath = batchPath;
+    }
+
+    public BatchProcessor getBatchProcessor() {
+        return batchProcessor;
+    }
+
+    public void setBatchProcessor(BatchProcessor batchProcessor) {
+        this.batchProcessor = batchProcessor;
+    }
+
+    /**
+     * Check if a request is a batch
+     *
+     * @param method HTTP method
+     * @param path   Request path (without query string)
+     * @return true if batches are enabled and the request was sent to the batch endpoint
+     */
+    public boolean isBatchRequest(String method, String path) {
+        return batchPath != null && "POST".equalsIgnoreCase(method) && batchPath.equals(path);
+    }
+
+    /**
+     * Enable sessions (see {@link SessionHandshake}), which are opened by a POST to the specified path. Requests sent
+     * within a session are signed with HMAC, which is much cheaper than asymmetric signatures.
+     *
+     * @param sessionPath Request path of the session endpoint (including the context path)
+     * @param ttl         Session time to live, in milliseconds
+     * @param maxSessions Maximum number of sessions
+     */
+    public void enableSessions(String sessionPath, long ttl, int maxSessions) {
+        sessionTable = new SessionTable<P>(getDelegatingClock(), ttl, maxSessions);
+        this.sessionPath = sessionPath;
+    }
+
+    /**
+     * Get a clock that reads the clock field on each call, so that it can still be changed after the components it's
+     * passed to have been created
+     */
+    private Clock getDelegatingClock() {
+        return new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return clock.currentTimeMillis();
+            }
+        };
+    }
+
+    public void disableSessions() {
+        sessionPath = null;
+        sessionTable = null;
+    }
+
+    public SessionTable<P> getSessionTable() {
+        return sessionTable;
+    }
+
+    /**
+     * Check if a request is a session handshake
+     *
+     * @param method HTTP method
+     * @param path   Request path (without query string)
+     * @return true if sessions are enabled and the request was sent to the session endpoint
+     */
+    public boolean isSessionRequest(String method, String path) {
+        return sessionPath != null && "POST".equalsIgnoreCase(method) && sessionPath.equals(path);
+    }
+
+    /**
+     * Open a session for an authenticated handshake request
+     *
+     * @param principal       Principal that signed the request
+     * @param identity        Identity of the principal
+     * @param sessionId       Session id of the request (sessions can't be opened from within a session)
+     * @param clientPublicKey Request body (the client's ephemeral public key)
+     * @param requestObj      Request object
+     * @return response body
+     * @throws InvalidRequestException If the request is invalid
+     */
+    public byte[] openSession(P principal, String identity, String sessionId, byte[] clientPublicKey, Q requestObj) throws InvalidRequestException {
+        SessionTable<P> sessionTable = this.sessionTable;
+        if (sessionTable == null) {
+            throw new InvalidRequestException("Sessions are not enabled", requestObj);
+        }
+        if (sessionId != null) {
+            throw new InvalidRequestException("Sessions must be opened using the identity's key", requestObj);
+        }
+        DHKeyPair keyPair = SessionHandshake.generateKeyPair(cryptoEngine);
+        HMACKey key;
+        try {
+            key = SessionHandshake.deriveKey(cryptoEngine, keyPair.getPrivateKey(), clientPublicKey);
+        } catch (InvalidKeyException e) {
+            throw new InvalidRequestException("Invalid session public key", e, requestObj);
+        }
+        SessionTable.Session<P> session = sessionTable.create(identity, principal, key);
+        if (session == null) {
+            throw new InvalidRequestException("Session table is full", requestObj);
+        }
+        return SessionHandshake.encodeResponse(session.getId(), sessionTable.getTtl(), SessionHandshake.encodePublicKey(keyPair));
+    }
+
+    public BackendCache<String, P> getPrincipalCache() {
+        return principalCache;
+    }
+
+    public BackendCache<P, SignatureVerificationKey> getVerificationKeyCache() {
+        return verificationKeyCache;
+    }
+
+    public BackendCache<P, SigningKey> getSigningKeyCache() {
+        return signingKeyCache;
+    }
+
+    private P lookupUserPrincipal(String identity) throws BackendAccessException {
+        NegativeIdentityCache negativeIdentityCache = this.negativeIdentityCache;
+        if (negativeIdentityCache != null && negativeIdentityCache.isUnknown(identity)) {
+            return null;
+        }
+        BackendCache<String, P> cache = principalCache;
+        P principal = cache != null ? cache.get(identity) : findUserPrincipal(identity);
+        if (principal == null && negativeIdentityCache != null) {
+            negativeIdentityCache.addUnknown(identity);
+        }
+        return principal;
+    }
+
+    private SignatureVerificationKey lookupVerificationKey(P principal) throws BackendAccessException {
+        BackendCache<P, SignatureVerificationKey> cache = verificationKeyCache;
+        return cache != null ? cache.get(principal) : findVerificationKey(principal);
+    }
+
+    private SigningKey lookupSigningKey(P principal) throws BackendAccessException {
+        BackendCache<P, SigningKey> cache = signingKeyCache;
+        return cache != null ? cache.get(principal) : findSigningKey(principal);
+    }
+
     protected abstract P findUserPrincipal(String identity) throws BackendAccessException;
 
     protected abstract SignatureVerificationKey findVerificationKey(P principal) throws BackendAccessException;
 
     protected abstract SigningKey findSigningKey(P principal) throws BackendAccessException;
+
+    /**
+     * State of a request whose headers have been checked (see {@link #checkHeaders}), but whose body hasn't been
+     * verified yet
+     */
+    public static class PendingAuthentication<P> {
+        private final RESTRequestSigner requestSigner;
+        private final String identity;
+        private final String signature;
+        private final DigestAlgorithm signatureAlgorithm;
+        private final boolean digestBody;
+        private final P principal;
+        private final SignatureVerificationKey key;
+
+        PendingAuthentication(RESTRequestSigner requestSigner, String identity, String signature, DigestAlgorithm signatureAlgorithm,
+                              boolean digestBody, P principal, SignatureVerificationKey key) {
+            this.requestSigner = requestSigner;
+            this.identity = identity;
+            this.signature = signature;
+            this.signatureAlgorithm = signatureAlgorithm;
+            this.digestBody = digestBody;
+            this.principal = principal;
+            this.key = key;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        /**
+         * Get the principal the request claims to be from (not authenticated until the body has been verified)
+         *
+         * @return principal
+         */
+        public P getPrincipal() {
+            return principal;
+        }
+
+        public boolean isDigestBody() {
+            return digestBody;
+        }
+    }
 }
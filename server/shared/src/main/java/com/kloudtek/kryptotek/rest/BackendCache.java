@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.BackendAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for data loaded from a backend (principals and keys, see {@link AuthenticationFilterHelper#enableCaching}).
+ * <p>
+ * Entries expire {@code ttl} milliseconds after being loaded. Once an entry is older than {@code refreshAfter}, the
+ * next access triggers a reload in the background while the cached value keeps being returned, so frequently used
+ * entries never expire. Concurrent misses for the same key are collapsed into a single backend load.
+ * </p>
+ * <p>
+ * Null values (not found) are not cached. When the cache grows over {@code maxSize} entries, expired entries are
+ * removed and then arbitrary entries are evicted until it is back under the limit.
+ * </p>
+ * <p>
+ * Values from loads that were in progress when an entry was invalidated are returned to the callers waiting on them,
+ * but not cached.
+ * </p>
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class BackendCache<K, V> {
+    private static final Logger logger = LoggerFactory.getLogger(BackendCache.class);
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong generation = new AtomicLong();
+    private final Clock clock;
+    private final Loader<K, V> loader;
+    private final long ttl;
+    private final int maxSize;
+    private final Executor refreshExecutor;
+    private long refreshAfter;
+
+    /**
+     * Constructor
+     *
+     * @param loader          Loader used to retrieve values from the backend
+     * @param ttl             Time after which entries expire, in milliseconds
+     * @param maxSize         Maximum number of entries
+     * @param refreshExecutor Executor used to refresh entries in the background, or null to disable refresh-ahead
+     */
+    public BackendCache(Loader<K, V> loader, long ttl, int maxSize, Executor refreshExecutor) {
+        this(SystemClock.INSTANCE, loader, ttl, maxSize, refreshExecutor);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock           Clock used to expire entries
+     * @param loader          Loader used to retrieve values from the backend
+     * @param ttl             Time after which entries expire, in milliseconds
+     * @param maxSize         Maximum number of entries
+     * @param refreshExecutor Executor used to refresh entries in the background, or null to disable refresh-ahead
+     */
+    public BackendCache(Clock clock, Loader<K, V> loader, long ttl, int maxSize, Executor refreshExecutor) {
+        if (ttl <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("ttl and maxSize must be greater than 0");
+        }
+        this.clock = clock;
+        this.loader = loader;
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.refreshExecutor = refreshExecutor;
+        refreshAfter = ttl * 3 / 4;
+    }
+
+    /**
+     * Get a value, loading it if it isn't cached or has expired
+     *
+     * @param key Key
+     * @return value or null if the backend doesn't have a value for this key
+     * @throws BackendAccessException If the value had to be loaded and loading failed
+     */
+    public V get(final K key) throws BackendAccessException {
+        long now = clock.currentTimeMillis();
+        Entry<V> entry = entries.get(key);
+        if (entry != null && now < entry.loaded + ttl) {
+            if (refreshExecutor != null && now >= entry.loaded + refreshAfter && entry.refreshing.compareAndSet(false, true)) {
+                refresh(key, entry);
+            }
+            return entry.value;
+        }
+        return load(key);
+    }
+
+    /**
+     * Remove an entry, so that it's reloaded on next access
+     *
+     * @param key Key
+     */
+    public void invalidate(K key) {
+        generation.incrementAndGet();
+        loading.remove(key);
+        entries.remove(key);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        loading.clear();
+        entries.clear();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public long getRefreshAfter() {
+        return refreshAfter;
+    }
+
+    /**
+     * Set the age after which an entry is refreshed in the background on access (defaults to 75% of the TTL)
+     *
+     * @param refreshAfter Entry age in milliseconds
+     */
+    public void setRefreshAfter(long refreshAfter) {
+        this.refreshAfter = refreshAfter;
+    }
+
+    private V load(final K key) throws BackendAccessException {
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long startGeneration = generation.get();
+                long loaded = clock.currentTimeMillis();
+                V value = loader.load(key);
+                if (value != null) {
+                    if (store(key, new Entry<V>(value, loaded, startGeneration)) && entries.size() > maxSize) {
+                        evict();
+                    }
+                } else {
+                    Entry<V> existing = entries.get(key);
+                    if (existing != null && existing.generation <= startGeneration) {
+                        entries.remove(key, existing);
+                    }
+                }
+                return value;
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing != null) {
+            task = existing;
+        } else {
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackendAccessException("Interrupted while waiting for backend", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new BackendAccessException(cause);
+            }
+        }
+    }
+
+    /**
+     * Cache a loaded value, unless a more recent load already did or the entry was invalidated while loading
+     *
+     * @return true if the value was cached
+     */
+    private boolean store(K key, Entry<V> entry) {
+        for (; ; ) {
+            Entry<V> existing = entries.get(key);
+            if (existing != null && existing.generation > entry.generation) {
+                return false;
+            }
+            if (existing == null ? entries.putIfAbsent(key, entry) == null : entries.replace(key, existing, entry)) {
+                break;
+            }
+        }
+        // the generation is bumped before removing, so a concurrent invalidation either removed the entry or shows here
+        if (generation.get() != entry.generation) {
+            entries.remove(key, entry);
+            return false;
+        }
+        return true;
+    }
+
+    private void refresh(final K key, final Entry<V> entry) {
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(key);
+                    } catch (RuntimeException e) {
+                        // the current value will be used until it expires
+                        logger.warn("Failed to refresh cache entry " + key + ": " + e.getMessage(), e);
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void evict() {
+        if (evicting.compareAndSet(false, true)) {
+            try {
+                long now = clock.currentTimeMillis();
+                Iterator<Entry<V>> iterator = entries.values().iterator();
+                while (iterator.hasNext()) {
+                    if (now >= iterator.next().loaded + ttl) {
+                        iterator.remove();
+                    }
+                }
+                // evict a tenth of the entries at once, so eviction doesn't happen on every load
+                int target = maxSize - maxSize / 10;
+                iterator = entries.values().iterator();
+                while (entries.size() > target && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Loads values from the backend
+     */
+    public interface Loader<K, V> {
+        /**
+         * Load a value
+         *
+         * @param key Key
+         * @return value or null if not found
+         * @throws BackendAccessException If the backend couldn't be accessed
+         */
+        V load(K key) throws BackendAccessException;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long loaded;
+        private final long generation;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(V value, long loaded, long generation) {
+            this.value = value;
+            this.loaded = loaded;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Dispatches the sub-requests of an authenticated batch (see {@link BatchEnvelope}) to the application.
+ *
+ * @param <C> Type of the context of the batch request (ie: the servlet or JAX-RS request)
+ */
+public interface BatchDispatcher<C> {
+    /**
+     * Dispatch a sub-request. Sub-requests are authenticated as the batch principal, so implementations must not
+     * accept authentication headers from the sub-request.
+     *
+     * @param context Context of the batch request
+     * @param part    Sub-request
+     * @return response
+     * @throws Exception If an error occurred (will be returned as a 500 response)
+     */
+    BatchResponsePart dispatch(C context, BatchRequestPart part) throws Exception;
+
+    /**
+     * Check if sub-requests can be dispatched from multiple threads at the same time
+     *
+     * @return true if the dispatcher is thread safe
+     */
+    boolean isConcurrent();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Processes the sub-requests of an authenticated batch (see {@link BatchEnvelope}).
+ * <p>
+ * Sub-requests are processed in order, except that consecutive safe requests (GET, HEAD and OPTIONS) are run in
+ * parallel when an executor is set and the dispatcher supports it. An unsafe request always waits for all previous
+ * requests to complete, so a client can rely on the order of its writes.
+ * </p>
+ */
+public class BatchProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(BatchProcessor.class);
+    public static final int DEFAULT_MAX_PARTS = 100;
+    private int maxParts = DEFAULT_MAX_PARTS;
+    private ExecutorService executor;
+
+    public BatchProcessor() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxParts Maximum number of sub-requests in a batch
+     * @param executor Executor used to process safe sub-requests in parallel, or null to process them sequentially
+     */
+    public BatchProcessor(int maxParts, ExecutorService executor) {
+        this.maxParts = maxParts;
+        this.executor = executor;
+    }
+
+    /**
+     * Process a batch
+     *
+     * @param context    Context of the batch request
+     * @param parts      Sub-requests
+     * @param dispatcher Dispatcher
+     * @param <C>        Type of the context
+     * @return responses, in the same order as the sub-requests
+     */
+    public <C> List<BatchResponsePart> process(final C context, List<BatchRequestPart> parts, final BatchDispatcher<C> dispatcher) {
+        if (parts.size() > maxParts) {
+            throw new IllegalArgumentException("Too many parts in batch: " + parts.size());
+        }
+        List<BatchResponsePart> responses = new ArrayList<BatchResponsePart>(parts.size());
+        boolean parallel = executor != null && dispatcher.isConcurrent();
+        int i = 0;
+        while (i < parts.size()) {
+            int end = i + 1;
+            if (parallel && parts.get(i).isSafe()) {
+                while (end < parts.size() && parts.get(end).isSafe()) {
+                    end++;
+                }
+            }
+            if (end - i == 1) {
+                responses.add(dispatch(context, parts.get(i), dispatcher));
+            } else {
+                List<Future<BatchResponsePart>> futures = new ArrayList<Future<BatchResponsePart>>(end - i);
+                for (final BatchRequestPart part : parts.subList(i, end)) {
+                    futures.add(executor.submit(new Callable<BatchResponsePart>() {
+                        @Override
+                        public BatchResponsePart call() {
+                            return dispatch(context, part, dispatcher);
+                        }
+                    }));
+                }
+                for (Future<BatchResponsePart> future : futures) {
+                    responses.add(await(future));
+                }
+            }
+            i = end;
+        }
+        return responses;
+    }
+
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    public void setMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private <C> BatchResponsePart dispatch(C context, BatchRequestPart part, BatchDispatcher<C> dispatcher) {
+        try {
+            BatchResponsePart response = dispatcher.dispatch(context, part);
+            return response != null ? response : new BatchResponsePart(404, null, null);
+        } catch (Exception e) {
+            logger.warn("Batch sub-request " + part.getMethod() + " " + part.getUri() + " failed: " + e.getMessage(), e);
+            return new BatchResponsePart(500, null, null);
+        }
+    }
+
+    private static BatchResponsePart await(Future<BatchResponsePart> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return new BatchResponsePart(503, null, null);
+        } catch (ExecutionException e) {
+            // dispatch() handles exceptions, so this shouldn't happen
+            logger.error("Batch sub-request failed: " + e.getCause().getMessage(), e.getCause());
+            return new BatchResponsePart(500, null, null);
+        }
+    }
+}
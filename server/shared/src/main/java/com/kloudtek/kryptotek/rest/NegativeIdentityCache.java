@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers identities for which no principal was found, so that requests repeatedly using the same unknown identity
+ * are rejected without a backend lookup (see
+ * {@link AuthenticationFilterHelper#setNegativeIdentityCache(NegativeIdentityCache)}).
+ * <p>
+ * Entries expire quickly ({@code ttl}), so a newly created user will be accepted at most {@code ttl} milliseconds
+ * after creation, or immediately if {@link #invalidate(String)} is called when creating it. The cache is split in
+ * independently locked LRU stripes, and is bounded to {@code maxSize} identities: during a flood the oldest unknown
+ * identities are evicted first.
+ * </p>
+ * <p>
+ * This alone doesn't help against requests using a new random identity each time, since each of them still needs one
+ * lookup. To reject those as well, the application can seed a Bloom filter with all existing identities using
+ * {@link #setKnownIdentities(Collection)}, and call {@link #addKnownIdentity(String)} when creating a user: identities
+ * that aren't in the filter are then rejected without a lookup. The filter has no false negatives, and about 1% of
+ * unknown identities will still be looked up (more if many identities are added after it has been seeded, in which
+ * case it should be rebuilt).
+ * </p>
+ */
+public class NegativeIdentityCache {
+    public static final long DEFAULT_TTL = 30000L;
+    public static final int DEFAULT_MAX_SIZE = 100000;
+    private static final int STRIPES = 16;
+    private static final int MIN_KNOWN_IDENTITIES_CAPACITY = 1024;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Clock clock;
+    private final long ttl;
+    private final AtomicLong hits = new AtomicLong();
+    private volatile BloomFilter knownIdentities;
+
+    public NegativeIdentityCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ttl     Time after which unknown identities are looked up again, in milliseconds
+     * @param maxSize Maximum number of unknown identities to remember
+     */
+    public NegativeIdentityCache(long ttl, int maxSize) {
+        this(SystemClock.INSTANCE, ttl, maxSize);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock   Clock used to expire entries
+     * @param ttl     Time after which unknown identities are looked up again, in milliseconds
+     * @param maxSize Maximum number of unknown identities to remember
+     */
+    public NegativeIdentityCache(Clock clock, long ttl, int maxSize) {
+        if (ttl <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("ttl and maxSize must be greater than 0");
+        }
+        this.clock = clock;
+        this.ttl = ttl;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxSize / STRIPES));
+        }
+    }
+
+    /**
+     * Check if an identity is known not to exist
+     *
+     * @param identity Identity
+     * @return true if no principal was found for this identity within the TTL
+     */
+    public boolean isUnknown(String identity) {
+        BloomFilter knownIdentities = this.knownIdentities;
+        if (knownIdentities != null && !knownIdentities.mightContain(identity)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        Stripe stripe = getStripe(identity);
+        synchronized (stripe) {
+            Long expires = stripe.get(identity);
+            if (expires == null) {
+                return false;
+            } else if (expires <= clock.currentTimeMillis()) {
+                stripe.remove(identity);
+                return false;
+            }
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record that no principal exists for an identity
+     *
+     * @param identity Identity
+     */
+    public void addUnknown(String identity) {
+        Stripe stripe = getStripe(identity);
+        long expires = clock.currentTimeMillis() + ttl;
+        synchronized (stripe) {
+            stripe.put(identity, expires);
+        }
+    }
+
+    /**
+     * Forget an identity, which should be called when a user is created
+     *
+     * @param identity Identity
+     */
+    public void invalidate(String identity) {
+        Stripe stripe = getStripe(identity);
+        synchronized (stripe) {
+            stripe.remove(identity);
+        }
+    }
+
+    /**
+     * Replace the known identities filter. Identities added with {@link #addKnownIdentity(String)} while this runs may
+     * be lost, so they should be included in the collection.
+     *
+     * @param identities All existing identities, or null to disable the filter
+     */
+    public void setKnownIdentities(Collection<String> identities) {
+        setKnownIdentities(identities, identities != null ? identities.size() * 2 : 0);
+    }
+
+    /**
+     * Replace the known identities filter.
+     *
+     * @param identities All existing identities, or null to disable the filter
+     * @param capacity   Number of identities the filter is sized for, including ones that will be added later
+     */
+    public void setKnownIdentities(Collection<String> identities, int capacity) {
+        if (identities == null) {
+            knownIdentities = null;
+        } else {
+            BloomFilter filter = new BloomFilter(Math.max(Math.max(capacity, identities.size()), MIN_KNOWN_IDENTITIES_CAPACITY));
+            for (String identity : identities) {
+                filter.put(identity);
+            }
+            knownIdentities = filter;
+        }
+    }
+
+    /**
+     * Record that an identity exists, which should be called when a user is created. This also
+     * {@link #invalidate(String) invalidates} the identity.
+     *
+     * @param identity Identity
+     */
+    public void addKnownIdentity(String identity) {
+        BloomFilter knownIdentities = this.knownIdentities;
+        if (knownIdentities != null) {
+            knownIdentities.put(identity);
+        }
+        invalidate(identity);
+    }
+
+    public boolean isKnownIdentitiesEnabled() {
+        return knownIdentities != null;
+    }
+
+    public void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of lookups avoided
+     *
+     * @return number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    private Stripe getStripe(String identity) {
+        int h = identity.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Lock free Bloom filter sized for a 1% false positive rate
+     */
+    static class BloomFilter {
+        private static final int BITS_PER_ENTRY = 10;
+        private static final int HASHES = 7;
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final long seed = new SecureRandom().nextLong();
+
+        BloomFilter(int capacity) {
+            int words = (int) Math.min(Integer.MAX_VALUE, ((long) capacity * BITS_PER_ENTRY + 63) / 64);
+            bits = new AtomicLongArray(words);
+            bitCount = words * 64L;
+        }
+
+        boolean mightContain(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = ((h1 + i * h2) >>> 1) % bitCount;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = ((h1 + i * h2) >>> 1) % bitCount;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                for (; ; ) {
+                    long current = bits.get(word);
+                    if ((current & mask) != 0 || bits.compareAndSet(word, current, current | mask)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private long hash(String value) {
+            long h = 0xcbf29ce484222325L ^ seed;
+            for (int i = 0; i < value.length(); i++) {
+                h ^= value.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return mix(h ^ value.length());
+        }
+
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private static class Stripe extends LinkedHashMap<String, Long> {
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
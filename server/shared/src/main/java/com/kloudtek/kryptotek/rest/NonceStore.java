@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.io.Closeable;
+import java.util.concurrent.Future;
+
+/**
+ * Store shared by several servers, used by {@link ReplayAttackValidatorDistributedImpl} to detect nonces replayed
+ * against a different server.
+ */
+public interface NonceStore extends Closeable {
+    /**
+     * Atomically insert a nonce if it isn't already present. Implementations should not block, so that several
+     * requests can be in flight at the same time.
+     *
+     * @param nonce Nonce
+     * @param ttl   How long the nonce should be remembered, in milliseconds
+     * @return future that will be completed with true if the nonce was inserted, or false if it was already present
+     */
+    Future<Boolean> putIfAbsent(String nonce, long ttl);
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NonceStore} client for {@link NonceStoreServer}.
+ * <p>
+ * Requests are pipelined over a single connection: they are queued, and a writer thread sends all queued requests in
+ * a single write, so under load many nonce checks share one network round trip. Responses are matched to requests by
+ * order. If the connection fails all pending requests fail, and a new connection is opened on the next request.
+ * A connection that stays open but stops answering is considered failed once {@code maxConsecutiveTimeouts} requests
+ * in a row have timed out (see {@link Future#get(long, TimeUnit)}) without any response in between.
+ * </p>
+ */
+public class NonceStoreClient implements NonceStore {
+    private static final Logger logger = LoggerFactory.getLogger(NonceStoreClient.class);
+    public static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_CONSECUTIVE_TIMEOUTS = 3;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_NONCE_UTF_LENGTH = 65535;
+    private final InetSocketAddress address;
+    private final int connectTimeout;
+    private volatile int maxConsecutiveTimeouts = DEFAULT_MAX_CONSECUTIVE_TIMEOUTS;
+    private Connection connection;
+    private boolean closed;
+
+    public NonceStoreClient(InetSocketAddress address) {
+        this(address, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param address        Store server address
+     * @param connectTimeout Connection timeout in milliseconds
+     */
+    public NonceStoreClient(InetSocketAddress address, int connectTimeout) {
+        this.address = address;
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public Future<Boolean> putIfAbsent(String nonce, long ttl) {
+        Request request = new Request(nonce, ttl);
+        if (utfLength(nonce) > MAX_NONCE_UTF_LENGTH) {
+            // writeUTF would fail, taking the connection and every pending request down with it
+            request.fail(new IOException("Nonce is too long"));
+            return request;
+        }
+        try {
+            getConnection().send(request);
+        } catch (IOException e) {
+            request.fail(e);
+        }
+        return request;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (connection != null) {
+            connection.fail(new IOException("Nonce store client closed"));
+            connection = null;
+        }
+    }
+
+    public int getMaxConsecutiveTimeouts() {
+        return maxConsecutiveTimeouts;
+    }
+
+    /**
+     * Set after how many consecutive request timeouts the connection is considered failed
+     *
+     * @param maxConsecutiveTimeouts Number of timeouts
+     */
+    public void setMaxConsecutiveTimeouts(int maxConsecutiveTimeouts) {
+        if (maxConsecutiveTimeouts <= 0) {
+            throw new IllegalArgumentException("maxConsecutiveTimeouts must be greater than 0");
+        }
+        this.maxConsecutiveTimeouts = maxConsecutiveTimeouts;
+    }
+
+    /**
+     * Get the length of a string in modified UTF-8, as written by {@link DataOutputStream#writeUTF(String)}
+     */
+    private static int utfLength(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private synchronized Connection getConnection() throws IOException {
+        if (closed) {
+            throw new IOException("Nonce store client closed");
+        }
+        if (connection == null || connection.failed) {
+            connection = new Connection();
+        }
+        return connection;
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+        private final Queue<Request> inFlight = new ConcurrentLinkedQueue<Request>();
+        private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+        private volatile boolean failed;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address, connectTimeout);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                IOUtils.close(socket);
+                throw e;
+            }
+            start("nonce-store-writer", new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            });
+            start("nonce-store-reader", new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+        }
+
+        void send(Request request) throws IOException {
+            request.connection = this;
+            queue.add(request);
+            if (failed) {
+                // the writer may have stopped before the request was queued
+                fail(new IOException("Connection to nonce store failed"));
+            }
+        }
+
+        private void write() {
+            List<Request> batch = new ArrayList<Request>();
+            IOException error = null;
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    if (failed) {
+                        error = new IOException("Connection to nonce store failed");
+                        break;
+                    }
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Request request : batch) {
+                        // must be queued before it's sent, as the response could arrive before this returns
+                        inFlight.add(request);
+                        out.writeByte(NonceStoreServer.OP_PUT_IF_ABSENT);
+                        out.writeLong(request.ttl);
+                        out.writeUTF(request.nonce);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                error = new IOException("Nonce store writer interrupted");
+            } catch (IOException e) {
+                error = e;
+            }
+            fail(error);
+            for (Request request : batch) {
+                request.fail(error);
+            }
+        }
+
+        private void read() {
+            try {
+                while (!failed) {
+                    byte response = in.readByte();
+                    Request request = inFlight.poll();
+                    if (request == null) {
+                        throw new IOException("Unexpected response from nonce store");
+                    }
+                    request.complete(response == NonceStoreServer.RESPONSE_INSERTED);
+                    consecutiveTimeouts.set(0);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void timedOut() {
+            if (consecutiveTimeouts.incrementAndGet() >= maxConsecutiveTimeouts) {
+                fail(new IOException("Nonce store stopped responding"));
+            }
+        }
+
+        void fail(IOException e) {
+            if (!failed) {
+                failed = true;
+                logger.warn("Connection to nonce store " + address + " failed: " + e.getMessage());
+                IOUtils.close(socket);
+            }
+            Request request;
+            while ((request = inFlight.poll()) != null) {
+                request.fail(e);
+            }
+            while ((request = queue.poll()) != null) {
+                request.fail(e);
+            }
+            // wake the writer up, if it's waiting for a request
+            queue.offer(new Request(null, 0));
+        }
+
+        private void start(String name, Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static class Request implements Future<Boolean> {
+        private final String nonce;
+        private final long ttl;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Boolean result;
+        private volatile IOException error;
+        private volatile Connection connection;
+
+        Request(String nonce, long ttl) {
+            this.nonce = nonce;
+            this.ttl = ttl;
+        }
+
+        synchronized void complete(boolean inserted) {
+            if (!isDone()) {
+                result = inserted;
+                done.countDown();
+            }
+        }
+
+        synchronized void fail(IOException e) {
+            if (!isDone()) {
+                error = e;
+                done.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                Connection connection = this.connection;
+                if (connection != null) {
+                    connection.timedOut();
+                }
+                throw new TimeoutException("Nonce store didn't reply in time");
+            }
+            return getResult();
+        }
+
+        private Boolean getResult() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Small standalone {@link NonceStore} server, for tests and single host deployments (several servers on the same
+ * machine). Nonces are kept in memory, so they are lost if the store is restarted.
+ * <p>
+ * Each request is a frame containing an operation byte, the TTL (long), and the nonce (as written by
+ * {@link DataOutput#writeUTF(String)}). Each response is a single byte, and responses are sent in the order requests were received, so
+ * clients can pipeline requests (see {@link NonceStoreClient}). Responses are only flushed once all buffered requests
+ * have been processed, so a batch of requests is answered in a single write.
+ * </p>
+ * <p>
+ * Can be started from the command line with {@code java com.kloudtek.kryptotek.rest.NonceStoreServer [port] [address]}.
+ * </p>
+ */
+public class NonceStoreServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NonceStoreServer.class);
+    public static final int DEFAULT_PORT = 7733;
+    public static final int DEFAULT_MAX_ENTRIES = 10000000;
+    static final byte OP_PUT_IF_ABSENT = 1;
+    static final byte RESPONSE_INSERTED = 1;
+    static final byte RESPONSE_PRESENT = 0;
+    private static final long PURGE_INTERVAL = 1000L;
+    private final ServerSocket serverSocket;
+    private final ConcurrentHashMap<String, Long> nonces = new ConcurrentHashMap<String, Long>();
+    private final Set<Socket> connections = new CopyOnWriteArraySet<Socket>();
+    private final ExecutorService executor;
+    private final int maxEntries;
+    private volatile boolean closed;
+
+    /**
+     * Start a server listening on the loopback interface, using a random port
+     *
+     * @throws IOException If the server can't be started
+     */
+    public NonceStoreServer() throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(null), 0), DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Start a server
+     *
+     * @param address    Address to listen on
+     * @param maxEntries Maximum number of nonces to store, once reached all new nonces are rejected
+     * @throws IOException If the server can't be started
+     */
+    public NonceStoreServer(InetSocketAddress address, int maxEntries) throws IOException {
+        this.maxEntries = maxEntries;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nonce-store-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                purge();
+            }
+        });
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Get the number of nonces currently stored (including expired ones that haven't been purged yet)
+     *
+     * @return number of nonces
+     */
+    public int getSize() {
+        return nonces.size();
+    }
+
+    boolean putIfAbsent(String nonce, long ttl) {
+        long now = System.currentTimeMillis();
+        Long expires = now + ttl;
+        while (true) {
+            Long existing = nonces.get(nonce);
+            if (existing == null) {
+                if (nonces.size() >= maxEntries) {
+                    // failing closed
+                    return false;
+                }
+                if (nonces.putIfAbsent(nonce, expires) == null) {
+                    return true;
+                }
+            } else if (existing > now) {
+                return false;
+            } else if (nonces.replace(nonce, existing, expires)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOUtils.close(serverSocket);
+        for (Socket socket : connections) {
+            IOUtils.close(socket);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (EOFException e) {
+                            // client disconnected
+                        } catch (SocketException e) {
+                            // client disconnected or server closed
+                        } catch (IOException e) {
+                            logger.warn("Nonce store connection failed: " + e.getMessage(), e);
+                        } finally {
+                            connections.remove(socket);
+                            IOUtils.close(socket);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Nonce store server failed to accept connection: " + e.getMessage(), e);
+                }
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        DataInputStream in = new DataInputStream(rawIn);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (!closed) {
+            byte op = in.readByte();
+            if (op != OP_PUT_IF_ABSENT) {
+                throw new IOException("Invalid nonce store operation " + op);
+            }
+            long ttl = in.readLong();
+            String nonce = in.readUTF();
+            out.writeByte(putIfAbsent(nonce, ttl) ? RESPONSE_INSERTED : RESPONSE_PRESENT);
+            if (rawIn.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    private void purge() {
+        while (!closed) {
+            try {
+                Thread.sleep(PURGE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Long>> iterator = nonces.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getValue() <= now) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        InetAddress address = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getByName(null);
+        NonceStoreServer server = new NonceStoreServer(new InetSocketAddress(address, port), DEFAULT_MAX_ENTRIES);
+        logger.info("Nonce store listening on " + server.getAddress());
+        // server threads are daemons
+        Thread.currentThread().join();
+    }
+}
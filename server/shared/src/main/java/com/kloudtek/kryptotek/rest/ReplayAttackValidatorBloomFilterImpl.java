@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link ReplayAttackValidator} for very high request rates, which keeps nonces in rotating off-heap Bloom filters
+ * rather than on the heap.
+ * <p>
+ * The retention period (twice the request expiry) is split into generations, each of which is a blocked Bloom filter
+ * of a fixed size held in a direct {@link ByteBuffer}. When a generation ages out its buffer is cleared and reused, so
+ * memory usage is fixed ({@code generations * bytesPerGeneration}) and there is no GC pressure.
+ * </p>
+ * <p>
+ * Nonces seen in the last {@code exactWindow} milliseconds are also checked exactly using a
+ * {@link ReplayAttackValidatorInMemoryImpl}, so only older generations are consulted through the Bloom filters. That
+ * also covers writes to the filters that are not yet visible to other threads (filter reads are lock free).
+ * </p>
+ * <p>
+ * A Bloom filter can't produce false negatives, but it can produce false positives (a new nonce being considered a
+ * replay). With {@code n} nonces per generation, {@code m} bits per generation ({@code bytesPerGeneration * 8}) and
+ * {@code k} hashes, the false positive rate per generation is approximately {@code (1 - e^(-k * n / m))^k}, and the
+ * overall rate is that multiplied by the number of generations checked (see {@link #estimateFalsePositiveRate(long)}).
+ * For example at 100,000 requests per second with the default 5 minute expiry and 9 generations, each generation holds
+ * 7.5 million nonces, and the default 16 MB per generation (144 MB in total) with 11 hashes (about 18 bits per
+ * nonce) gives an overall rate of about 0.2%.
+ * Blocked filters are slightly less accurate than this estimate at low bits per nonce.
+ * </p>
+ */
+public class ReplayAttackValidatorBloomFilterImpl implements ReplayAttackValidator {
+    public static final int DEFAULT_BYTES_PER_GENERATION = 16 * 1024 * 1024;
+    public static final int DEFAULT_HASHES = 11;
+    public static final long DEFAULT_EXACT_WINDOW = 10000L;
+    private static final int GENERATION_DIVISIONS = 8;
+    private static final int BLOCK_BYTES = 64;
+    private static final int BLOCK_BITS = BLOCK_BYTES * 8;
+    private static final int LOCK_STRIPES = 256;
+    private final long generationDuration;
+    private final int generationCount;
+    private final long exactWindow;
+    private final int blocks;
+    private final int hashes;
+    private final ByteBuffer[] generations;
+    private final Clock clock;
+    private final AtomicLongArray generationEpochs;
+    private final Object[] locks;
+    private final ReplayAttackValidatorInMemoryImpl exactValidator;
+    private final AtomicLong probableReplays = new AtomicLong();
+    private final long seed;
+    private volatile long currentEpoch = Long.MIN_VALUE;
+
+    public ReplayAttackValidatorBloomFilterImpl() {
+        this(AuthenticationFilterHelper.DEFAULT_EXPIRY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expiry Request expiry (as set in {@link AuthenticationFilterHelper})
+     */
+    public ReplayAttackValidatorBloomFilterImpl(long expiry) {
+        this(expiry, DEFAULT_BYTES_PER_GENERATION, DEFAULT_HASHES, DEFAULT_EXACT_WINDOW);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expiry             Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param bytesPerGeneration Size of each generation's Bloom filter (rounded up to a multiple of 64)
+     * @param hashes             Number of hash functions
+     * @param exactWindow        Period during which nonces are checked exactly, in milliseconds
+     */
+    public ReplayAttackValidatorBloomFilterImpl(long expiry, int bytesPerGeneration, int hashes, long exactWindow) {
+        this(SystemClock.INSTANCE, expiry, bytesPerGeneration, hashes, exactWindow);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock              Clock used to assign nonces to generations
+     * @param expiry             Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param bytesPerGeneration Size of each generation's Bloom filter (rounded up to a multiple of 64)
+     * @param hashes             Number of hash functions
+     * @param exactWindow        Period during which nonces are checked exactly, in milliseconds
+     */
+    public ReplayAttackValidatorBloomFilterImpl(Clock clock, long expiry, int bytesPerGeneration, int hashes, long exactWindow) {
+        if (expiry <= 0 || bytesPerGeneration <= 0 || hashes <= 0 || exactWindow <= 0) {
+            throw new IllegalArgumentException("expiry, bytesPerGeneration, hashes and exactWindow must be greater than 0");
+        }
+        this.clock = clock;
+        long retention = expiry * 2;
+        generationDuration = Math.max(1L, (retention + GENERATION_DIVISIONS - 1) / GENERATION_DIVISIONS);
+        generationCount = (int) ((retention + generationDuration - 1) / generationDuration) + 1;
+        this.exactWindow = exactWindow;
+        this.hashes = hashes;
+        blocks = (bytesPerGeneration + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        generations = new ByteBuffer[generationCount];
+        generationEpochs = new AtomicLongArray(generationCount);
+        for (int i = 0; i < generationCount; i++) {
+            generations[i] = ByteBuffer.allocateDirect(blocks * BLOCK_BYTES);
+            generationEpochs.set(i, Long.MIN_VALUE);
+        }
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        // the in-memory validator retains nonces for twice the expiry it's given
+        exactValidator = new ReplayAttackValidatorInMemoryImpl(clock, (exactWindow + 1) / 2, ReplayAttackValidatorInMemoryImpl.DEFAULT_MAX_ENTRIES, Runtime.getRuntime().availableProcessors() * 4);
+        seed = new SecureRandom().nextLong();
+    }
+
+    @Override
+    public boolean checkNonceReplay(String nonce) {
+        long now = clock.currentTimeMillis();
+        long epoch = now / generationDuration;
+        if (epoch > currentEpoch) {
+            rotate(epoch);
+        }
+        if (exactValidator.checkNonceReplay(nonce)) {
+            return true;
+        }
+        long h1 = fingerprint(nonce);
+        long h2 = mix(h1 + 0x9e3779b97f4a7c15L);
+        int block = (int) ((h1 >>> 1) % blocks);
+        for (int i = 0; i < generationCount; i++) {
+            long generationEpoch = generationEpochs.get(i);
+            if (generationEpoch != Long.MIN_VALUE && epoch - generationEpoch < generationCount
+                    && now - generationEpoch * generationDuration > exactWindow && contains(generations[i], block, h2)) {
+                probableReplays.incrementAndGet();
+                return true;
+            }
+        }
+        add(generations[(int) (epoch % generationCount)], block, h2);
+        return false;
+    }
+
+    /**
+     * Get the number of nonces rejected by the Bloom filters (which may include false positives)
+     *
+     * @return number of rejections
+     */
+    public long getProbableReplays() {
+        return probableReplays.get();
+    }
+
+    /**
+     * Get the number of nonces rejected by the exact check
+     *
+     * @return number of rejections
+     */
+    public long getReplays() {
+        return exactValidator.getReplays();
+    }
+
+    /**
+     * Estimate the false positive rate.
+     *
+     * @param noncesPerSecond Expected number of requests per second
+     * @return estimated probability of a new nonce being rejected
+     */
+    public double estimateFalsePositiveRate(long noncesPerSecond) {
+        double perGeneration = noncesPerSecond * (generationDuration / 1000D);
+        double bits = blocks * (double) BLOCK_BITS;
+        double p = Math.pow(1 - Math.exp(-hashes * perGeneration / bits), hashes);
+        return Math.min(1D, p * generationCount);
+    }
+
+    public long getMemoryUsage() {
+        return (long) blocks * BLOCK_BYTES * generationCount;
+    }
+
+    private synchronized void rotate(long epoch) {
+        if (epoch > currentEpoch) {
+            int index = (int) (epoch % generationCount);
+            if (generationEpochs.get(index) != epoch) {
+                // mark the generation dead before clearing it
+                generationEpochs.set(index, Long.MIN_VALUE);
+                ByteBuffer buffer = generations[index];
+                for (int i = 0; i < buffer.capacity(); i += 8) {
+                    buffer.putLong(i, 0L);
+                }
+                generationEpochs.set(index, epoch);
+            }
+            currentEpoch = epoch;
+        }
+    }
+
+    private boolean contains(ByteBuffer buffer, int block, long h) {
+        int base = block * BLOCK_BYTES;
+        int a = (int) h;
+        int b = (int) (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+            if ((buffer.get(base + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(ByteBuffer buffer, int block, long h) {
+        int base = block * BLOCK_BYTES;
+        int a = (int) h;
+        int b = (int) (h >>> 32) | 1;
+        synchronized (locks[block & (LOCK_STRIPES - 1)]) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = (a + i * b) & (BLOCK_BITS - 1);
+                int idx = base + (bit >>> 3);
+                buffer.put(idx, (byte) (buffer.get(idx) | (1 << (bit & 7))));
+            }
+        }
+    }
+
+    private long fingerprint(String nonce) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < nonce.length(); i++) {
+            h ^= nonce.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h ^ nonce.length());
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ReplayAttackValidator} for clusters, which checks nonces against {@link NonceStore}s shared by all servers,
+ * so that a nonce can't be replayed against a different server.
+ * <p>
+ * Nonces are first checked against a local {@link ReplayAttackValidatorInMemoryImpl} (L1), so nonces replayed against
+ * the same server are rejected without a network round trip. New nonces are then atomically inserted in the store
+ * shard selected by the nonce hash ({@link String#hashCode()}, so all servers must use the same list of stores in the
+ * same order).
+ * </p>
+ * <p>
+ * If a store doesn't reply within {@code timeout} or fails, the nonce is rejected if {@code failOpen} is false (the
+ * default), or accepted otherwise. {@link #getStoreFailures()} counts how often that happened. A {@link NonceStoreClient}
+ * reconnects once several requests in a row have timed out. Nonces longer than
+ * {@link #MAX_NONCE_LENGTH} are always rejected.
+ * </p>
+ */
+public class ReplayAttackValidatorDistributedImpl implements ReplayAttackValidator, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayAttackValidatorDistributedImpl.class);
+    public static final long DEFAULT_TIMEOUT = 200L;
+    public static final int MAX_NONCE_LENGTH = 1024;
+    private final NonceStore[] stores;
+    private final ReplayAttackValidatorInMemoryImpl localValidator;
+    private final long ttl;
+    private final AtomicLong storeFailures = new AtomicLong();
+    private final AtomicLong replays = new AtomicLong();
+    private long timeout = DEFAULT_TIMEOUT;
+    private boolean failOpen;
+
+    /**
+     * Constructor
+     *
+     * @param expiry Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param stores Store shards
+     */
+    public ReplayAttackValidatorDistributedImpl(long expiry, NonceStore... stores) {
+        this(expiry, Arrays.asList(stores));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expiry Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param stores Store shards
+     */
+    public ReplayAttackValidatorDistributedImpl(long expiry, List<NonceStore> stores) {
+        if (stores.isEmpty()) {
+            throw new IllegalArgumentException("At least one nonce store is required");
+        }
+        this.stores = stores.toArray(new NonceStore[stores.size()]);
+        localValidator = new ReplayAttackValidatorInMemoryImpl(expiry);
+        // requests are accepted within expiry on either side of the server time
+        ttl = expiry * 2;
+    }
+
+    @Override
+    public boolean checkNonceReplay(String nonce) {
+        if (nonce.length() > MAX_NONCE_LENGTH) {
+            // rejected before reaching the store, so it can't be accepted by failing open
+            logger.warn("Rejected nonce longer than " + MAX_NONCE_LENGTH + " characters");
+            return true;
+        }
+        if (localValidator.checkNonceReplay(nonce)) {
+            return true;
+        }
+        try {
+            if (!getStore(nonce).putIfAbsent(nonce, ttl).get(timeout, TimeUnit.MILLISECONDS)) {
+                replays.incrementAndGet();
+                return true;
+            }
+            return false;
+        } catch (TimeoutException e) {
+            return storeFailed("Nonce store timed out");
+        } catch (ExecutionException e) {
+            return storeFailed("Nonce store failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return storeFailed("Interrupted while waiting for nonce store");
+        }
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long to wait for the store
+     *
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isFailOpen() {
+        return failOpen;
+    }
+
+    /**
+     * Set whether nonces should be accepted when the store is unavailable (in which case replays against other servers
+     * will not be detected until it is available again)
+     *
+     * @param failOpen true to accept nonces, false to reject them (the default)
+     */
+    public void setFailOpen(boolean failOpen) {
+        this.failOpen = failOpen;
+    }
+
+    /**
+     * Get the number of nonces for which the store failed or timed out
+     *
+     * @return number of failures
+     */
+    public long getStoreFailures() {
+        return storeFailures.get();
+    }
+
+    /**
+     * Get the number of replays detected by the store (replays detected locally are counted by
+     * {@link #getLocalValidator()})
+     *
+     * @return number of replays
+     */
+    public long getReplays() {
+        return replays.get();
+    }
+
+    public ReplayAttackValidatorInMemoryImpl getLocalValidator() {
+        return localValidator;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(stores);
+    }
+
+    private NonceStore getStore(String nonce) {
+        int h = nonce.hashCode();
+        // spread the bits, since the low bits of String.hashCode() are poorly distributed for similar nonces
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return stores[(h & 0x7FFFFFFF) % stores.length];
+    }
+
+    private boolean storeFailed(String message) {
+        storeFailures.incrementAndGet();
+        logger.warn(message + (failOpen ? ", accepting nonce" : ", rejecting nonce"));
+        return !failOpen;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.security.SecureRandom;
+
+/**
+ * In-memory {@link ReplayAttackValidator}, which remembers 64-bit fingerprints of the nonces it has seen.
+ * <p>
+ * Since a request is accepted as long as its timestamp is within {@code expiry} of the server time, a nonce needs to be
+ * remembered for twice the expiry. Fingerprints are kept in time buckets that each cover an eighth of that retention,
+ * and a whole bucket is dropped at once when it ages out. To scale across cores, fingerprints are split across stripes
+ * which are locked independently.
+ * </p>
+ * <p>
+ * Memory is capped by {@code maxEntries}: once a stripe is full, new nonces are treated as replays (failing closed)
+ * until older buckets expire. {@link #getCapacityRejections()} counts how often that happened. Since
+ * {@link AuthenticationFilterHelper} only checks nonces of authenticated requests, only clients holding a valid key can
+ * fill it.
+ * </p>
+ * <p>
+ * Fingerprints are computed with a random per-instance seed, so nonce collisions can't be crafted. Replays are only
+ * detected within a single instance, use a shared store when running multiple servers.
+ * </p>
+ */
+public class ReplayAttackValidatorInMemoryImpl implements ReplayAttackValidator {
+    public static final int DEFAULT_MAX_ENTRIES = 10000000;
+    private static final int BUCKET_DIVISIONS = 8;
+    private final Clock clock;
+    private final long bucketDuration;
+    private final int bucketCount;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final int maxEntriesPerStripe;
+    private final long seed;
+
+    public ReplayAttackValidatorInMemoryImpl() {
+        this(AuthenticationFilterHelper.DEFAULT_EXPIRY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expiry Request expiry (as set in {@link AuthenticationFilterHelper})
+     */
+    public ReplayAttackValidatorInMemoryImpl(long expiry) {
+        this(expiry, DEFAULT_MAX_ENTRIES, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expiry     Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param maxEntries Maximum number of nonces to remember
+     * @param stripes    Number of independently locked stripes (will be rounded up to a power of two)
+     */
+    public ReplayAttackValidatorInMemoryImpl(long expiry, int maxEntries, int stripes) {
+        this(SystemClock.INSTANCE, expiry, maxEntries, stripes);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock      Clock used to assign nonces to buckets
+     * @param expiry     Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param maxEntries Maximum number of nonces to remember
+     * @param stripes    Number of independently locked stripes (will be rounded up to a power of two)
+     */
+    public ReplayAttackValidatorInMemoryImpl(Clock clock, long expiry, int maxEntries, int stripes) {
+        this(clock, expiry, maxEntries, stripes, new SecureRandom().nextLong());
+    }
+
+    ReplayAttackValidatorInMemoryImpl(Clock clock, long expiry, int maxEntries, int stripes, long seed) {
+        if (expiry <= 0 || maxEntries <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("expiry, maxEntries and stripes must be greater than 0");
+        }
+        this.clock = clock;
+        long retention = expiry * 2;
+        bucketDuration = Math.max(1L, (retention + BUCKET_DIVISIONS - 1) / BUCKET_DIVISIONS);
+        // entries in the oldest bucket must survive for the whole retention period
+        bucketCount = (int) ((retention + bucketDuration - 1) / bucketDuration) + 1;
+        int stripeCount = Integer.highestOneBit(stripes);
+        if (stripeCount < stripes) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe(bucketCount);
+        }
+        stripeMask = stripeCount - 1;
+        maxEntriesPerStripe = Math.max(1, maxEntries / stripeCount);
+        this.seed = seed;
+    }
+
+    @Override
+    public boolean checkNonceReplay(String nonce) {
+        return checkFingerprint(fingerprint(nonce), clock.currentTimeMillis());
+    }
+
+    /**
+     * Check a nonce fingerprint, and remember it if it hasn't been seen before
+     *
+     * @param fingerprint Nonce fingerprint
+     * @param time        Time at which the nonce was received
+     * @return true if the nonce is a replay (or the validator is full)
+     */
+    boolean checkFingerprint(long fingerprint, long time) {
+        Stripe stripe = stripes[(int) (fingerprint >>> 32) & stripeMask];
+        return stripe.check(fingerprint, time / bucketDuration);
+    }
+
+    /**
+     * Get the number of nonces currently remembered (including ones in buckets that have expired but not yet been
+     * dropped)
+     *
+     * @return number of nonces
+     */
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of nonces that have been checked
+     *
+     * @return number of checks
+     */
+    public long getChecks() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.checks;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of replayed nonces detected
+     *
+     * @return number of replays
+     */
+    public long getReplays() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.replays;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of nonces rejected because the maximum number of entries was reached
+     *
+     * @return number of rejections
+     */
+    public long getCapacityRejections() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.capacityRejections;
+            }
+        }
+        return count;
+    }
+
+    long fingerprint(String nonce) {
+        // FNV-1a over the chars, seeded and finalized with the murmur3 mixer
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < nonce.length(); i++) {
+            h ^= nonce.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= nonce.length();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // 0 is used to mark empty slots
+        return h != 0 ? h : 1;
+    }
+
+    private class Stripe {
+        private final LongSet[] buckets;
+        private final long[] bucketEpochs;
+        private long latestEpoch = Long.MIN_VALUE;
+        private int size;
+        private long checks;
+        private long replays;
+        private long capacityRejections;
+
+        Stripe(int bucketCount) {
+            buckets = new LongSet[bucketCount];
+            bucketEpochs = new long[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                bucketEpochs[i] = Long.MIN_VALUE;
+            }
+        }
+
+        synchronized boolean check(long fingerprint, long epoch) {
+            checks++;
+            if (epoch > latestEpoch) {
+                latestEpoch = epoch;
+            } else if (latestEpoch - epoch >= bucketCount) {
+                // the caller's time is older than the retention (stalled thread, or clock stepped back), so its bucket
+                // would be a live one: the newest bucket is used instead, which retains the nonce for longer
+                epoch = latestEpoch;
+            }
+            int current = (int) (epoch % bucketCount);
+            for (int i = 0; i < bucketCount; i++) {
+                LongSet bucket = buckets[i];
+                if (bucket != null) {
+                    if (latestEpoch - bucketEpochs[i] >= bucketCount || (i == current && bucketEpochs[i] != epoch)) {
+                        // bucket has aged out
+                        size -= bucket.size;
+                        buckets[i] = null;
+                    } else if (bucket.contains(fingerprint)) {
+                        replays++;
+                        return true;
+                    }
+                }
+            }
+            if (size >= maxEntriesPerStripe) {
+                capacityRejections++;
+                return true;
+            }
+            LongSet bucket = buckets[current];
+            if (bucket == null) {
+                bucket = new LongSet();
+                buckets[current] = bucket;
+                bucketEpochs[current] = epoch;
+            }
+            bucket.add(fingerprint);
+            size++;
+            return false;
+        }
+    }
+
+    /**
+     * Open addressing set of non-zero longs
+     */
+    static class LongSet {
+        private long[] table = new long[64];
+        private int size;
+
+        boolean contains(long value) {
+            int mask = table.length - 1;
+            for (int i = (int) value & mask; ; i = (i + 1) & mask) {
+                long v = table[i];
+                if (v == value) {
+                    return true;
+                } else if (v == 0) {
+                    return false;
+                }
+            }
+        }
+
+        void add(long value) {
+            if ((size + 1) * 2 > table.length) {
+                long[] old = table;
+                table = new long[old.length * 2];
+                for (long v : old) {
+                    if (v != 0) {
+                        insert(v);
+                    }
+                }
+            }
+            if (insert(value)) {
+                size++;
+            }
+        }
+
+        private boolean insert(long value) {
+            int mask = table.length - 1;
+            for (int i = (int) value & mask; ; i = (i + 1) & mask) {
+                long v = table[i];
+                if (v == value) {
+                    return false;
+                } else if (v == 0) {
+                    table[i] = value;
+                    return true;
+                }
+            }
+        }
+    }
+}
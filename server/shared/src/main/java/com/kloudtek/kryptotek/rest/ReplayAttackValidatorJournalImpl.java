@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ReplayAttackValidator} that survives restarts, by appending nonce fingerprints to a memory-mapped journal.
+ * <p>
+ * Nonces are checked against an in-memory index (see {@link ReplayAttackValidatorInMemoryImpl}), and new ones are
+ * appended to the current journal segment as a 16 bytes record (receive time and fingerprint). Each segment covers a
+ * slice of the retention period, and segments are deleted once they have aged out. On startup the index is rebuilt from
+ * the live segments.
+ * </p>
+ * <p>
+ * Appending only writes to the mapped memory, so records survive a crash of the JVM immediately. Segments are flushed
+ * to disk by a background thread every {@code syncInterval} milliseconds (group commit), so an operating system crash
+ * or power loss can lose at most that many milliseconds of nonces.
+ * </p>
+ * <p>
+ * Fingerprints are computed with a random seed which is stored in the journal directory, so the directory should
+ * only be readable by the server.
+ * </p>
+ */
+public class ReplayAttackValidatorJournalImpl implements ReplayAttackValidator, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayAttackValidatorJournalImpl.class);
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 100L;
+    private static final int SEGMENT_DIVISIONS = 8;
+    private static final int RECORD_SIZE = 16;
+    // records are written concurrently, so a crash can leave (small) gaps
+    private static final int MAX_GAP = 4096;
+    private static final String SEED_FILE = "seed";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("nonces-(\\d+)-(\\d+)\\.seg");
+    private final File directory;
+    private final Clock clock;
+    private final long segmentDuration;
+    private final int segmentCount;
+    private final int segmentSize;
+    private final ReplayAttackValidatorInMemoryImpl index;
+    private final List<Segment> openSegments = new ArrayList<Segment>();
+    private final ScheduledExecutorService syncExecutor;
+    private long sequence;
+    private volatile Segment current;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param directory Journal directory
+     * @param expiry    Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @throws IOException If an error occurred while loading the journal
+     */
+    public ReplayAttackValidatorJournalImpl(File directory, long expiry) throws IOException {
+        this(directory, expiry, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL, ReplayAttackValidatorInMemoryImpl.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory    Journal directory
+     * @param expiry       Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param segmentSize  Size of each segment file
+     * @param syncInterval Interval between flushes of the journal to disk, in milliseconds
+     * @param maxEntries   Maximum number of nonces to remember
+     * @throws IOException If an error occurred while loading the journal
+     */
+    public ReplayAttackValidatorJournalImpl(File directory, long expiry, int segmentSize, long syncInterval, int maxEntries) throws IOException {
+        this(directory, SystemClock.INSTANCE, expiry, segmentSize, syncInterval, maxEntries);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory    Journal directory
+     * @param clock        Clock used to assign nonces to segments
+     * @param expiry       Request expiry (as set in {@link AuthenticationFilterHelper})
+     * @param segmentSize  Size of each segment file
+     * @param syncInterval Interval between flushes of the journal to disk, in milliseconds
+     * @param maxEntries   Maximum number of nonces to remember
+     * @throws IOException If an error occurred while loading the journal
+     */
+    public ReplayAttackValidatorJournalImpl(File directory, Clock clock, long expiry, int segmentSize, long syncInterval, int maxEntries) throws IOException {
+        if (expiry <= 0 || segmentSize < RECORD_SIZE || syncInterval <= 0) {
+            throw new IllegalArgumentException("Invalid journal parameters");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory.getPath());
+        }
+        this.directory = directory;
+        this.clock = clock;
+        this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+        long retention = expiry * 2;
+        segmentDuration = Math.max(1L, (retention + SEGMENT_DIVISIONS - 1) / SEGMENT_DIVISIONS);
+        segmentCount = (int) ((retention + segmentDuration - 1) / segmentDuration) + 1;
+        index = new ReplayAttackValidatorInMemoryImpl(clock, expiry, maxEntries, Runtime.getRuntime().availableProcessors() * 4, loadSeed());
+        load();
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nonce-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (Exception e) {
+                    logger.error("Failed to sync nonce journal: " + e.getMessage(), e);
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean checkNonceReplay(String nonce) {
+        if (closed) {
+            throw new IllegalStateException("Nonce journal has been closed");
+        }
+        long now = clock.currentTimeMillis();
+        long fingerprint = index.fingerprint(nonce);
+        if (index.checkFingerprint(fingerprint, now)) {
+            return true;
+        }
+        long epoch = now / segmentDuration;
+        Segment segment = current;
+        if (segment == null || segment.epoch != epoch || !segment.append(now, fingerprint)) {
+            try {
+                append(epoch, now, fingerprint);
+            } catch (IOException e) {
+                // failing closed, since the nonce can't be persisted
+                logger.error("Unable to write to nonce journal: " + e.getMessage(), e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ReplayAttackValidatorInMemoryImpl getIndex() {
+        return index;
+    }
+
+    /**
+     * Flush all pending records to disk, and delete expired segments
+     *
+     * @throws IOException If an error occurred
+     */
+    public void sync() throws IOException {
+        long epoch = clock.currentTimeMillis() / segmentDuration;
+        List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<Segment>(openSegments);
+        }
+        // flushing outside of the lock, so that rolling to a new segment isn't blocked by it
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment != current) {
+                    // no more writes will happen to this segment
+                    segment.close();
+                    openSegments.remove(segment);
+                }
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches() && epoch - Long.parseLong(matcher.group(1)) >= segmentCount && !file.delete()) {
+                    logger.warn("Unable to delete expired nonce journal segment " + file.getPath());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        syncExecutor.shutdown();
+        try {
+            syncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : openSegments) {
+                segment.buffer.force();
+                segment.close();
+            }
+            openSegments.clear();
+            current = null;
+        }
+    }
+
+    private synchronized void append(long epoch, long time, long fingerprint) throws IOException {
+        while (true) {
+            Segment segment = current;
+            if (segment != null && segment.epoch == epoch && segment.append(time, fingerprint)) {
+                return;
+            }
+            Segment newSegment = new Segment(new File(directory, "nonces-" + epoch + "-" + (++sequence) + ".seg"), epoch);
+            openSegments.add(newSegment);
+            current = newSegment;
+        }
+    }
+
+    private long loadSeed() throws IOException {
+        File seedFile = new File(directory, SEED_FILE);
+        if (seedFile.exists()) {
+            byte[] data = IOUtils.toByteArray(seedFile);
+            if (data.length != 8) {
+                throw new IOException("Invalid nonce journal seed file " + seedFile.getPath() + " (" + data.length
+                        + " bytes instead of 8), delete the journal directory to reset it");
+            }
+            return ByteBuffer.wrap(data).getLong();
+        } else {
+            long seed = new SecureRandom().nextLong();
+            // written to a temporary file first, so that a crash can't leave a truncated seed behind
+            File tmpFile = new File(directory, SEED_FILE + ".tmp");
+            FileOutputStream os = new FileOutputStream(tmpFile);
+            try {
+                os.write(ByteBuffer.allocate(8).putLong(seed).array());
+                os.getFD().sync();
+            } finally {
+                IOUtils.close(os);
+            }
+            if (!tmpFile.renameTo(seedFile)) {
+                throw new IOException("Unable to rename " + tmpFile.getPath() + " to " + seedFile.getPath());
+            }
+            return seed;
+        }
+    }
+
+    private void load() throws IOException {
+        long epoch = clock.currentTimeMillis() / segmentDuration;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                sequence = Math.max(sequence, Long.parseLong(matcher.group(2)));
+                if (epoch - Long.parseLong(matcher.group(1)) < segmentCount) {
+                    segments.add(file);
+                }
+            }
+        }
+        // oldest first, so the index buckets are filled in order
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.valueOf(sequence(o1)).compareTo(sequence(o2));
+            }
+        });
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (File file : sorted) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                int gap = 0;
+                for (int pos = 0; pos + RECORD_SIZE <= buffer.capacity() && gap < MAX_GAP; pos += RECORD_SIZE) {
+                    long fingerprint = buffer.getLong(pos + 8);
+                    if (fingerprint == 0) {
+                        gap++;
+                    } else {
+                        gap = 0;
+                        index.checkFingerprint(fingerprint, buffer.getLong(pos));
+                        count++;
+                    }
+                }
+            } finally {
+                IOUtils.close(raf);
+            }
+        }
+        logger.info("Loaded " + count + " nonces from " + sorted.length + " journal segments in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static long sequence(File file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : 0;
+    }
+
+    private class Segment {
+        private final long epoch;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicInteger position = new AtomicInteger();
+
+        Segment(File path, long epoch) throws IOException {
+            this.epoch = epoch;
+            file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(segmentSize);
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } catch (IOException e) {
+                IOUtils.close(file);
+                throw e;
+            }
+            capacity = segmentSize / RECORD_SIZE;
+        }
+
+        boolean append(long time, long fingerprint) {
+            int slot = position.getAndIncrement();
+            if (slot >= capacity) {
+                return false;
+            }
+            int pos = slot * RECORD_SIZE;
+            buffer.putLong(pos, time);
+            buffer.putLong(pos + 8, fingerprint);
+            return true;
+        }
+
+        void close() {
+            IOUtils.close(file);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs rejected requests at a bounded rate, so that a flood of bad requests can't flood the logs (see
+ * {@link AuthenticationFilterHelper#setSecurityLogger(SecurityLogger)}).
+ * <p>
+ * Failures are aggregated per identity and {@link AuthResult.Code} over fixed intervals. The first failure of each
+ * identity and code in an interval is logged straight away (up to {@code maxEvents} per interval), and repeats are
+ * only counted. Once the interval is over, a summary of the repeats and of the failures that weren't logged is
+ * written on the next failure, or by {@link #flush()}. At most {@code maxKeys} identity and code pairs are tracked
+ * per interval, failures beyond that are only counted in total, so random identities can't exhaust memory.
+ * </p>
+ * <p>
+ * Values coming from the request are truncated and stripped of control characters before being logged. Stack
+ * traces are never logged. When debug logging is enabled, every failure is also logged at debug level.
+ * </p>
+ */
+public class SecurityLogger {
+    private static final Logger logger = LoggerFactory.getLogger(SecurityLogger.class);
+    public static final long DEFAULT_INTERVAL = 60000L;
+    public static final int DEFAULT_MAX_EVENTS = 100;
+    public static final int DEFAULT_MAX_KEYS = 10000;
+    private static final int MAX_VALUE_LENGTH = 200;
+    private final Clock clock;
+    private final long interval;
+    private final int maxEvents;
+    private final int maxKeys;
+    private volatile Window window;
+
+    public SecurityLogger() {
+        this(SystemClock.INSTANCE, DEFAULT_INTERVAL, DEFAULT_MAX_EVENTS, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock     Clock
+     * @param interval  Aggregation interval, in milliseconds
+     * @param maxEvents Maximum number of failures logged individually, and of summary lines, per interval
+     * @param maxKeys   Maximum number of identity and code pairs tracked per interval
+     */
+    public SecurityLogger(Clock clock, long interval, int maxEvents, int maxKeys) {
+        if (interval <= 0 || maxEvents <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("interval, maxEvents and maxKeys must be greater than 0");
+        }
+        this.clock = clock;
+        this.interval = interval;
+        this.maxEvents = maxEvents;
+        this.maxKeys = maxKeys;
+        window = new Window(clock.currentTimeMillis());
+    }
+
+    /**
+     * Record a rejected request
+     *
+     * @param identity Identity the request claimed, or null
+     * @param code     Failure code
+     * @param message  Failure description
+     */
+    public void log(String identity, AuthResult.Code code, String message) {
+        // sanitized before being used as a key, so long identities don't use up memory
+        identity = sanitize(identity);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Rejected request [" + code + "] identity=" + identity + ": " + sanitize(message));
+        }
+        Window window = rotate(false);
+        Key key = new Key(identity, code);
+        Counter counter = window.counters.get(key);
+        if (counter == null) {
+            if (window.counters.size() >= maxKeys) {
+                window.overflow.incrementAndGet();
+                return;
+            }
+            Counter existing = window.counters.putIfAbsent(key, counter = new Counter());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        if (counter.count.incrementAndGet() == 1 && window.logged.incrementAndGet() <= maxEvents) {
+            counter.logged = true;
+            write("Rejected request [" + code + "] identity=" + identity + ": " + sanitize(message));
+        }
+    }
+
+    /**
+     * Write the summary of the current interval, and start a new one
+     */
+    public void flush() {
+        rotate(true);
+    }
+
+    private Window rotate(boolean force) {
+        Window current = window;
+        long now = clock.currentTimeMillis();
+        if (!force && now - current.start < interval) {
+            return current;
+        }
+        synchronized (this) {
+            current = window;
+            if (!force && now - current.start < interval) {
+                return current;
+            }
+            window = new Window(now);
+        }
+        summarize(current, now);
+        return window;
+    }
+
+    private void summarize(Window window, long now) {
+        List<Map.Entry<Key, Counter>> entries = new ArrayList<Map.Entry<Key, Counter>>();
+        for (Map.Entry<Key, Counter> entry : window.counters.entrySet()) {
+            Counter counter = entry.getValue();
+            if (!counter.logged || counter.count.get() > 1) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<Key, Counter>>() {
+            @Override
+            public int compare(Map.Entry<Key, Counter> o1, Map.Entry<Key, Counter> o2) {
+                long c1 = o1.getValue().count.get();
+                long c2 = o2.getValue().count.get();
+                return c1 > c2 ? -1 : c1 == c2 ? 0 : 1;
+            }
+        });
+        long seconds = (now - window.start) / 1000L;
+        int lines = Math.min(entries.size(), maxEvents);
+        for (int i = 0; i < lines; i++) {
+            Map.Entry<Key, Counter> entry = entries.get(i);
+            Counter counter = entry.getValue();
+            long count = counter.logged ? counter.count.get() - 1 : counter.count.get();
+            write(count + (counter.logged ? " more" : "") + " rejected requests [" + entry.getKey().code + "] identity="
+                    + entry.getKey().identity + " in the last " + seconds + "s");
+        }
+        if (entries.size() > lines) {
+            write((entries.size() - lines) + " other identities had rejected requests in the last " + seconds + "s");
+        }
+        long overflow = window.overflow.get();
+        if (overflow > 0) {
+            write(overflow + " rejected requests from untracked identities in the last " + seconds + "s");
+        }
+    }
+
+    /**
+     * Write a log line
+     *
+     * @param message Message
+     */
+    protected void write(String message) {
+        logger.warn(message);
+    }
+
+    static String sanitize(String value) {
+        if (value == null) {
+            return null;
+        }
+        int length = Math.min(value.length(), MAX_VALUE_LENGTH);
+        StringBuilder sanitized = new StringBuilder(length + 3);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            sanitized.append(c < 0x20 || c == 0x7F ? '?' : c);
+        }
+        if (value.length() > length) {
+            sanitized.append("...");
+        }
+        return sanitized.toString();
+    }
+
+    private static class Window {
+        private final long start;
+        private final ConcurrentHashMap<Key, Counter> counters = new ConcurrentHashMap<Key, Counter>();
+        private final AtomicInteger logged = new AtomicInteger();
+        private final AtomicLong overflow = new AtomicLong();
+
+        private Window(long start) {
+            this.start = start;
+        }
+    }
+
+    private static class Counter {
+        private final AtomicLong count = new AtomicLong();
+        private volatile boolean logged;
+    }
+
+    private static class Key {
+        private final String identity;
+        private final AuthResult.Code code;
+
+        private Key(String identity, AuthResult.Code code) {
+            this.identity = identity;
+            this.code = code;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return code == key.code && (identity != null ? identity.equals(key.identity) : key.identity == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (identity != null ? identity.hashCode() : 0) + code.hashCode();
+        }
+    }
+}
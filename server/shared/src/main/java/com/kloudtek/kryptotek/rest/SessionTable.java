@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.key.HMACKey;
+import com.kloudtek.util.StringUtils;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded table of sessions opened through a {@link SessionHandshake}. Sessions expire a fixed time after they were
+ * opened (they are not extended by use), and expired sessions are purged when the table is full. When the table is
+ * still full after purging, new sessions are refused and clients keep using their long-term keys.
+ *
+ * @param <P> Principal type
+ */
+public class SessionTable<P> {
+    public static final long DEFAULT_TTL = 900000L;
+    public static final int DEFAULT_MAX_SESSIONS = 100000;
+    private final ConcurrentHashMap<String, Session<P>> sessions = new ConcurrentHashMap<String, Session<P>>();
+    private final SecureRandom random = new SecureRandom();
+    private final Clock clock;
+    private final long ttl;
+    private final int maxSessions;
+
+    public SessionTable() {
+        this(DEFAULT_TTL, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ttl         Session time to live, in milliseconds
+     * @param maxSessions Maximum number of sessions
+     */
+    public SessionTable(long ttl, int maxSessions) {
+        this(SystemClock.INSTANCE, ttl, maxSessions);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clock       Clock used to expire sessions
+     * @param ttl         Session time to live, in milliseconds
+     * @param maxSessions Maximum number of sessions
+     */
+    public SessionTable(Clock clock, long ttl, int maxSessions) {
+        if (ttl <= 0 || maxSessions <= 0) {
+            throw new IllegalArgumentException("ttl and maxSessions must be greater than 0");
+        }
+        this.clock = clock;
+        this.ttl = ttl;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Open a session
+     *
+     * @param identity  Identity of the principal
+     * @param principal Principal
+     * @param key       Session key
+     * @return session, or null if the table is full
+     */
+    public Session<P> create(String identity, P principal, HMACKey key) {
+        if (sessions.size() >= maxSessions) {
+            purge();
+            if (sessions.size() >= maxSessions) {
+                return null;
+            }
+        }
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        Session<P> session = new Session<P>(StringUtils.base64Encode(id), identity, principal, key, clock.currentTimeMillis() + ttl);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Get a session
+     *
+     * @param id Session id
+     * @return session, or null if it doesn't exist or has expired
+     */
+    public Session<P> get(String id) {
+        Session<P> session = sessions.get(id);
+        if (session != null && session.expiresAt <= clock.currentTimeMillis()) {
+            sessions.remove(id, session);
+            return null;
+        }
+        return session;
+    }
+
+    public void remove(String id) {
+        sessions.remove(id);
+    }
+
+    /**
+     * Remove all sessions of an identity (for example after its key has been revoked)
+     *
+     * @param identity Identity
+     */
+    public void removeAll(String identity) {
+        for (Iterator<Session<P>> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().identity.equals(identity)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove expired sessions
+     */
+    public void purge() {
+        long now = clock.currentTimeMillis();
+        for (Iterator<Session<P>> iterator = sessions.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public int getSize() {
+        return sessions.size();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public static class Session<P> {
+        private final String id;
+        private final String identity;
+        private final P principal;
+        private final HMACKey key;
+        private final long expiresAt;
+
+        Session(String id, String identity, P principal, HMACKey key, long expiresAt) {
+            this.id = id;
+            this.identity = identity;
+            this.principal = principal;
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public P getPrincipal() {
+            return principal;
+        }
+
+        public HMACKey getKey() {
+            return key;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
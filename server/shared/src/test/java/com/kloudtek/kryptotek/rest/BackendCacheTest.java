@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.BackendAccessException;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class BackendCacheTest {
+    @Test
+    public void testSingleFlight() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final BackendCache<String, String> cache = new BackendCache<String, String>(new BackendCache.Loader<String, String>() {
+            @Override
+            public String load(String key) throws BackendAccessException {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new BackendAccessException(e);
+                }
+                return key.toUpperCase();
+            }
+        }, 60000L, 100, null);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            Future<?>[] results = new Future<?>[10];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return cache.get("user");
+                    }
+                });
+            }
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<?> result : results) {
+                assertEquals(result.get(5, TimeUnit.SECONDS), "USER");
+            }
+            assertEquals(loads.get(), 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BackendCache<String, Integer> cache = new BackendCache<String, Integer>(new BackendCache.Loader<String, Integer>() {
+            @Override
+            public Integer load(String key) throws BackendAccessException {
+                int value = loads.incrementAndGet();
+                if (value == 1) {
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new BackendAccessException(e);
+                    }
+                }
+                return value;
+            }
+        }, 60000L, 100, null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> stale = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return cache.get("user");
+                }
+            });
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            cache.invalidate("user");
+            // doesn't wait for the load that started before invalidation
+            assertEquals(cache.get("user").intValue(), 2);
+            release.countDown();
+            assertEquals(stale.get(5, TimeUnit.SECONDS).intValue(), 1);
+            assertEquals(cache.get("user").intValue(), 2);
+            cache.invalidateAll();
+            assertEquals(cache.get("user").intValue(), 3);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExpiryAndRefresh() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        TestClock clock = new TestClock(1000L);
+        BackendCache<String, Integer> cache = new BackendCache<String, Integer>(clock, new BackendCache.Loader<String, Integer>() {
+            @Override
+            public Integer load(String key) throws BackendAccessException {
+                return loads.incrementAndGet();
+            }
+        }, 1000L, 100, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        assertEquals(cache.get("a").intValue(), 1);
+        clock.time += 500;
+        assertEquals(cache.get("a").intValue(), 1);
+        // refresh ahead returns the current value, and reloads in the background
+        clock.time += 300;
+        assertEquals(cache.get("a").intValue(), 1);
+        assertEquals(cache.get("a").intValue(), 2);
+        // expired
+        clock.time += 1000;
+        assertEquals(cache.get("a").intValue(), 3);
+        cache.invalidate("a");
+        assertEquals(cache.get("a").intValue(), 4);
+    }
+
+    @Test
+    public void testNullsNotCachedAndSizeBounded() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        BackendCache<Integer, Integer> cache = new BackendCache<Integer, Integer>(new BackendCache.Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) throws BackendAccessException {
+                loads.incrementAndGet();
+                return key < 0 ? null : key;
+            }
+        }, 60000L, 100, null);
+        assertNull(cache.get(-1));
+        assertNull(cache.get(-1));
+        assertEquals(loads.get(), 2);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(cache.get(i).intValue(), i);
+        }
+        assertTrue(cache.getSize() <= 100);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class BatchProcessorTest {
+    @Test
+    public void testSafeRequestsRunInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // both GETs must be running at the same time to get past the latch
+            final CountDownLatch latch = new CountDownLatch(2);
+            final List<String> unsafeOrder = new ArrayList<String>();
+            BatchDispatcher<Object> dispatcher = new BatchDispatcher<Object>() {
+                @Override
+                public BatchResponsePart dispatch(Object context, BatchRequestPart part) throws Exception {
+                    if (part.isSafe()) {
+                        latch.countDown();
+                        assertTrue(latch.await(5, TimeUnit.SECONDS));
+                    } else {
+                        synchronized (unsafeOrder) {
+                            unsafeOrder.add(part.getUri());
+                        }
+                        if (part.getUri().equals("/fail")) {
+                            throw new IllegalStateException("failed");
+                        }
+                    }
+                    return new BatchResponsePart(200, null, part.getUri().getBytes("UTF-8"));
+                }
+
+                @Override
+                public boolean isConcurrent() {
+                    return true;
+                }
+            };
+            List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+            parts.add(new BatchRequestPart("POST", "/a", null, null));
+            parts.add(new BatchRequestPart("GET", "/b", null, null));
+            parts.add(new BatchRequestPart("get", "/c", null, null));
+            parts.add(new BatchRequestPart("POST", "/fail", null, null));
+            List<BatchResponsePart> responses = new BatchProcessor(10, executor).process(new Object(), parts, dispatcher);
+            assertEquals(responses.size(), 4);
+            assertEquals(new String(responses.get(1).getContent(), "UTF-8"), "/b");
+            assertEquals(new String(responses.get(2).getContent(), "UTF-8"), "/c");
+            assertEquals(responses.get(3).getStatus(), 500);
+            assertEquals(unsafeOrder.toString(), "[/a, /fail]");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEnvelopeRoundTrip() throws Exception {
+        List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+        parts.add(new BatchRequestPart("PUT", "/x?y=z", Collections.singletonMap("Content-Type", "text/plain"), "data".getBytes("UTF-8")));
+        List<BatchRequestPart> decoded = BatchEnvelope.decodeRequests(BatchEnvelope.encodeRequests(parts), 10);
+        assertEquals(decoded.size(), 1);
+        assertEquals(decoded.get(0).getMethod(), "PUT");
+        assertEquals(decoded.get(0).getUri(), "/x?y=z");
+        assertEquals(decoded.get(0).getHeader("content-type"), "text/plain");
+        assertEquals(decoded.get(0).getContent(), "data".getBytes("UTF-8"));
+        try {
+            BatchEnvelope.decodeRequests(BatchEnvelope.encodeRequests(parts), 0);
+            fail("too many parts accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
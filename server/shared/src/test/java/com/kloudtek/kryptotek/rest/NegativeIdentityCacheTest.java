@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+public class NegativeIdentityCacheTest {
+    @Test
+    public void testExpiryAndInvalidation() {
+        TestClock clock = new TestClock(1000L);
+        NegativeIdentityCache cache = new NegativeIdentityCache(clock, 100L, 1000);
+        assertFalse(cache.isUnknown("bob"));
+        cache.addUnknown("bob");
+        cache.addUnknown("alice");
+        assertTrue(cache.isUnknown("bob"));
+        assertTrue(cache.isUnknown("alice"));
+        cache.invalidate("alice");
+        assertFalse(cache.isUnknown("alice"));
+        clock.time += 100;
+        assertFalse(cache.isUnknown("bob"));
+        assertEquals(cache.getHits(), 2);
+    }
+
+    @Test
+    public void testBounded() {
+        NegativeIdentityCache cache = new NegativeIdentityCache(60000L, 160);
+        for (int i = 0; i < 10000; i++) {
+            cache.addUnknown("user" + i);
+        }
+        assertTrue(cache.getSize() <= 160);
+        assertTrue(cache.isUnknown("user9999"));
+        assertFalse(cache.isUnknown("user0"));
+    }
+
+    @Test
+    public void testKnownIdentities() {
+        NegativeIdentityCache cache = new NegativeIdentityCache();
+        List<String> identities = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            identities.add("user" + i);
+        }
+        cache.setKnownIdentities(identities);
+        assertTrue(cache.isKnownIdentitiesEnabled());
+        for (String identity : identities) {
+            assertFalse(cache.isUnknown(identity));
+        }
+        assertTrue(cache.isUnknown("mallory"));
+        cache.addUnknown("carol");
+        cache.addKnownIdentity("carol");
+        assertFalse(cache.isUnknown("carol"));
+        // random identities are rejected without ever having been looked up
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (cache.isUnknown(UUID.randomUUID().toString())) {
+                rejected++;
+            }
+        }
+        assertTrue(rejected > 9700, "rejected " + rejected);
+        cache.setKnownIdentities(Arrays.asList("alice"));
+        assertTrue(cache.isUnknown("user1"));
+        cache.setKnownIdentities(null);
+        assertFalse(cache.isKnownIdentitiesEnabled());
+        assertFalse(cache.isUnknown("mallory"));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+public class ReplayAttackValidatorBloomFilterImplTest {
+    private static final long EXPIRY = 8000L;
+    private static final long EXACT_WINDOW = 1000L;
+
+    @Test
+    public void testReplay() {
+        TestValidator validator = new TestValidator(1024 * 1024);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        assertTrue(validator.checkNonceReplay(nonce));
+        assertEquals(validator.getReplays(), 1);
+        // no longer in the exact window, so detected by the bloom filter
+        validator.clock.time += EXACT_WINDOW * 3;
+        assertTrue(validator.checkNonceReplay(nonce));
+        assertEquals(validator.getProbableReplays(), 1);
+        validator.clock.time += EXPIRY * 2 - EXACT_WINDOW * 3;
+        assertTrue(validator.checkNonceReplay(nonce));
+        validator.clock.time += EXPIRY;
+        assertFalse(validator.checkNonceReplay(nonce));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        TestValidator validator = new TestValidator(64 * 1024);
+        for (int i = 0; i < 50000; i++) {
+            assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        }
+        validator.clock.time += EXACT_WINDOW * 2;
+        int falsePositives = 0;
+        for (int i = 0; i < 50000; i++) {
+            if (validator.checkNonceReplay(UUID.randomUUID().toString())) {
+                falsePositives++;
+            }
+        }
+        // ~10 bits per nonce with 7 hashes should be around 1%
+        assertTrue(falsePositives < 2500, "Too many false positives: " + falsePositives);
+    }
+
+    static class TestValidator extends ReplayAttackValidatorBloomFilterImpl {
+        final TestClock clock;
+
+        TestValidator(int bytesPerGeneration) {
+            this(new TestClock(1000000L), bytesPerGeneration);
+        }
+
+        private TestValidator(TestClock clock, int bytesPerGeneration) {
+            super(clock, EXPIRY, bytesPerGeneration, 7, EXACT_WINDOW);
+            this.clock = clock;
+        }
+    }
+}
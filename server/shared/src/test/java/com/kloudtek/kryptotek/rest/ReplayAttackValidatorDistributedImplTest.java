@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.*;
+
+public class ReplayAttackValidatorDistributedImplTest {
+    private static final long EXPIRY = 60000L;
+
+    @Test
+    public void testReplayAcrossNodes() throws Exception {
+        NonceStoreServer server1 = new NonceStoreServer();
+        NonceStoreServer server2 = new NonceStoreServer();
+        try {
+            ReplayAttackValidatorDistributedImpl node1 = new ReplayAttackValidatorDistributedImpl(EXPIRY,
+                    new NonceStoreClient(server1.getAddress()), new NonceStoreClient(server2.getAddress()));
+            ReplayAttackValidatorDistributedImpl node2 = new ReplayAttackValidatorDistributedImpl(EXPIRY,
+                    new NonceStoreClient(server1.getAddress()), new NonceStoreClient(server2.getAddress()));
+            for (int i = 0; i < 50; i++) {
+                String nonce = UUID.randomUUID().toString();
+                assertFalse(node1.checkNonceReplay(nonce));
+                assertTrue(node1.checkNonceReplay(nonce));
+                assertTrue(node2.checkNonceReplay(nonce));
+            }
+            // only the first replay is detected locally
+            assertEquals(node1.getReplays(), 0);
+            assertEquals(node2.getReplays(), 50);
+            assertEquals(server1.getSize() + server2.getSize(), 50);
+            assertTrue(server1.getSize() > 0 && server2.getSize() > 0);
+            node1.close();
+            node2.close();
+        } finally {
+            server1.close();
+            server2.close();
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        NonceStoreServer server = new NonceStoreServer();
+        NonceStoreClient client = new NonceStoreClient(server.getAddress());
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(client.putIfAbsent("nonce" + (i % 500), EXPIRY));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(results.get(i).get(5, TimeUnit.SECONDS).booleanValue(), i < 500);
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testUnresponsiveStoreReconnects() throws Exception {
+        // accepts connections but never replies
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        sockets.add(serverSocket.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        NonceStoreClient client = new NonceStoreClient(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+        try {
+            Future<Boolean> pending = client.putIfAbsent("pending", EXPIRY);
+            for (int i = 0; i < NonceStoreClient.DEFAULT_MAX_CONSECUTIVE_TIMEOUTS; i++) {
+                try {
+                    client.putIfAbsent("nonce" + i, EXPIRY).get(50, TimeUnit.MILLISECONDS);
+                    fail("Did not get expected timeout");
+                } catch (TimeoutException e) {
+                    // expected
+                }
+            }
+            try {
+                pending.get(1, TimeUnit.SECONDS);
+                fail("Pending request didn't fail with the connection");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            client.putIfAbsent("nonce", EXPIRY);
+            while (sockets.size() < 2) {
+                Thread.sleep(10);
+            }
+        } finally {
+            client.close();
+            serverSocket.close();
+            for (Socket socket : new ArrayList<Socket>(sockets)) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedNonce() throws Exception {
+        NonceStoreServer server = new NonceStoreServer();
+        NonceStoreClient client = new NonceStoreClient(server.getAddress());
+        ReplayAttackValidatorDistributedImpl validator = new ReplayAttackValidatorDistributedImpl(EXPIRY, new NonceStoreClient(server.getAddress()));
+        try {
+            StringBuilder nonce = new StringBuilder();
+            while (nonce.length() < 70000) {
+                nonce.append(UUID.randomUUID());
+            }
+            validator.setFailOpen(true);
+            assertTrue(validator.checkNonceReplay(nonce.toString()));
+            assertEquals(validator.getStoreFailures(), 0);
+            Future<Boolean> pending = client.putIfAbsent(UUID.randomUUID().toString(), EXPIRY);
+            try {
+                client.putIfAbsent(nonce.toString(), EXPIRY).get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            // only the oversized request failed, the connection is still usable
+            assertTrue(pending.get(5, TimeUnit.SECONDS));
+            assertTrue(client.putIfAbsent(UUID.randomUUID().toString(), EXPIRY).get(5, TimeUnit.SECONDS));
+        } finally {
+            validator.close();
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testStoreUnavailable() throws Exception {
+        NonceStoreServer server = new NonceStoreServer();
+        ReplayAttackValidatorDistributedImpl validator = new ReplayAttackValidatorDistributedImpl(EXPIRY, new NonceStoreClient(server.getAddress()));
+        assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        server.close();
+        assertTrue(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        validator.setFailOpen(true);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        // still rejected by the local validator
+        assertTrue(validator.checkNonceReplay(nonce));
+        assertEquals(validator.getStoreFailures(), 2);
+        validator.close();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+public class ReplayAttackValidatorInMemoryImplTest {
+    private static final long EXPIRY = 1000L;
+
+    @Test
+    public void testReplay() {
+        TestValidator validator = new TestValidator(EXPIRY, 1000, 4);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        assertTrue(validator.checkNonceReplay(nonce));
+        assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        assertEquals(validator.getChecks(), 3);
+        assertEquals(validator.getReplays(), 1);
+        assertEquals(validator.getSize(), 2);
+    }
+
+    @Test
+    public void testRetention() {
+        TestValidator validator = new TestValidator(EXPIRY, 1000, 4);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        // a request is valid until its timestamp is more than the expiry in the past, and it can be up to the expiry
+        // in the future
+        validator.clock.time += EXPIRY * 2;
+        assertTrue(validator.checkNonceReplay(nonce));
+        validator.clock.time += EXPIRY;
+        assertFalse(validator.checkNonceReplay(nonce));
+    }
+
+    @Test
+    public void testBucketsDropped() {
+        TestValidator validator = new TestValidator(EXPIRY, 1000, 1);
+        for (int i = 0; i < 100; i++) {
+            validator.checkNonceReplay(UUID.randomUUID().toString());
+        }
+        assertEquals(validator.getSize(), 100);
+        validator.clock.time += EXPIRY * 10;
+        validator.checkNonceReplay(UUID.randomUUID().toString());
+        assertEquals(validator.getSize(), 1);
+    }
+
+    @Test
+    public void testCapacity() {
+        TestValidator validator = new TestValidator(EXPIRY, 10, 1);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        }
+        assertTrue(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        assertEquals(validator.getCapacityRejections(), 1);
+        validator.clock.time += EXPIRY * 10;
+        assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final ReplayAttackValidatorInMemoryImpl validator = new ReplayAttackValidatorInMemoryImpl(EXPIRY * 60);
+        Thread[] threads = new Thread[8];
+        final int[] failures = new int[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        String nonce = UUID.randomUUID().toString();
+                        if (validator.checkNonceReplay(nonce) || !validator.checkNonceReplay(nonce)) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(failures[0], 0);
+        assertEquals(validator.getSize(), 80000);
+    }
+
+    @Test
+    public void testStaleTime() {
+        TestValidator validator = new TestValidator(EXPIRY, 1000, 1);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        // a caller whose time is a whole retention behind must not drop the live bucket
+        long now = validator.clock.time;
+        validator.clock.time -= EXPIRY * 2 + EXPIRY / 4;
+        String staleNonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(staleNonce));
+        validator.clock.time = now;
+        assertTrue(validator.checkNonceReplay(nonce));
+        assertTrue(validator.checkNonceReplay(staleNonce));
+        assertEquals(validator.getSize(), 2);
+    }
+
+    static class TestValidator extends ReplayAttackValidatorInMemoryImpl {
+        final TestClock clock;
+
+        TestValidator(long expiry, int maxEntries, int stripes) {
+            this(new TestClock(1000000L), expiry, maxEntries, stripes);
+        }
+
+        private TestValidator(TestClock clock, long expiry, int maxEntries, int stripes) {
+            super(clock, expiry, maxEntries, stripes);
+            this.clock = clock;
+        }
+    }
+}
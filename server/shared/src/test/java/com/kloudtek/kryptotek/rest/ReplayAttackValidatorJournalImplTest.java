@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.TempDir;
+import com.kloudtek.util.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.testng.Assert.*;
+
+public class ReplayAttackValidatorJournalImplTest {
+    private static final long EXPIRY = 8000L;
+    private TempDir dir;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        dir = new TempDir("noncejournal");
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        dir.close();
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        String[] nonces = new String[100];
+        TestValidator validator = new TestValidator(dir, 1000000L);
+        for (int i = 0; i < nonces.length; i++) {
+            nonces[i] = UUID.randomUUID().toString();
+            assertFalse(validator.checkNonceReplay(nonces[i]));
+            // spread over several segments, with some segments filling up
+            validator.clock.time += 100;
+        }
+        assertTrue(validator.checkNonceReplay(nonces[0]));
+        validator.close();
+        TestValidator restarted = new TestValidator(dir, validator.clock.time);
+        for (String nonce : nonces) {
+            assertTrue(restarted.checkNonceReplay(nonce));
+        }
+        assertFalse(restarted.checkNonceReplay(UUID.randomUUID().toString()));
+        restarted.close();
+    }
+
+    @Test
+    public void testExpiredSegmentsDeleted() throws Exception {
+        TestValidator validator = new TestValidator(dir, 1000000L);
+        String nonce = UUID.randomUUID().toString();
+        assertFalse(validator.checkNonceReplay(nonce));
+        validator.clock.time += EXPIRY * 3;
+        assertFalse(validator.checkNonceReplay(UUID.randomUUID().toString()));
+        validator.sync();
+        assertEquals(segments(), 1);
+        validator.close();
+        TestValidator restarted = new TestValidator(dir, validator.clock.time);
+        assertFalse(restarted.checkNonceReplay(nonce));
+        restarted.close();
+    }
+
+    @Test
+    public void testSeed() throws Exception {
+        TestValidator validator = new TestValidator(dir, 1000000L);
+        validator.close();
+        assertEquals(new File(dir, "seed").length(), 8);
+        assertFalse(new File(dir, "seed.tmp").exists());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncatedSeed() throws Exception {
+        IOUtils.write(new File(dir, "seed"), new byte[3]);
+        new TestValidator(dir, 1000000L);
+    }
+
+    private int segments() {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static class TestValidator extends ReplayAttackValidatorJournalImpl {
+        final TestClock clock;
+
+        TestValidator(File dir, long time) throws IOException {
+            this(dir, new TestClock(time));
+        }
+
+        private TestValidator(File dir, TestClock clock) throws IOException {
+            super(dir, clock, EXPIRY, 16 * 16, 50L, 1000);
+            this.clock = clock;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class SecurityLoggerTest {
+    @Test
+    public void testAggregation() {
+        final long[] time = {1000L};
+        TestSecurityLogger securityLogger = new TestSecurityLogger(time, 2, 100);
+        for (int i = 0; i < 50; i++) {
+            securityLogger.log("bob", AuthResult.Code.INVALID_SIGNATURE, "Unauthorized request (invalid signature)");
+        }
+        securityLogger.log("bob", AuthResult.Code.EXPIRED_TIMESTAMP, "Unauthorized request (expired timestamp)");
+        securityLogger.log("alice", AuthResult.Code.INVALID_SIGNATURE, "Unauthorized request (invalid signature)");
+        assertEquals(securityLogger.lines.size(), 2);
+        assertEquals(securityLogger.lines.get(0), "Rejected request [INVALID_SIGNATURE] identity=bob: Unauthorized request (invalid signature)");
+        time[0] += 60000L;
+        securityLogger.log("bob", AuthResult.Code.INVALID_SIGNATURE, "Unauthorized request (invalid signature)");
+        assertEquals(securityLogger.lines.subList(2, securityLogger.lines.size()), Arrays.asList(
+                "49 more rejected requests [INVALID_SIGNATURE] identity=bob in the last 60s",
+                "1 rejected requests [INVALID_SIGNATURE] identity=alice in the last 60s",
+                "Rejected request [INVALID_SIGNATURE] identity=bob: Unauthorized request (invalid signature)"));
+        securityLogger.flush();
+        assertEquals(securityLogger.lines.size(), 5);
+    }
+
+    @Test
+    public void testBoundedKeys() {
+        TestSecurityLogger securityLogger = new TestSecurityLogger(new long[]{0}, 10, 10);
+        for (int i = 0; i < 1000; i++) {
+            securityLogger.log("user" + i, AuthResult.Code.USER_NOT_FOUND, "Unauthorized request (principal not found)");
+        }
+        assertEquals(securityLogger.lines.size(), 10);
+        securityLogger.flush();
+        assertEquals(securityLogger.lines.get(securityLogger.lines.size() - 1), "990 rejected requests from untracked identities in the last 0s");
+    }
+
+    @Test
+    public void testSanitize() {
+        TestSecurityLogger securityLogger = new TestSecurityLogger(new long[]{0}, 10, 10);
+        StringBuilder identity = new StringBuilder("bob\r\nfake log line");
+        for (int i = 0; i < 1000; i++) {
+            identity.append('x');
+        }
+        securityLogger.log(identity.toString(), AuthResult.Code.USER_NOT_FOUND, "principal not found");
+        String line = securityLogger.lines.get(0);
+        assertTrue(line.startsWith("Rejected request [USER_NOT_FOUND] identity=bob??fake log line"));
+        assertFalse(line.contains("\n"));
+        assertTrue(line.length() < 300);
+    }
+
+    private static class TestSecurityLogger extends SecurityLogger {
+        private final List<String> lines = new ArrayList<String>();
+
+        private TestSecurityLogger(final long[] time, int maxEvents, int maxKeys) {
+            super(new Clock() {
+                @Override
+                public long currentTimeMillis() {
+                    return time[0];
+                }
+            }, 60000L, maxEvents, maxKeys);
+        }
+
+        @Override
+        protected void write(String message) {
+            lines.add(message);
+        }
+    }
+}
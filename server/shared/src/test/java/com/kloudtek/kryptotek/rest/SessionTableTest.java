@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.jce.JCECryptoEngine;
+import com.kloudtek.kryptotek.key.HMACKey;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class SessionTableTest {
+    private static final HMACKey KEY = new JCECryptoEngine().generateHMACKey(DigestAlgorithm.SHA256);
+
+    @Test
+    public void testExpiry() {
+        TestSessionTable table = new TestSessionTable(1000L, 10);
+        SessionTable.Session<String> session = table.create("user", "principal", KEY);
+        assertSame(table.get(session.getId()), session);
+        table.time[0] += 999L;
+        assertSame(table.get(session.getId()), session);
+        table.time[0] += 1L;
+        assertNull(table.get(session.getId()));
+        assertEquals(table.getSize(), 0);
+    }
+
+    @Test
+    public void testCapacity() {
+        TestSessionTable table = new TestSessionTable(1000L, 2);
+        SessionTable.Session<String> first = table.create("user1", "principal", KEY);
+        assertNotNull(table.create("user2", "principal", KEY));
+        assertNull(table.create("user3", "principal", KEY));
+        table.removeAll("user1");
+        assertNull(table.get(first.getId()));
+        assertNotNull(table.create("user3", "principal", KEY));
+        // expired sessions are purged to make room
+        table.time[0] += 1000L;
+        assertNotNull(table.create("user4", "principal", KEY));
+        assertEquals(table.getSize(), 1);
+    }
+
+    static class TestSessionTable extends SessionTable<String> {
+        final long[] time;
+
+        TestSessionTable(long ttl, int maxSessions) {
+            this(new long[]{1000000L}, ttl, maxSessions);
+        }
+
+        private TestSessionTable(final long[] time, long ttl, int maxSessions) {
+            super(new Clock() {
+                @Override
+                public long currentTimeMillis() {
+                    return time[0];
+                }
+            }, ttl, maxSessions);
+            this.time = time;
+        }
+    }
+}
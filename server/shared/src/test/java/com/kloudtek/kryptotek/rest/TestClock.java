@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Clock that only moves when told to
+ */
+class TestClock implements Clock {
+    volatile long time;
+
+    TestClock(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return time;
+    }
+}
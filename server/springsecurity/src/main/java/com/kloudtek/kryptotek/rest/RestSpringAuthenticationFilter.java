@@ -1,10 +1,12 @@
 package com.kloudtek.kryptotek.rest;
 
+import com.kloudtek.kryptotek.Digest;
 import com.kloudtek.util.InvalidBackendDataException;
-import com.kloudtek.util.TimeUtils;
 import com.kloudtek.util.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.access.WebInvocationPrivilegeEvaluator;
 import org.springframework.web.filter.GenericFilterBean;
 
 import javax.servlet.*;
@@ -13,7 +15,12 @@ import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.*;
-import java.util.Date;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
 import static com.kloudtek.kryptotek.rest.SpringAuthenticationFilterHelper.STREAM_ATTR;
@@ -23,6 +30,9 @@ import static com.kloudtek.kryptotek.rest.SpringAuthenticationFilterHelper.STREA
  */
 public class RestSpringAuthenticationFilter extends GenericFilterBean {
     private SpringAuthenticationFilterHelper springAuthenticationFilterHelper;
+    private boolean streamingResponses;
+    private WebInvocationPrivilegeEvaluator privilegeEvaluator;
+    private boolean forwardsFiltered;
 
     public RestSpringAuthenticationFilter(SpringAuthenticationFilterHelper springAuthenticationFilterHelper) {
         this.springAuthenticationFilterHelper = springAuthenticationFilterHelper;
@@ -37,21 +47,52 @@ public class RestSpringAuthenticationFilter extends GenericFilterBean {
             String identity = request.getHeader(HEADER_IDENTITY);
             String timestampStr = request.getHeader(HEADER_TIMESTAMP);
             String signature = request.getHeader(HEADER_SIGNATURE);
+            AuthMetrics metrics = springAuthenticationFilterHelper.getMetrics();
+            long start = metrics.start();
             try {
-                SigningUserDetails userDetails = springAuthenticationFilterHelper.authenticateRequest(request.getInputStream(), nonce, identity, timestampStr,
-                        signature, request.getMethod(), request.getRequestURI(), request.getQueryString(), request);
+                // the input stream is only accessed once the headers have been checked, so bad requests don't get a 100 Continue
+                AuthResult<SigningUserDetails> result = springAuthenticationFilterHelper.checkHeaders(
+                        nonce, identity, timestampStr, signature, request.getMethod(), request.getRequestURI(), request.getQueryString(), request);
+                if (result.isSuccess()) {
+                    result = springAuthenticationFilterHelper.checkBody(result.getPending(), request.getInputStream(), request);
+                }
+                if (!result.isSuccess()) {
+                    // already reported to the security logger, the request proceeds unauthenticated
+                    chain.doFilter(request, response);
+                    return;
+                }
+                SigningUserDetails userDetails = result.getPrincipal();
                 SecurityContextHolder.getContext().setAuthentication(new SignedRequestAuthenticationToken(userDetails));
+                metrics.stop(AuthStage.AUTHENTICATION, start);
                 InputStream stream = (InputStream) request.getAttribute(STREAM_ATTR);
                 if (stream != null) {
                     request.removeAttribute(STREAM_ATTR);
+                    if (springAuthenticationFilterHelper.isBatchRequest(request.getMethod(), request.getRequestURI())) {
+                        processBatch(request, response, stream, userDetails, nonce, signature);
+                        return;
+                    }
+                    if (springAuthenticationFilterHelper.isSessionRequest(request.getMethod(), request.getRequestURI())) {
+                        openSession(request, response, stream, userDetails, identity, nonce, signature);
+                        return;
+                    }
+                    if (streamingResponses && Boolean.parseBoolean(request.getHeader(HEADER_ACCEPT_DIGESTBODY)) && acceptsTrailers(request)) {
+                        Map<String, String> trailers = TrailerFields.install(response);
+                        if (trailers != null) {
+                            streamResponse(request, response, chain, stream, userDetails, nonce, signature, trailers);
+                            return;
+                        }
+                    }
                     ResponseWrapper rw = new ResponseWrapper(response);
-                    chain.doFilter(new RequestWrapper(request, stream), rw);
+                    if (!dispatch(chain, request, rw, stream)) {
+                        response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Access Denied");
+                        return;
+                    }
                     rw.outputStreamWrapper.os.close();
                     byte[] respData = rw.outputStreamWrapper.os.toByteArray();
                     RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature,
                             rw.err != null ? rw.err : response.getStatus(), rw.err != null, respData);
-                    response.setHeader(HEADER_TIMESTAMP, TimeUtils.formatISOUTCDateTime(new Date()));
-                    response.setHeader(HEADER_SIGNATURE, springAuthenticationFilterHelper.signResponse(userDetails, responseSigner.getDataToSign()));
+                    response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+                    response.setHeader(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
                     if (rw.err != null) {
                         response.setHeader(HEADER_EXCLUDEBODY, "true");
                     }
@@ -73,10 +114,6 @@ public class RestSpringAuthenticationFilter extends GenericFilterBean {
                     response.flushBuffer();
                     return;
                 }
-            } catch (AuthenticationFailedException e) {
-                //
-            } catch (InvalidRequestException e) {
-                //
             } catch (InvalidBackendDataException e) {
                 response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
                 response.getWriter().write(e.getMessage());
@@ -85,6 +122,291 @@ public class RestSpringAuthenticationFilter extends GenericFilterBean {
         chain.doFilter(request, response);
     }
 
+    /**
+     * Write the response body straight to the container while digesting it, and send the signature as a
+     * {@link RESTRequestSigner#HEADER_SIGNATURE} trailer.
+     */
+    private void streamResponse(HttpServletRequest request, HttpServletResponse response, FilterChain chain, InputStream stream,
+                                SigningUserDetails userDetails, String nonce, String signature, Map<String, String> trailers)
+            throws IOException, ServletException, InvalidBackendDataException {
+        StreamingResponseWrapper rw = new StreamingResponseWrapper(response, springAuthenticationFilterHelper.createContentDigest(springAuthenticationFilterHelper.getSignatureAlgorithm(request)));
+        if (!dispatch(chain, request, rw, stream)) {
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Access Denied");
+            } else {
+                // too late to change the status, withholding the signature will cause the client to reject the response
+                logger.warn("Request content signature is invalid but response has already been committed");
+                rw.close();
+            }
+            return;
+        }
+        if (rw.err != null && !response.isCommitted()) {
+            RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, rw.err, true, null);
+            response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+            response.setHeader(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
+            response.setHeader(HEADER_EXCLUDEBODY, "true");
+            if (rw.errMsg != null) {
+                response.sendError(rw.err, rw.errMsg);
+            } else {
+                response.sendError(rw.err);
+            }
+            return;
+        }
+        if (rw.outputStream == null) {
+            // no content was written, so the signature can still go in the headers
+            RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, response.getStatus(), false, null);
+            response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+            response.setHeader(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
+        } else {
+            RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, response.getStatus(), false, rw.outputStream.digest.digest());
+            responseSigner.setDigestedContent(true);
+            trailers.put(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
+        }
+        rw.close();
+    }
+
+    /**
+     * Pass the request down the chain, then make sure its content has been fully read and verified. If the application
+     * failed because the content it read doesn't match the signature, the failure is reported as invalid content rather
+     * than propagated as a server error.
+     *
+     * @return true if the content is valid
+     */
+    private boolean dispatch(FilterChain chain, HttpServletRequest request, HttpServletResponse response, InputStream stream) throws IOException, ServletException {
+        try {
+            chain.doFilter(new RequestWrapper(request, stream), response);
+        } catch (IOException e) {
+            if (isContentValid(stream)) {
+                throw e;
+            }
+            return false;
+        } catch (ServletException e) {
+            if (isContentValid(stream)) {
+                throw e;
+            }
+            return false;
+        }
+        return isContentValid(stream);
+    }
+
+    private boolean isContentValid(InputStream stream) {
+        if (stream instanceof DigestVerifyingInputStream) {
+            try {
+                ((DigestVerifyingInputStream) stream).verifyFully();
+            } catch (IOException e) {
+                logger.warn("Request content is invalid: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dispatch the sub-requests of a batch (see {@link BatchEnvelope}), and send their responses as a single signed
+     * response.
+     */
+    private void processBatch(HttpServletRequest request, HttpServletResponse response, InputStream stream,
+                              SigningUserDetails userDetails, String nonce, String signature) throws IOException, InvalidBackendDataException {
+        byte[] envelope = readVerifiedContent(stream, response);
+        if (envelope == null) {
+            return;
+        }
+        BatchProcessor batchProcessor = springAuthenticationFilterHelper.getBatchProcessor();
+        List<BatchRequestPart> parts;
+        try {
+            parts = BatchEnvelope.decodeRequests(envelope, batchProcessor.getMaxParts());
+        } catch (IOException e) {
+            RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, HttpServletResponse.SC_BAD_REQUEST, true, null);
+            response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+            response.setHeader(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
+            response.setHeader(HEADER_EXCLUDEBODY, "true");
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        AuthorizingBatchDispatcher dispatcher = new AuthorizingBatchDispatcher(new ServletBatchDispatcher(response),
+                SecurityContextHolder.getContext().getAuthentication());
+        byte[] respData = BatchEnvelope.encodeResponses(batchProcessor.process(request, parts, dispatcher));
+        writeSignedResponse(request, response, userDetails, nonce, signature, BatchEnvelope.CONTENT_TYPE, respData);
+    }
+
+    /**
+     * Open a session (see {@link SessionHandshake}), and send the handshake response.
+     */
+    private void openSession(HttpServletRequest request, HttpServletResponse response, InputStream stream, SigningUserDetails userDetails,
+                             String identity, String nonce, String signature) throws IOException, InvalidBackendDataException {
+        byte[] clientPublicKey = readVerifiedContent(stream, response);
+        if (clientPublicKey != null) {
+            byte[] respData;
+            try {
+                respData = springAuthenticationFilterHelper.openSession(userDetails, identity, request.getHeader(HEADER_SESSION), clientPublicKey, request);
+            } catch (InvalidRequestException e) {
+                logger.warn(e.getMessage(), e);
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            writeSignedResponse(request, response, userDetails, nonce, signature, SessionHandshake.CONTENT_TYPE, respData);
+        }
+    }
+
+    /**
+     * Read the request content, making sure it has been verified
+     *
+     * @return content, or null if it is invalid (in which case an error has been sent)
+     */
+    private static byte[] readVerifiedContent(InputStream stream, HttpServletResponse response) throws IOException {
+        try {
+            byte[] content = IOUtils.toByteArray(stream);
+            if (stream instanceof DigestVerifyingInputStream) {
+                ((DigestVerifyingInputStream) stream).verifyFully();
+            }
+            return content;
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Access Denied");
+            return null;
+        }
+    }
+
+    private void writeSignedResponse(HttpServletRequest request, HttpServletResponse response, SigningUserDetails userDetails, String nonce,
+                                     String signature, String contentType, byte[] respData) throws IOException, InvalidBackendDataException {
+        RESTResponseSigner responseSigner = new RESTResponseSigner(nonce, signature, HttpServletResponse.SC_OK, false, respData);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setContentLength(respData.length);
+        response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+        response.setHeader(HEADER_SIGNATURE, signResponse(request, userDetails, responseSigner.getDataToSign()));
+        OutputStream os = response.getOutputStream();
+        try {
+            os.write(respData);
+        } finally {
+            IOUtils.close(os);
+        }
+    }
+
+    /**
+     * Sign a response with the key and algorithm used by the request
+     */
+    private String signResponse(HttpServletRequest request, SigningUserDetails userDetails, byte[] data) throws InvalidBackendDataException {
+        return springAuthenticationFilterHelper.signResponse(userDetails, request.getHeader(HEADER_SESSION),
+                springAuthenticationFilterHelper.getSignatureAlgorithm(request), data);
+    }
+
+    private static boolean acceptsTrailers(HttpServletRequest request) {
+        Enumeration<String> te = request.getHeaders("TE");
+        if (te != null) {
+            while (te.hasMoreElements()) {
+                for (String token : te.nextElement().split(",")) {
+                    String value = token.trim();
+                    int idx = value.indexOf(';');
+                    if (idx != -1) {
+                        value = value.substring(0, idx).trim();
+                    }
+                    if (value.equalsIgnoreCase("trailers")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean isStreamingResponses() {
+        return streamingResponses;
+    }
+
+    /**
+     * If set to true, responses to clients that advertise {@code TE: trailers} and accept digested content (see
+     * {@link RESTRequestSigner#HEADER_ACCEPT_DIGESTBODY}) will be streamed rather than buffered,
+     * with the signature covering the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY}) and sent as
+     * an HTTP trailer. This requires a Servlet 4 container, otherwise responses are buffered as usual.
+     * <p>
+     * Clients that advertise trailers must verify the trailer signature themselves, against the digest of the body
+     * once it has been fully read, and must not trust the body before then. The httpcomponents client interceptor
+     * doesn't advertise trailers, so it always receives responses signed in the headers.
+     * </p>
+     *
+     * @param streamingResponses true to stream responses
+     */
+    public void setStreamingResponses(boolean streamingResponses) {
+        this.streamingResponses = streamingResponses;
+    }
+
+    public WebInvocationPrivilegeEvaluator getPrivilegeEvaluator() {
+        return privilegeEvaluator;
+    }
+
+    /**
+     * Set the evaluator used to check that the batch principal may access the URI of each batch sub-request (see
+     * {@link SpringAuthenticationFilterHelper#setBatchPath(String)}). Sub-requests are forwarded, and so don't go
+     * through the Spring Security filter chain unless it is registered for FORWARD dispatches. The evaluator of the
+     * application's security configuration is available from {@code WebSecurity.getPrivilegeEvaluator()}.
+     *
+     * @param privilegeEvaluator evaluator
+     */
+    public void setPrivilegeEvaluator(WebInvocationPrivilegeEvaluator privilegeEvaluator) {
+        this.privilegeEvaluator = privilegeEvaluator;
+    }
+
+    public boolean isForwardsFiltered() {
+        return forwardsFiltered;
+    }
+
+    /**
+     * Declare that the Spring Security filter chain is registered for FORWARD dispatches, so that batch sub-requests
+     * can be dispatched without a privilege evaluator (see {@link #setPrivilegeEvaluator}). When neither is set, batch
+     * sub-requests are refused with a 403 status.
+     *
+     * @param forwardsFiltered true if forwards go through the filter chain
+     */
+    public void setForwardsFiltered(boolean forwardsFiltered) {
+        this.forwardsFiltered = forwardsFiltered;
+    }
+
+    /**
+     * Checks that the batch principal may access a sub-request's URI before dispatching it
+     */
+    private class AuthorizingBatchDispatcher implements BatchDispatcher<HttpServletRequest> {
+        private final BatchDispatcher<HttpServletRequest> dispatcher;
+        private final Authentication authentication;
+
+        AuthorizingBatchDispatcher(BatchDispatcher<HttpServletRequest> dispatcher, Authentication authentication) {
+            this.dispatcher = dispatcher;
+            this.authentication = authentication;
+        }
+
+        @Override
+        public BatchResponsePart dispatch(HttpServletRequest request, BatchRequestPart part) throws Exception {
+            if (!isAllowed(request, part)) {
+                return new BatchResponsePart(HttpServletResponse.SC_FORBIDDEN, null, null);
+            }
+            return dispatcher.dispatch(request, part);
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return dispatcher.isConcurrent();
+        }
+
+        private boolean isAllowed(HttpServletRequest request, BatchRequestPart part) {
+            WebInvocationPrivilegeEvaluator privilegeEvaluator = RestSpringAuthenticationFilter.this.privilegeEvaluator;
+            if (privilegeEvaluator == null) {
+                if (!forwardsFiltered) {
+                    logger.warn("Refusing batch sub-request to " + part.getUri() + ": no privilege evaluator set and forwards not filtered");
+                }
+                return forwardsFiltered;
+            }
+            String uri = part.getUri();
+            String contextPath = request.getContextPath();
+            if (contextPath != null && contextPath.length() > 0 && uri.startsWith(contextPath)) {
+                uri = uri.substring(contextPath.length());
+            }
+            int idx = uri.indexOf('?');
+            if (idx != -1) {
+                uri = uri.substring(0, idx);
+            }
+            return privilegeEvaluator.isAllowed(contextPath, uri, part.getMethod(), authentication);
+        }
+    }
+
 
     public class RequestWrapper extends HttpServletRequestWrapper {
         private InputStreamWrapper stream;
@@ -178,6 +500,25 @@ public class RestSpringAuthenticationFilter extends GenericFilterBean {
                 throw e;
             }
         }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            try {
+                int read = is.read(b, off, len);
+                if (read == -1) {
+                    finished = true;
+                    if (readListener != null) {
+                        readListener.onAllDataRead();
+                    }
+                }
+                return read;
+            } catch (IOException e) {
+                if (readListener != null) {
+                    readListener.onError(e);
+                }
+                throw e;
+            }
+        }
     }
 
     public class OutputStreamWrapper extends ServletOutputStream {
@@ -220,4 +561,191 @@ public class RestSpringAuthenticationFilter extends GenericFilterBean {
             os.close();
         }
     }
+
+    public class StreamingResponseWrapper extends HttpServletResponseWrapper {
+        private final Digest digest;
+        private DigestingOutputStream outputStream;
+        private PrintWriter writer;
+        private Integer err;
+        private String errMsg;
+
+        StreamingResponseWrapper(HttpServletResponse response, Digest digest) {
+            super(response);
+            this.digest = digest;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return openStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(openStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private DigestingOutputStream openStream() throws IOException {
+            if (outputStream == null) {
+                HttpServletResponse response = (HttpServletResponse) getResponse();
+                response.setHeader(HEADER_TIMESTAMP, springAuthenticationFilterHelper.createResponseTimestamp());
+                response.setHeader(HEADER_DIGESTBODY, "true");
+                response.setHeader("Trailer", HEADER_SIGNATURE);
+                outputStream = new DigestingOutputStream(response.getOutputStream(), digest);
+            }
+            return outputStream;
+        }
+
+        // the body is sent chunked so the trailer can follow it
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            err = sc;
+            errMsg = msg;
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            err = sc;
+        }
+
+        void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            } else if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
+    public class DigestingOutputStream extends ServletOutputStream {
+        private final ServletOutputStream os;
+        private final Digest digest;
+
+        DigestingOutputStream(ServletOutputStream os, Digest digest) {
+            this.os = os;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean isReady() {
+            return os.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            os.setWriteListener(writeListener);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest.update((byte) b);
+            os.write(b);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            os.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    /**
+     * Access to the Servlet 4 trailer API through reflection, so the filter keeps working on Servlet 3.1 containers.
+     */
+    static class TrailerFields implements java.util.function.Supplier<Map<String, String>> {
+        private final Map<String, String> fields = new HashMap<String, String>();
+
+        @Override
+        public Map<String, String> get() {
+            return fields;
+        }
+
+        /**
+         * Register trailer fields on the response.
+         *
+         * @param response response
+         * @return map that trailers should be added to, or null if the container doesn't support trailers
+         */
+        static Map<String, String> install(HttpServletResponse response) {
+            try {
+                TrailerFields trailerFields = new TrailerFields();
+                Method setter = response.getClass().getMethod("setTrailerFields", java.util.function.Supplier.class);
+                setter.invoke(response, trailerFields);
+                Method getter = response.getClass().getMethod("getTrailerFields");
+                // some containers accept the supplier but don't actually send trailers for this response
+                if (getter.invoke(response) == trailerFields) {
+                    return trailerFields.fields;
+                }
+            } catch (NoSuchMethodException e) {
+                //
+            } catch (IllegalAccessException e) {
+                //
+            } catch (InvocationTargetException e) {
+                // trailers not supported for this response (ie: HTTP/1.0)
+            }
+            return null;
+        }
+    }
 }
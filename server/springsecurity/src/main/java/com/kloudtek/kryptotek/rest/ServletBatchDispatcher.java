@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * {@link BatchDispatcher} that forwards each sub-request to the servlet container (using a {@link RequestDispatcher}),
+ * and captures its response. Forwards happen on the request thread, so sub-requests are always processed sequentially.
+ * Forwards only go through filters registered for FORWARD dispatches, so {@link RestSpringAuthenticationFilter} checks
+ * access to each sub-request before dispatching it.
+ */
+public class ServletBatchDispatcher implements BatchDispatcher<HttpServletRequest> {
+    private final HttpServletResponse response;
+
+    /**
+     * Constructor
+     *
+     * @param response Response of the batch request (nothing is written to it)
+     */
+    public ServletBatchDispatcher(HttpServletResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public BatchResponsePart dispatch(HttpServletRequest request, BatchRequestPart part) throws Exception {
+        String path = part.getUri();
+        String contextPath = request.getContextPath();
+        if (contextPath != null && contextPath.length() > 0 && path.startsWith(contextPath)) {
+            path = path.substring(contextPath.length());
+        }
+        RequestDispatcher requestDispatcher = request.getRequestDispatcher(path);
+        if (requestDispatcher == null) {
+            return new BatchResponsePart(HttpServletResponse.SC_NOT_FOUND, null, null);
+        }
+        SubResponse subResponse = new SubResponse(response);
+        requestDispatcher.forward(new SubRequest(request, part), subResponse);
+        return subResponse.toResponsePart();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    static class SubRequest extends HttpServletRequestWrapper {
+        private final BatchRequestPart part;
+        private final ByteArrayServletInputStream inputStream;
+
+        SubRequest(HttpServletRequest request, BatchRequestPart part) {
+            super(request);
+            this.part = part;
+            inputStream = new ByteArrayServletInputStream(part.getContent());
+        }
+
+        @Override
+        public String getMethod() {
+            return part.getMethod();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return part.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            String value = part.getHeader(name);
+            return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(part.getHeaders().keySet());
+        }
+
+        @Override
+        public int getIntHeader(String name) {
+            String value = part.getHeader(name);
+            return value != null ? Integer.parseInt(value) : -1;
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            // not supported in sub-requests
+            return -1;
+        }
+
+        @Override
+        public String getContentType() {
+            return part.getHeader("Content-Type");
+        }
+
+        @Override
+        public int getContentLength() {
+            return part.getContent().length;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return part.getContent().length;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(inputStream, encoding != null ? encoding : "ISO-8859-1"));
+        }
+    }
+
+    static class SubResponse extends HttpServletResponseWrapper {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private int status = HttpServletResponse.SC_OK;
+        private String characterEncoding = "ISO-8859-1";
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        SubResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        buffer.write(b);
+                    }
+
+                    @Override
+                    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                        buffer.write(b, off, len);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(buffer, characterEncoding));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            status = sc;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            buffer.reset();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            sendError(sc, null);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = HttpServletResponse.SC_FOUND;
+            headers.put("Location", location);
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public Collection<String> getHeaderNames() {
+            return new ArrayList<String>(headers.keySet());
+        }
+
+        @Override
+        public Collection<String> getHeaders(String name) {
+            String value = headers.get(name);
+            return value != null ? Collections.singletonList(value) : Collections.<String>emptyList();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Type")) {
+                setContentType(value);
+            } else if (!name.equalsIgnoreCase("Content-Length")) {
+                headers.put(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            String existing = headers.get(name);
+            setHeader(name, existing != null ? existing + ", " + value : value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            setHeader(name, formatDate(date));
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            addHeader(name, formatDate(date));
+        }
+
+        @Override
+        public void setContentType(String type) {
+            if (type == null) {
+                headers.remove("Content-Type");
+                return;
+            }
+            int idx = type.toLowerCase().indexOf("charset=");
+            if (idx != -1) {
+                characterEncoding = type.substring(idx + 8).trim();
+            }
+            headers.put("Content-Type", type);
+        }
+
+        @Override
+        public String getContentType() {
+            return headers.get("Content-Type");
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            if (charset != null && writer == null) {
+                characterEncoding = charset;
+            }
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            buffer.reset();
+        }
+
+        @Override
+        public void reset() {
+            buffer.reset();
+            headers.clear();
+            status = HttpServletResponse.SC_OK;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        private static String formatDate(long date) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(new Date(date));
+        }
+
+        BatchResponsePart toResponsePart() throws IOException {
+            flushBuffer();
+            return new BatchResponsePart(status, headers, buffer.toByteArray());
+        }
+    }
+
+    static class ByteArrayServletInputStream extends ServletInputStream {
+        private final ByteArrayInputStream is;
+
+        ByteArrayServletInputStream(byte[] data) {
+            is = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return is.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new IllegalStateException("Non-blocking reads are not supported in batch sub-requests");
+        }
+
+        @Override
+        public int read() throws IOException {
+            return is.read();
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            return is.read(b, off, len);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
 import java.io.InputStream;
 import java.security.Principal;
 
@@ -45,6 +46,11 @@ public class SpringAuthenticationFilterHelper extends AuthenticationFilterHelper
         requestObj.setAttribute(STREAM_ATTR,inputStream);
     }
 
+    @Override
+    protected String getHeader(ServletRequest requestObj, String name) {
+        return requestObj instanceof HttpServletRequest ? ((HttpServletRequest) requestObj).getHeader(name) : null;
+    }
+
     @Override
     protected SigningUserDetails findUserPrincipal(String identity) throws BackendAccessException {
         try {
@@ -1,11 +1,18 @@
 package com.kloudtek.kryptotek.rest;
 
+import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.rest.server.TestHelper;
+import com.kloudtek.util.StringUtils;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
 import org.springframework.web.filter.DelegatingFilterProxy;
@@ -14,10 +21,22 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
-import javax.servlet.DispatcherType;
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.security.InvalidKeyException;
-import java.util.EnumSet;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
+import static org.testng.Assert.*;
 
 /**
  * Created by yannick on 6/24/17.
@@ -33,7 +52,7 @@ public class RestSpringAuthenticationFilterTest {
         springCtx.setConfigLocation(Config.class.getName());
         ServletContextHandler contextHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
         contextHandler.setContextPath("/");
-        contextHandler.addFilter(new FilterHolder(new DelegatingFilterProxy("springSecurityFilterChain")), "/*", EnumSet.allOf(DispatcherType.class));
+        contextHandler.addFilter(new FilterHolder(new DelegatingFilterProxy("springSecurityFilterChain")), "/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC, DispatcherType.ERROR));
         contextHandler.addServlet(new ServletHolder(new DispatcherServlet(springCtx)), "/*");
         contextHandler.addEventListener(new ContextLoaderListener(springCtx));
         server.setHandler(contextHandler);
@@ -51,6 +70,21 @@ public class RestSpringAuthenticationFilterTest {
         testHelper.testValidHmac();
     }
 
+    @Test
+    public void testValidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testValidHmacStreaming();
+    }
+
+    @Test
+    public void testInvalidHmacStreaming() throws IOException, InvalidKeyException {
+        testHelper.testInvalidHmacStreaming();
+    }
+
+    @Test
+    public void testDigestSentAsBody() throws IOException, InvalidKeyException {
+        testHelper.testDigestSentAsBody();
+    }
+
     @Test
     public void testExpiredHmac() throws IOException, InvalidKeyException {
         testHelper.testExpiredHmac();
@@ -61,8 +95,275 @@ public class RestSpringAuthenticationFilterTest {
         testHelper.testInvalidHmac();
     }
 
+    @Test
+    public void testRejectedNonceNotRecorded() throws Exception {
+        testHelper.testRejectedNonceNotRecorded();
+    }
+
     @Test
     public void testException() throws Exception {
         testHelper.testException(false);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBatch() throws Exception {
+        testHelper.testBatch();
+    }
+
+    @Test
+    public void testBatchAuthorization() throws Exception {
+        testHelper.testBatchAuthorization();
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        testHelper.testSession();
+    }
+
+    @Test
+    public void testRejectedBeforeBody() throws IOException, InvalidKeyException {
+        testHelper.testRejectedBeforeBody();
+    }
+
+    @Test
+    public void testSignatureAlgorithm() throws Exception {
+        testHelper.testSignatureAlgorithm();
+    }
+
+    @Test
+    public void testStreamingResponseTrailer() throws Exception {
+        TrailerResponse response = new TrailerResponse();
+        String signature = streamResponse(response);
+        assertEquals(response.body.toByteArray(), TestHelper.FILE_DATA);
+        assertEquals(response.headers.get(HEADER_DIGESTBODY), "true");
+        assertEquals(response.headers.get("Trailer"), HEADER_SIGNATURE);
+        assertNotNull(response.headers.get(HEADER_TIMESTAMP));
+        assertNull(response.headers.get(HEADER_SIGNATURE));
+        assertNull(response.headers.get("Content-Length"));
+        assertTrue(response.closed);
+        byte[] digest = CryptoUtils.digest(TestHelper.FILE_DATA, DigestAlgorithm.SHA256);
+        RESTResponseSigner responseSigner = new RESTResponseSigner(response.nonce, signature, 200, false, digest);
+        responseSigner.setDigestedContent(true);
+        assertEquals(response.trailerFields.get().get(HEADER_SIGNATURE), StringUtils.base64Encode(CryptoUtils.sign(TestHelper.HMAC_KEY,
+                responseSigner.getDataToSign())));
+    }
+
+    @Test
+    public void testStreamingResponseTrailersUnsupported() throws Exception {
+        FakeResponse response = new FakeResponse();
+        String signature = streamResponse(response);
+        // buffered and signed in the headers as usual
+        assertEquals(response.body.toByteArray(), TestHelper.FILE_DATA);
+        assertNull(response.headers.get(HEADER_DIGESTBODY));
+        assertNull(response.headers.get("Trailer"));
+        assertEquals(response.headers.get(HEADER_SIGNATURE), StringUtils.base64Encode(CryptoUtils.sign(TestHelper.HMAC_KEY,
+                new RESTResponseSigner(response.nonce, signature, 200, false, TestHelper.FILE_DATA).getDataToSign())));
+    }
+
+    /**
+     * Send a signed request that accepts trailers straight to a filter with streamed responses enabled
+     *
+     * @return request signature
+     */
+    private static String streamResponse(FakeResponse response) throws Exception {
+        final DefaultSigningUserDetails user = new DefaultSigningUserDetails(TestHelper.USER, TestHelper.HMAC_KEY, TestHelper.HMAC_KEY,
+                new SimpleGrantedAuthority("ROLE_USER"));
+        RestSpringAuthenticationFilter filter = new RestSpringAuthenticationFilter(new SpringAuthenticationFilterHelper(new UserDetailsService() {
+            @Override
+            public UserDetails loadUserByUsername(String username) {
+                return user;
+            }
+        }));
+        filter.setStreamingResponses(true);
+        RESTRequestSigner requestSigner = new RESTRequestSigner("POST", "/test/stream", 0, TestHelper.USER, TestHelper.DATA);
+        String signature = StringUtils.base64Encode(CryptoUtils.sign(TestHelper.HMAC_KEY, requestSigner.getDataToSign()));
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(HEADER_NONCE, requestSigner.getNonce());
+        headers.put(HEADER_IDENTITY, requestSigner.getIdentity());
+        headers.put(HEADER_TIMESTAMP, requestSigner.getTimestamp());
+        headers.put(HEADER_SIGNATURE, signature);
+        headers.put("Content-Length", Integer.toString(TestHelper.DATA.length));
+        headers.put("TE", "gzip, trailers");
+        headers.put(HEADER_ACCEPT_DIGESTBODY, "true");
+        response.nonce = requestSigner.getNonce();
+        try {
+            filter.doFilter(fakeRequest("POST", "/test/stream", headers, TestHelper.DATA), response, new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    response.setContentLength(TestHelper.FILE_DATA.length);
+                    response.getOutputStream().write(TestHelper.FILE_DATA);
+                }
+            });
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        return signature;
+    }
+
+    private static HttpServletRequest fakeRequest(final String method, final String uri, final Map<String, String> headers, final byte[] content) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (HttpServletRequest) Proxy.newProxyInstance(RestSpringAuthenticationFilterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("getMethod")) {
+                            return method;
+                        } else if (name.equals("getRequestURI")) {
+                            return uri;
+                        } else if (name.equals("getHeader")) {
+                            return headers.get(args[0]);
+                        } else if (name.equals("getHeaders")) {
+                            String value = headers.get(args[0]);
+                            return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
+                        } else if (name.equals("getInputStream")) {
+                            return new FakeInputStream(content);
+                        } else if (name.equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        } else if (name.equals("setAttribute")) {
+                            attributes.put((String) args[0], args[1]);
+                        } else if (name.equals("removeAttribute")) {
+                            attributes.remove(args[0]);
+                        } else if (m.getReturnType() == boolean.class) {
+                            return false;
+                        } else if (m.getReturnType() == int.class) {
+                            return 0;
+                        } else if (m.getReturnType() == long.class) {
+                            return 0L;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class FakeInputStream extends ServletInputStream {
+        private final ByteArrayInputStream is;
+
+        private FakeInputStream(byte[] content) {
+            is = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return is.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+
+        @Override
+        public int read() {
+            return is.read();
+        }
+    }
+
+    /**
+     * Response from a Servlet 3.1 container, which doesn't support trailers
+     */
+    public static class FakeResponse extends HttpServletResponseWrapper {
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String nonce;
+        boolean closed;
+        private int status = SC_OK;
+
+        FakeResponse() {
+            super((HttpServletResponse) Proxy.newProxyInstance(RestSpringAuthenticationFilterTest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }));
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            headers.put("Content-Length", Integer.toString(len));
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Override
+        public void sendError(int sc) {
+            status = sc;
+        }
+
+        @Override
+        public void sendError(int sc, String msg) {
+            status = sc;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return body.size() > 0;
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void close() {
+                    closed = true;
+                }
+            };
+        }
+    }
+
+    /**
+     * Response from a Servlet 4 container, which supports trailers
+     */
+    public static class TrailerResponse extends FakeResponse {
+        private Supplier<Map<String, String>> trailerFields;
+
+        public void setTrailerFields(Supplier<Map<String, String>> supplier) {
+            trailerFields = supplier;
+        }
+
+        public Supplier<Map<String, String>> getTrailerFields() {
+            return trailerFields;
+        }
+    }
+}
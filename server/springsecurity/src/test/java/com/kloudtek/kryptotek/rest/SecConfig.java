@@ -1,5 +1,8 @@
 package com.kloudtek.kryptotek.rest;
 
+import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.rest.server.TestHelper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -7,6 +10,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
@@ -14,6 +18,7 @@ import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.web.AuthenticationEntryPoint;
 import org.springframework.security.web.access.AccessDeniedHandler;
+import org.springframework.security.web.access.intercept.FilterSecurityInterceptor;
 import org.springframework.security.web.authentication.Http403ForbiddenEntryPoint;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
@@ -30,6 +35,8 @@ import java.io.IOException;
 @EnableWebSecurity
 public class SecConfig extends WebSecurityConfigurerAdapter {
     private UserDetailsService userDetailsService;
+    private HttpSecurity http;
+    private RestSpringAuthenticationFilter restFilter;
 
     public SecConfig(UserDetailsService userDetailsService) {
         this.userDetailsService = userDetailsService;
@@ -42,6 +49,7 @@ public class SecConfig extends WebSecurityConfigurerAdapter {
 
     @Override
     protected void configure(HttpSecurity http) throws Exception {
+        this.http = http;
         http.userDetailsService(userDetailsService);
         http.exceptionHandling().authenticationEntryPoint(new Http401UnauthorizedEntryPoint());
         http.anonymous().disable();
@@ -55,7 +63,27 @@ public class SecConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .antMatchers(HttpMethod.OPTIONS, "/**").permitAll()
                 .antMatchers("/auth/**").permitAll()
+                .antMatchers(TestHelper.ADMIN_PATH).hasRole("ADMIN")
                 .anyRequest().authenticated();
-        http.addFilterBefore(new RestSpringAuthenticationFilter(new SpringAuthenticationFilterHelper(userDetailsService)), UsernamePasswordAuthenticationFilter.class);
+        SpringAuthenticationFilterHelper filterHelper = new SpringAuthenticationFilterHelper(userDetailsService, CryptoUtils.getEngine(), new ReplayAttackValidatorInMemoryImpl());
+        filterHelper.setStreamingVerificationAllowed(true);
+        filterHelper.setBatchPath(TestHelper.BATCH_PATH);
+        filterHelper.enableSessions(TestHelper.SESSION_PATH, SessionTable.DEFAULT_TTL, SessionTable.DEFAULT_MAX_SESSIONS);
+        filterHelper.setAllowedSignatureAlgorithms(TestHelper.USER, DigestAlgorithm.SHA256, DigestAlgorithm.SHA512);
+        restFilter = new RestSpringAuthenticationFilter(filterHelper);
+        http.addFilterBefore(restFilter, UsernamePasswordAuthenticationFilter.class);
+    }
+
+    @Override
+    public void configure(final WebSecurity web) throws Exception {
+        // only available once the filter chain has been built
+        web.postBuildAction(new Runnable() {
+            @Override
+            public void run() {
+                // replaces the default action, which registers the security interceptor
+                web.securityInterceptor(http.getSharedObject(FilterSecurityInterceptor.class));
+                restFilter.setPrivilegeEvaluator(web.getPrivilegeEvaluator());
+            }
+        });
     }
 }
@@ -36,6 +36,11 @@ public class TestController {
         return results;
     }
 
+    @RequestMapping(path = "/admin",method = POST,produces = "application/json")
+    public String admin() {
+        return "\"admin\"";
+    }
+
     @RequestMapping(path = "/exception1",method = POST,produces = "application/json")
     public String doStuff() throws IOException {
         throw new HttpMessageNotReadableException("moo");
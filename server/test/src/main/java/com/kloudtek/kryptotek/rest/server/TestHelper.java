@@ -1,14 +1,22 @@
 package com.kloudtek.kryptotek.rest.server;
 
 import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.jce.JCECryptoEngine;
 import com.kloudtek.kryptotek.jce.JCEHMACSHA1Key;
+import com.kloudtek.kryptotek.key.DHKeyPair;
 import com.kloudtek.kryptotek.key.HMACKey;
+import com.kloudtek.kryptotek.rest.BatchEnvelope;
+import com.kloudtek.kryptotek.rest.BatchRequestPart;
+import com.kloudtek.kryptotek.rest.BatchResponsePart;
 import com.kloudtek.kryptotek.rest.RESTRequestSigner;
 import com.kloudtek.kryptotek.rest.RESTResponseSigner;
+import com.kloudtek.kryptotek.rest.SessionHandshake;
 import com.kloudtek.util.StringUtils;
 import com.kloudtek.util.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -17,7 +25,12 @@ import org.testng.Assert;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static com.kloudtek.kryptotek.rest.RESTRequestSigner.*;
@@ -32,8 +45,12 @@ public class TestHelper {
     public static final HMACKey HMAC_KEY = new JCEHMACSHA1Key(new JCECryptoEngine(), new SecretKeySpec(StringUtils.base64Decode(HMAC_KEY_B64), "RAW"));
     public static final String DATA_STR = "blabla";
     public static final byte[] DATA = DATA_STR.getBytes();
+    public static final byte[] FILE_DATA = "some file content".getBytes();
     public static final String PATH = "/test/dostuff?x=" + StringUtils.urlEncode("a b");
     public static final String USER = "user";
+    public static final String BATCH_PATH = "/batch";
+    public static final String SESSION_PATH = "/session";
+    public static final String ADMIN_PATH = "/test/admin";
     private String url;
 
     public TestHelper(String url) {
@@ -64,6 +81,98 @@ public class TestHelper {
         }
     }
 
+    public void testValidHmacStreaming() throws IOException, InvalidKeyException {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, CryptoUtils.digest(DATA, DigestAlgorithm.SHA256));
+            restRequestSigner.setDigestedContent(true);
+            HttpPost request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_DIGESTBODY, "true");
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setHeader("Accept", "application/json");
+            request.setEntity(new ByteArrayEntity(DATA));
+            logger.info(restRequestSigner.toString());
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            byte[] responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            Assert.assertEquals(new String(responseData), "{\"a\":\"b\",\"b\":\"c\"}");
+            String expectedSig = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, responseData).getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    public void testInvalidHmacStreaming() throws IOException, InvalidKeyException {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, CryptoUtils.digest("asfdasfd".getBytes(), DigestAlgorithm.SHA256));
+            restRequestSigner.setDigestedContent(true);
+            HttpPost request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_DIGESTBODY, "true");
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setEntity(new ByteArrayEntity(DATA));
+            logger.info(restRequestSigner.toString());
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    public void testDigestSentAsBody() throws IOException, InvalidKeyException {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            byte[] digest = CryptoUtils.digest(DATA, DigestAlgorithm.SHA256);
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, digest);
+            restRequestSigner.setDigestedContent(true);
+            // signed for digested content, but sent without the header and with the digest as the body
+            HttpPost request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+            request.setEntity(new ByteArrayEntity(digest));
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    public void testFileResponseStreaming() throws IOException, InvalidKeyException {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("GET", "/test/file", 0, USER);
+            HttpGet request = new HttpGet(url + "/test/file");
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_ACCEPT_DIGESTBODY, "true");
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            byte[] responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            Assert.assertEquals(responseData, FILE_DATA);
+            Assert.assertEquals(response.getFirstHeader(HEADER_DIGESTBODY).getValue(), "true");
+            RESTResponseSigner responseSigner = new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, CryptoUtils.digest(responseData, DigestAlgorithm.SHA256));
+            responseSigner.setDigestedContent(true);
+            String expectedSig = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, responseSigner.getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+        } finally {
+            httpClient.close();
+        }
+    }
+
     public void testExpiredHmac() throws IOException, InvalidKeyException {
         httpClient = HttpClientBuilder.create().build();
         try {
@@ -83,6 +192,37 @@ public class TestHelper {
         }
     }
 
+    /**
+     * Check that a request with invalid headers (expired timestamp) is rejected before its body is sent, when the
+     * client expects a 100 Continue
+     */
+    public void testRejectedBeforeBody() throws IOException, InvalidKeyException {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, -1000000L, USER, DATA);
+            HttpPost request = new HttpPost(url + PATH);
+            request.setConfig(RequestConfig.custom().setExpectContinueEnabled(true).build());
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+            final AtomicBoolean bodySent = new AtomicBoolean();
+            request.setEntity(new ByteArrayEntity(DATA) {
+                @Override
+                public void writeTo(OutputStream outstream) throws IOException {
+                    bodySent.set(true);
+                    super.writeTo(outstream);
+                }
+            });
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+            Assert.assertFalse(bodySent.get(), "Body was sent for a request rejected on its headers");
+            response.close();
+        } finally {
+            httpClient.close();
+        }
+    }
+
     public void testInvalidHmac() throws Exception {
         httpClient = HttpClientBuilder.create().build();
         try {
@@ -102,6 +242,33 @@ public class TestHelper {
         }
     }
 
+    public void testRejectedNonceNotRecorded() throws Exception {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, "asfdasfd".getBytes());
+            HttpPost request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+            request.setEntity(new ByteArrayEntity(DATA));
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+            response.close();
+            // the nonce of a request with an invalid signature must not be burned
+            restRequestSigner.setContent(DATA);
+            request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+            response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            response.close();
+            response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+            response.close();
+        } finally {
+            httpClient.close();
+        }
+    }
+
     public void testException(boolean signedRespBody) throws Exception {
         httpClient = HttpClientBuilder.create().build();
         try {
@@ -126,4 +293,162 @@ public class TestHelper {
             httpClient.close();
         }
     }
+
+    public void testBatch() throws Exception {
+        List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+        parts.add(new BatchRequestPart("POST", PATH, Collections.singletonMap("Accept", "application/json"), DATA));
+        parts.add(new BatchRequestPart("POST", "/test/exception1", null, DATA));
+        parts.add(new BatchRequestPart("POST", PATH, Collections.singletonMap("Accept", "application/json"), DATA));
+        List<BatchResponsePart> responses = executeBatch(parts);
+        Assert.assertEquals(responses.size(), 3);
+        Assert.assertEquals(responses.get(0).getStatus(), 200);
+        Assert.assertEquals(new String(responses.get(0).getContent()), "{\"a\":\"b\",\"b\":\"c\"}");
+        Assert.assertEquals(responses.get(1).getStatus(), 400);
+        Assert.assertEquals(responses.get(2).getStatus(), 200);
+        Assert.assertEquals(new String(responses.get(2).getContent()), "{\"a\":\"b\",\"b\":\"c\"}");
+    }
+
+    /**
+     * Check that batch sub-requests are subject to the same URL rules as direct requests ({@link #ADMIN_PATH} must
+     * require a role the test user doesn't have)
+     */
+    public void testBatchAuthorization() throws Exception {
+        List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>();
+        parts.add(new BatchRequestPart("POST", ADMIN_PATH, Collections.singletonMap("Accept", "application/json"), DATA));
+        parts.add(new BatchRequestPart("POST", PATH, Collections.singletonMap("Accept", "application/json"), DATA));
+        List<BatchResponsePart> responses = executeBatch(parts);
+        Assert.assertEquals(responses.size(), 2);
+        Assert.assertEquals(responses.get(0).getStatus(), 403);
+        Assert.assertEquals(responses.get(1).getStatus(), 200);
+    }
+
+    private List<BatchResponsePart> executeBatch(List<BatchRequestPart> parts) throws Exception {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            byte[] envelope = BatchEnvelope.encodeRequests(parts);
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", BATCH_PATH, 0, USER, envelope);
+            HttpPost request = new HttpPost(url + BATCH_PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setHeader("Content-Type", BatchEnvelope.CONTENT_TYPE);
+            request.setEntity(new ByteArrayEntity(envelope));
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            byte[] responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            String expectedSig = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, responseData).getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+            return BatchEnvelope.decodeResponses(responseData);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    public void testSession() throws Exception {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            JCECryptoEngine cryptoEngine = new JCECryptoEngine();
+            DHKeyPair keyPair = SessionHandshake.generateKeyPair(cryptoEngine);
+            byte[] publicKey = SessionHandshake.encodePublicKey(keyPair);
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", SESSION_PATH, 0, USER, publicKey);
+            HttpPost request = new HttpPost(url + SESSION_PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setHeader("Content-Type", SessionHandshake.CONTENT_TYPE);
+            request.setEntity(new ByteArrayEntity(publicKey));
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            byte[] responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            String expectedSig = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, responseData).getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+            response.close();
+            SessionHandshake.Response handshake = SessionHandshake.decodeResponse(responseData);
+            Assert.assertTrue(handshake.getTtl() > 0);
+            HMACKey sessionKey = SessionHandshake.deriveKey(cryptoEngine, keyPair.getPrivateKey(), handshake.getPublicKey());
+            // request signed with the session key
+            restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, DATA);
+            request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_SESSION, handshake.getSessionId());
+            signature = StringUtils.base64Encode(CryptoUtils.sign(sessionKey, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setHeader("Accept", "application/json");
+            request.setEntity(new ByteArrayEntity(DATA));
+            response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            Assert.assertEquals(new String(responseData), "{\"a\":\"b\",\"b\":\"c\"}");
+            expectedSig = StringUtils.base64Encode(CryptoUtils.sign(sessionKey, new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, responseData).getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+            response.close();
+            // the long-term key isn't accepted within a session
+            restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, DATA);
+            request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_SESSION, handshake.getSessionId());
+            request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+            request.setEntity(new ByteArrayEntity(DATA));
+            response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 401);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    public void testSignatureAlgorithm() throws Exception {
+        httpClient = HttpClientBuilder.create().build();
+        try {
+            RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, CryptoUtils.digest(DATA, DigestAlgorithm.SHA512));
+            restRequestSigner.setDigestedContent(true);
+            HttpPost request = new HttpPost(url + PATH);
+            request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+            request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+            request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+            request.setHeader(HEADER_DIGESTBODY, "true");
+            request.setHeader(HEADER_SIGNATURE_ALG, "SHA512");
+            String signature = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign()));
+            request.setHeader(HEADER_SIGNATURE, signature);
+            request.setHeader("Accept", "application/json");
+            request.setEntity(new ByteArrayEntity(DATA));
+            CloseableHttpResponse response = httpClient.execute(request);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            byte[] responseData = IOUtils.toByteArray(response.getEntity().getContent());
+            Assert.assertEquals(new String(responseData), "{\"a\":\"b\",\"b\":\"c\"}");
+            String expectedSig = StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, new RESTResponseSigner(restRequestSigner.getNonce(), signature, 200, responseData).getDataToSign()));
+            Assert.assertEquals(response.getFirstHeader(HEADER_SIGNATURE).getValue(), expectedSig);
+            response.close();
+            // not in the identity's allow-list
+            Assert.assertEquals(executeWithSignatureAlgorithm("SHA1"), 401);
+            // unknown algorithm
+            Assert.assertEquals(executeWithSignatureAlgorithm("FOO"), 401);
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    private int executeWithSignatureAlgorithm(String algorithm) throws Exception {
+        RESTRequestSigner restRequestSigner = new RESTRequestSigner("POST", PATH, 0, USER, DATA);
+        HttpPost request = new HttpPost(url + PATH);
+        request.setHeader(HEADER_IDENTITY, restRequestSigner.getIdentity());
+        request.setHeader(HEADER_NONCE, restRequestSigner.getNonce());
+        request.setHeader(HEADER_TIMESTAMP, restRequestSigner.getTimestamp());
+        request.setHeader(HEADER_SIGNATURE_ALG, algorithm);
+        request.setHeader(HEADER_SIGNATURE, StringUtils.base64Encode(CryptoUtils.sign(HMAC_KEY, restRequestSigner.getDataToSign())));
+        request.setEntity(new ByteArrayEntity(DATA));
+        CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
 }
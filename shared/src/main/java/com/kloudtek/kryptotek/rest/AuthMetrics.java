@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Receives timings of each {@link AuthStage} and authentication failures, from server filters and client
+ * interceptors. Implementations are called on the request path, so they must be thread-safe and cheap.
+ * <p>
+ * Stages are timed with {@code long start = metrics.start(); ...; metrics.stop(stage, start);}, which lets
+ * {@link NoOpAuthMetrics} skip reading the clock altogether.
+ * </p>
+ */
+public interface AuthMetrics {
+    /**
+     * Start timing a stage
+     *
+     * @return start time to pass to {@link #stop(AuthStage, long)}
+     */
+    long start();
+
+    /**
+     * Record the duration of a stage
+     *
+     * @param stage Stage
+     * @param start Value returned by {@link #start()} when the stage started
+     */
+    void stop(AuthStage stage, long start);
+
+    /**
+     * Record a failure
+     *
+     * @param reason Reason of the failure: an {@code AuthenticationFailedException.Reason} for requests rejected by
+     *               a server, or the {@link AuthStage} that failed otherwise (for example {@link AuthStage#REPLAY_CHECK}
+     *               for a replayed nonce, or {@link AuthStage#RESPONSE_VERIFICATION} for an invalid response signature)
+     */
+    void failure(Enum<?> reason);
+}
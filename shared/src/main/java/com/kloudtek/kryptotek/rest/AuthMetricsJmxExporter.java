@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes {@link InMemoryAuthMetrics} as a read-only MBean. Each stage has {@code <STAGE>.count},
+ * {@code <STAGE>.meanNanos}, {@code <STAGE>.p50Nanos}, {@code <STAGE>.p99Nanos}, {@code <STAGE>.p999Nanos} and
+ * {@code <STAGE>.maxNanos} attributes, and each failure reason that has occurred a {@code failures.<REASON>}
+ * attribute.
+ */
+public class AuthMetricsJmxExporter implements DynamicMBean {
+    public static final String DEFAULT_OBJECT_NAME = "com.kloudtek.kryptotek.rest:type=AuthMetrics";
+    private static final String FAILURES_PREFIX = "failures.";
+    private final InMemoryAuthMetrics metrics;
+    private MBeanServer mBeanServer;
+    private ObjectName objectName;
+
+    public AuthMetricsJmxExporter(InMemoryAuthMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register the MBean with the platform MBean server, as {@link #DEFAULT_OBJECT_NAME}
+     *
+     * @throws JMException If registration failed
+     */
+    public void register() throws JMException {
+        register(ManagementFactory.getPlatformMBeanServer(), new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    /**
+     * Register the MBean
+     *
+     * @param mBeanServer MBean server
+     * @param objectName  Object name (must be unique if several filters or clients export metrics)
+     * @throws JMException If registration failed
+     */
+    public synchronized void register(MBeanServer mBeanServer, ObjectName objectName) throws JMException {
+        unregister();
+        mBeanServer.registerMBean(this, objectName);
+        this.mBeanServer = mBeanServer;
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (mBeanServer != null) {
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            } finally {
+                mBeanServer = null;
+                objectName = null;
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attribute.startsWith(FAILURES_PREFIX)) {
+            String reason = attribute.substring(FAILURES_PREFIX.length());
+            long count = 0;
+            for (Map.Entry<Enum<?>, Long> entry : metrics.getFailures().entrySet()) {
+                if (entry.getKey().name().equals(reason)) {
+                    count += entry.getValue();
+                }
+            }
+            return count;
+        }
+        int idx = attribute.indexOf('.');
+        if (idx != -1) {
+            AuthStage stage;
+            try {
+                stage = AuthStage.valueOf(attribute.substring(0, idx));
+            } catch (IllegalArgumentException e) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            LatencyHistogram histogram = metrics.getHistogram(stage);
+            String name = attribute.substring(idx + 1);
+            if (name.equals("count")) {
+                return histogram.getCount();
+            } else if (name.equals("meanNanos")) {
+                return histogram.getMeanNanos();
+            } else if (name.equals("p50Nanos")) {
+                return histogram.getValueAtPercentile(50);
+            } else if (name.equals("p99Nanos")) {
+                return histogram.getValueAtPercentile(99);
+            } else if (name.equals("p999Nanos")) {
+                return histogram.getValueAtPercentile(99.9);
+            } else if (name.equals("maxNanos")) {
+                return histogram.getMaxNanos();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as required by the DynamicMBean contract
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attributes are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (AuthStage stage : AuthStage.values()) {
+            attributes.add(attribute(stage + ".count", "long", "Number of times the stage was timed"));
+            attributes.add(attribute(stage + ".meanNanos", "double", "Mean duration in nanoseconds"));
+            attributes.add(attribute(stage + ".p50Nanos", "long", "Median duration in nanoseconds"));
+            attributes.add(attribute(stage + ".p99Nanos", "long", "99th percentile duration in nanoseconds"));
+            attributes.add(attribute(stage + ".p999Nanos", "long", "99.9th percentile duration in nanoseconds"));
+            attributes.add(attribute(stage + ".maxNanos", "long", "Maximum duration in nanoseconds"));
+        }
+        // reasons are only known once they've occurred, so the info is rebuilt each time
+        for (Enum<?> reason : metrics.getFailures().keySet()) {
+            MBeanAttributeInfo info = attribute(FAILURES_PREFIX + reason.name(), "long", "Number of failures");
+            if (!attributes.contains(info)) {
+                attributes.add(info);
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Authentication metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+}
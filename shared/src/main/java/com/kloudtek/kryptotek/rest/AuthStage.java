@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Stages of signing and verifying requests, timed by {@link AuthMetrics}
+ */
+public enum AuthStage {
+    /**
+     * Whole authentication of a request by a server filter
+     */
+    AUTHENTICATION,
+    /**
+     * Reading the request body into memory (when not using streaming verification)
+     */
+    BODY_INGESTION,
+    /**
+     * Parsing and checking the request timestamp
+     */
+    TIMESTAMP_CHECK,
+    /**
+     * Checking the nonce against the server's {@code ReplayAttackValidator}
+     */
+    REPLAY_CHECK,
+    /**
+     * Looking up the principal (or session) of the request identity
+     */
+    PRINCIPAL_LOOKUP,
+    /**
+     * Looking up the principal's verification key
+     */
+    KEY_LOOKUP,
+    /**
+     * Verifying the request signature
+     */
+    SIGNATURE_VERIFICATION,
+    /**
+     * Signing the response, including the signing key lookup
+     */
+    RESPONSE_SIGNING,
+    /**
+     * Signing a request on the client
+     */
+    REQUEST_SIGNING,
+    /**
+     * Verifying a response signature on the client
+     */
+    RESPONSE_VERIFICATION
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes batches of sub-requests and their responses.
+ * <p>
+ * A batch is sent as a single signed POST request with the {@link #CONTENT_TYPE} content type, so it only costs one
+ * nonce, timestamp, signature verification and principal lookup. The server dispatches each sub-request and returns a
+ * single signed response containing all sub-responses, in the same order.
+ * </p>
+ * <p>
+ * The format is binary: a magic number, the number of parts, then for each part the method and URI (requests) or the
+ * status (responses), the headers, and the content (prefixed by its length). Strings are written with
+ * {@link DataOutput#writeUTF(String)}.
+ * </p>
+ */
+public final class BatchEnvelope {
+    public static final String CONTENT_TYPE = "application/x-kryptotek-batch";
+    private static final int REQUEST_MAGIC = 0x4B544251; // KTBQ
+    private static final int RESPONSE_MAGIC = 0x4B544252; // KTBR
+
+    private BatchEnvelope() {
+    }
+
+    public static byte[] encodeRequests(List<BatchRequestPart> parts) {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(REQUEST_MAGIC);
+            out.writeInt(parts.size());
+            for (BatchRequestPart part : parts) {
+                out.writeUTF(part.getMethod());
+                out.writeUTF(part.getUri());
+                writeHeaders(out, part.getHeaders());
+                writeContent(out, part.getContent());
+            }
+            out.flush();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            // only possible if a string is too long
+            throw new IllegalArgumentException("Unable to encode batch: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decode a batch of sub-requests
+     *
+     * @param data     Encoded batch
+     * @param maxParts Maximum number of sub-requests allowed
+     * @return sub-requests
+     * @throws IOException If the data is invalid or contains too many sub-requests
+     */
+    public static List<BatchRequestPart> decodeRequests(byte[] data, int maxParts) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = readHeader(in, REQUEST_MAGIC, maxParts);
+        List<BatchRequestPart> parts = new ArrayList<BatchRequestPart>(count);
+        for (int i = 0; i < count; i++) {
+            String method = in.readUTF();
+            String uri = in.readUTF();
+            Map<String, String> headers = readHeaders(in);
+            parts.add(new BatchRequestPart(method, uri, headers, readContent(in)));
+        }
+        return parts;
+    }
+
+    public static byte[] encodeResponses(List<BatchResponsePart> parts) {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(RESPONSE_MAGIC);
+            out.writeInt(parts.size());
+            for (BatchResponsePart part : parts) {
+                out.writeInt(part.getStatus());
+                writeHeaders(out, part.getHeaders());
+                writeContent(out, part.getContent());
+            }
+            out.flush();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode batch response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decode the responses to a batch
+     *
+     * @param data Encoded responses
+     * @return responses
+     * @throws IOException If the data is invalid
+     */
+    public static List<BatchResponsePart> decodeResponses(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = readHeader(in, RESPONSE_MAGIC, Integer.MAX_VALUE);
+        List<BatchResponsePart> parts = new ArrayList<BatchResponsePart>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            int status = in.readInt();
+            Map<String, String> headers = readHeaders(in);
+            parts.add(new BatchResponsePart(status, headers, readContent(in)));
+        }
+        return parts;
+    }
+
+    static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int readHeader(DataInputStream in, int magic, int maxParts) throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException("Invalid batch envelope");
+        }
+        int count = in.readInt();
+        if (count < 0 || count > maxParts) {
+            throw new IOException("Invalid number of parts in batch: " + count);
+        }
+        return count;
+    }
+
+    private static void writeHeaders(DataOutputStream out, Map<String, String> headers) throws IOException {
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+    }
+
+    private static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        // each header takes at least 4 bytes
+        if (count < 0 || count > in.available() / 4) {
+            throw new IOException("Invalid number of headers in batch: " + count);
+        }
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            headers.put(in.readUTF(), in.readUTF());
+        }
+        return headers;
+    }
+
+    private static void writeContent(DataOutputStream out, byte[] content) throws IOException {
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private static byte[] readContent(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        // the input is in memory, so available() is the remaining size
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid content length in batch: " + length);
+        }
+        byte[] content = new byte[length];
+        in.readFully(content);
+        return content;
+    }
+}
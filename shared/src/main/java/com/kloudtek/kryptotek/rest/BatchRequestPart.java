@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sub-request of a batch (see {@link BatchEnvelope})
+ */
+public class BatchRequestPart {
+    private final String method;
+    private final String uri;
+    private final Map<String, String> headers;
+    private final byte[] content;
+
+    /**
+     * Constructor
+     *
+     * @param method  HTTP method
+     * @param uri     Request path, including the query string
+     * @param headers Headers (authentication headers are not needed, since the batch is authenticated as a whole)
+     * @param content Content or null if none
+     */
+    public BatchRequestPart(@NotNull String method, @NotNull String uri, Map<String, String> headers, byte[] content) {
+        this.method = method.toUpperCase();
+        this.uri = uri;
+        this.headers = headers != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers)) : Collections.<String, String>emptyMap();
+        this.content = content != null ? content : new byte[0];
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get a header (case insensitive)
+     *
+     * @param name Header name
+     * @return value or null if not set
+     */
+    public String getHeader(String name) {
+        return BatchEnvelope.getHeader(headers, name);
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Check if this sub-request can safely be processed concurrently with other ones (GET, HEAD and OPTIONS requests)
+     *
+     * @return true if the method is safe
+     */
+    public boolean isSafe() {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Response to a sub-request of a batch (see {@link BatchEnvelope})
+ */
+public class BatchResponsePart {
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] content;
+
+    /**
+     * Constructor
+     *
+     * @param status  HTTP status code
+     * @param headers Headers
+     * @param content Content or null if none
+     */
+    public BatchResponsePart(int status, Map<String, String> headers, byte[] content) {
+        this.status = status;
+        this.headers = headers != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers)) : Collections.<String, String>emptyMap();
+        this.content = content != null ? content : new byte[0];
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get a header (case insensitive)
+     *
+     * @param name Header name
+     * @return value or null if not set
+     */
+    public String getHeader(String name) {
+        return BatchEnvelope.getHeader(headers, name);
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.*;
+import com.kloudtek.kryptotek.jce.JCEHMACKey;
+import com.kloudtek.kryptotek.jce.JCEPrivateKey;
+import com.kloudtek.kryptotek.jce.JCEPublicKey;
+import com.kloudtek.kryptotek.key.*;
+import com.kloudtek.util.UnexpectedException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link CryptoEngine} decorator that keeps initialized {@link Mac} and {@link Signature} contexts for each key, so that
+ * signing and verifying with the same key doesn't require setting up a new context (and running the key schedule)
+ * every time. New contexts for a key are cloned from an initialized prototype when the provider supports it.
+ * At most {@code maxKeys} keys are cached (the least recently used ones are evicted), each with at most
+ * {@code maxPoolSize} idle contexts.
+ * Only JCE HMAC and RSA keys are cached, all other operations are delegated to the wrapped engine.
+ */
+public class CachingCryptoEngine extends CryptoEngine {
+    public static final int DEFAULT_MAX_KEYS = 1000;
+    private final CryptoEngine engine;
+    private final int maxKeys;
+    private final int maxPoolSize;
+    private final ConcurrentHashMap<ContextKey, ContextPool<?>> pools = new ConcurrentHashMap<ContextKey, ContextPool<?>>();
+
+    public CachingCryptoEngine(@NotNull CryptoEngine engine) {
+        this(engine, DEFAULT_MAX_KEYS, Runtime.getRuntime().availableProcessors());
+    }
+
+    public CachingCryptoEngine(@NotNull CryptoEngine engine, int maxKeys, int maxPoolSize) {
+        if (maxKeys < 1 || maxPoolSize < 1) {
+            throw new IllegalArgumentException("maxKeys and maxPoolSize must be greater than 0");
+        }
+        this.engine = engine;
+        this.maxKeys = maxKeys;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public CryptoEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the number of keys currently cached
+     *
+     * @return number of keys cached
+     */
+    public int getCachedKeys() {
+        return pools.size();
+    }
+
+    /**
+     * Remove all cached contexts
+     */
+    public void clear() {
+        pools.clear();
+    }
+
+    @Override
+    public byte[] sign(SigningKey key, DigestAlgorithm digestAlgorithm, byte[] data) throws InvalidKeyException {
+        if (key instanceof JCEHMACKey) {
+            MacPool pool = getMacPool((JCEHMACKey) key);
+            Mac mac = pool.borrow();
+            byte[] signature = mac.doFinal(data);
+            pool.release(mac);
+            return signature;
+        }
+        Key privateKey = key instanceof RSAKeyPair ? ((RSAKeyPair) key).getPrivateKey() : key;
+        if (privateKey instanceof RSAPrivateKey && privateKey instanceof JCEPrivateKey) {
+            SignaturePool pool = getSignaturePool(digestAlgorithm, ((JCEPrivateKey) privateKey).getJCEPrivateKey(), null);
+            Signature signature = pool.borrow();
+            try {
+                signature.update(data);
+                byte[] signed = signature.sign();
+                pool.release(signature);
+                return signed;
+            } catch (SignatureException e) {
+                throw new InvalidKeyException(e.getMessage(), e);
+            }
+        }
+        return engine.sign(key, digestAlgorithm, data);
+    }
+
+    @Override
+    public void verifySignature(SignatureVerificationKey key, DigestAlgorithm digestAlgorithm, byte[] data, byte[] signature) throws SignatureException, InvalidKeyException {
+        if (key instanceof JCEHMACKey) {
+            MacPool pool = getMacPool((JCEHMACKey) key);
+            Mac mac = pool.borrow();
+            byte[] expected = mac.doFinal(data);
+            pool.release(mac);
+            if (!MessageDigest.isEqual(expected, signature)) {
+                throw new SignatureException("Signature does not match data");
+            }
+            return;
+        }
+        Key publicKey = key instanceof RSAKeyPair ? ((RSAKeyPair) key).getPublicKey() : key;
+        if (publicKey instanceof RSAPublicKey && publicKey instanceof JCEPublicKey) {
+            SignaturePool pool = getSignaturePool(digestAlgorithm, null, ((JCEPublicKey) publicKey).getJCEPublicKey());
+            Signature verifier = pool.borrow();
+            verifier.update(data);
+            boolean valid = verifier.verify(signature);
+            // only returned to the pool if verify() didn't fail, in which case it has been reset
+            pool.release(verifier);
+            if (!valid) {
+                throw new SignatureException();
+            }
+            return;
+        }
+        engine.verifySignature(key, digestAlgorithm, data, signature);
+    }
+
+    private MacPool getMacPool(JCEHMACKey key) {
+        SecretKey secretKey = key.getSecretKey();
+        String algorithm = "Hmac" + key.getDigestAlgorithm().name();
+        ContextKey contextKey = new ContextKey(algorithm, secretKey.getEncoded());
+        MacPool pool = (MacPool) pools.get(contextKey);
+        if (pool == null) {
+            pool = new MacPool(algorithm, secretKey);
+            MacPool existing = (MacPool) pools.putIfAbsent(contextKey, pool);
+            if (existing != null) {
+                pool = existing;
+            } else {
+                evict();
+            }
+        }
+        pool.touch();
+        return pool;
+    }
+
+    private SignaturePool getSignaturePool(DigestAlgorithm digestAlgorithm, PrivateKey privateKey, PublicKey publicKey) {
+        // same default as JCECryptoEngine
+        String algorithm = (digestAlgorithm != null ? digestAlgorithm : DigestAlgorithm.SHA256).name() + "withRSA";
+        ContextKey contextKey = new ContextKey(privateKey != null ? algorithm + "/sign" : algorithm + "/verify",
+                privateKey != null ? privateKey.getEncoded() : publicKey.getEncoded());
+        SignaturePool pool = (SignaturePool) pools.get(contextKey);
+        if (pool == null) {
+            pool = new SignaturePool(algorithm, privateKey, publicKey);
+            SignaturePool existing = (SignaturePool) pools.putIfAbsent(contextKey, pool);
+            if (existing != null) {
+                pool = existing;
+            } else {
+                evict();
+            }
+        }
+        pool.touch();
+        return pool;
+    }
+
+    /**
+     * Evicts the least recently used tenth of the keys once the cache is over capacity, so the cost of scanning the
+     * cache is amortized over many insertions.
+     */
+    private void evict() {
+        int size = pools.size();
+        if (size > maxKeys) {
+            int toEvict = size - maxKeys + maxKeys / 10;
+            // snapshot of usage times, since they may change while sorting
+            final Map<ContextKey, Long> lastUsed = new HashMap<ContextKey, Long>();
+            for (Map.Entry<ContextKey, ContextPool<?>> entry : pools.entrySet()) {
+                lastUsed.put(entry.getKey(), entry.getValue().lastUsed);
+            }
+            List<ContextKey> keys = new ArrayList<ContextKey>(lastUsed.keySet());
+            Collections.sort(keys, new Comparator<ContextKey>() {
+                @Override
+                public int compare(ContextKey o1, ContextKey o2) {
+                    long diff = lastUsed.get(o1) - lastUsed.get(o2);
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (int i = 0; i < toEvict && i < keys.size(); i++) {
+                pools.remove(keys.get(i));
+            }
+        }
+    }
+
+    private static class ContextKey {
+        private final String algorithm;
+        private final byte[] keyData;
+        private final int hashCode;
+
+        ContextKey(String algorithm, byte[] keyData) {
+            this.algorithm = algorithm;
+            this.keyData = keyData;
+            hashCode = 31 * algorithm.hashCode() + Arrays.hashCode(keyData);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ContextKey that = (ContextKey) o;
+            return hashCode == that.hashCode && algorithm.equals(that.algorithm) && Arrays.equals(keyData, that.keyData);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private abstract class ContextPool<C> {
+        private final ConcurrentLinkedQueue<C> idle = new ConcurrentLinkedQueue<C>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        volatile long lastUsed = System.nanoTime();
+
+        void touch() {
+            long now = System.nanoTime();
+            // avoids writing to the shared field on every single operation
+            if (now - lastUsed > 1000000L) {
+                lastUsed = now;
+            }
+        }
+
+        C borrow() throws InvalidKeyException {
+            C context = idle.poll();
+            if (context != null) {
+                idleCount.decrementAndGet();
+                return context;
+            }
+            return create();
+        }
+
+        void release(C context) {
+            if (idleCount.incrementAndGet() <= maxPoolSize) {
+                idle.offer(context);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+
+        protected abstract C create() throws InvalidKeyException;
+    }
+
+    private class MacPool extends ContextPool<Mac> {
+        private final String algorithm;
+        private final SecretKey secretKey;
+        private Mac prototype;
+
+        MacPool(String algorithm, SecretKey secretKey) {
+            this.algorithm = algorithm;
+            this.secretKey = secretKey;
+        }
+
+        @Override
+        protected synchronized Mac create() throws InvalidKeyException {
+            if (prototype == null) {
+                prototype = newMac();
+            }
+            try {
+                // copies the already computed key pads
+                return (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                return newMac();
+            }
+        }
+
+        private Mac newMac() throws InvalidKeyException {
+            try {
+                Mac mac = Mac.getInstance(algorithm);
+                mac.init(secretKey);
+                return mac;
+            } catch (NoSuchAlgorithmException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+
+    private class SignaturePool extends ContextPool<Signature> {
+        private final String algorithm;
+        private final PrivateKey privateKey;
+        private final PublicKey publicKey;
+
+        SignaturePool(String algorithm, PrivateKey privateKey, PublicKey publicKey) {
+            this.algorithm = algorithm;
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+        }
+
+        @Override
+        protected Signature create() throws InvalidKeyException {
+            try {
+                Signature signature = Signature.getInstance(algorithm);
+                if (privateKey != null) {
+                    signature.initSign(privateKey);
+                } else {
+                    signature.initVerify(publicKey);
+                }
+                return signature;
+            } catch (NoSuchAlgorithmException e) {
+                throw new UnexpectedException(e);
+            }
+        }
+    }
+
+    // delegated operations
+
+    @Override
+    public RSAKeyPair generateRSAKeyPair(int keySize) {
+        return engine.generateRSAKeyPair(keySize);
+    }
+
+    @Override
+    public AESKey generateAESKey(AESKeyLen keySize) {
+        return engine.generateAESKey(keySize);
+    }
+
+    @Override
+    public AESKey generateAESKey(AESKeyLen keySize, DHPrivateKey dhPrivateKey, DHPublicKey dhPublicKey) throws InvalidKeyException {
+        return engine.generateAESKey(keySize, dhPrivateKey, dhPublicKey);
+    }
+
+    @Override
+    public AESKey generatePBEAESKey(DigestAlgorithm digestAlgorithm, char[] key, int iterations, byte[] salt, AESKeyLen keyLen) {
+        return engine.generatePBEAESKey(digestAlgorithm, key, iterations, salt, keyLen);
+    }
+
+    @Override
+    public HMACKey generatePBEHMACKey(DigestAlgorithm kdfDigestAlgorithm, DigestAlgorithm hmacDigestAlgorithm, char[] key, int iterations, byte[] salt) {
+        return engine.generatePBEHMACKey(kdfDigestAlgorithm, hmacDigestAlgorithm, key, iterations, salt);
+    }
+
+    @Override
+    public HMACKey generateHMACKey(DigestAlgorithm digestAlgorithm) {
+        return engine.generateHMACKey(digestAlgorithm);
+    }
+
+    @Override
+    public HMACKey generateHMACKey(DigestAlgorithm digestAlgorithm, DHPrivateKey dhPrivateKey, DHPublicKey dhPublicKey) throws InvalidKeyException {
+        return engine.generateHMACKey(digestAlgorithm, dhPrivateKey, dhPublicKey);
+    }
+
+    @Override
+    public Certificate generateCertificate(String subject, com.kloudtek.kryptotek.key.PublicKey publicKey) {
+        return engine.generateCertificate(subject, publicKey);
+    }
+
+    @Override
+    public DHParameters generateDHParameters(int keySize) {
+        return engine.generateDHParameters(keySize);
+    }
+
+    @Override
+    public DHKeyPair generateDHKeyPair(DHParameters parameterSpec) {
+        return engine.generateDHKeyPair(parameterSpec);
+    }
+
+    @Override
+    public Key readSerializedKey(byte[] serializedKey) throws InvalidKeyException {
+        return engine.readSerializedKey(serializedKey);
+    }
+
+    @Override
+    public <K extends Key> K readKey(Class<K> keyType, EncodedKey encodedKey) throws InvalidKeyException {
+        return engine.readKey(keyType, encodedKey);
+    }
+
+    @Override
+    public <K extends Key> K readKey(Class<K> keyType, byte[] encodedKey) throws InvalidKeyException {
+        return engine.readKey(keyType, encodedKey);
+    }
+
+    @Override
+    public byte[] encrypt(EncryptionKey key, byte[] data, boolean compatibilityMode) throws EncryptionException {
+        return engine.encrypt(key, data, compatibilityMode);
+    }
+
+    @Override
+    public byte[] encrypt(EncryptionKey key, byte[] data, String cipherAlgorithm) throws EncryptionException {
+        return engine.encrypt(key, data, cipherAlgorithm);
+    }
+
+    @Override
+    public byte[] encrypt(EncryptionKey key, SymmetricAlgorithm symmetricAlgorithm, int symmetricKeySize, byte[] data, boolean compatibilityMode) throws EncryptionException {
+        return engine.encrypt(key, symmetricAlgorithm, symmetricKeySize, data, compatibilityMode);
+    }
+
+    @Override
+    public byte[] encrypt(EncryptionKey key, SymmetricAlgorithm symmetricAlgorithm, String symmetricAlgorithmCipher, int symmetricKeySize, byte[] data, String cipherAlgorithm) throws EncryptionException {
+        return engine.encrypt(key, symmetricAlgorithm, symmetricAlgorithmCipher, symmetricKeySize, data, cipherAlgorithm);
+    }
+
+    @Override
+    public byte[] decrypt(DecryptionKey key, byte[] data, boolean compatibilityMode) throws DecryptionException {
+        return engine.decrypt(key, data, compatibilityMode);
+    }
+
+    @Override
+    public byte[] decrypt(DecryptionKey key, byte[] data, String cipherAlgorithm) throws DecryptionException {
+        return engine.decrypt(key, data, cipherAlgorithm);
+    }
+
+    @Override
+    public byte[] decrypt(DecryptionKey key, SymmetricAlgorithm symmetricAlgorithm, int symmetricKeySize, byte[] data, boolean compatibilityMode) throws DecryptionException {
+        return engine.decrypt(key, symmetricAlgorithm, symmetricKeySize, data, compatibilityMode);
+    }
+
+    @Override
+    public byte[] decrypt(DecryptionKey key, SymmetricAlgorithm symmetricAlgorithm, String symmetricAlgorithmCipher, int symmetricKeySize, byte[] data, String cipherAlgorithm) throws DecryptionException {
+        return engine.decrypt(key, symmetricAlgorithm, symmetricAlgorithmCipher, symmetricKeySize, data, cipherAlgorithm);
+    }
+
+    @Override
+    public byte[] digest(byte[] data, DigestAlgorithm alg) {
+        return engine.digest(data, alg);
+    }
+
+    @Override
+    public Digest digest(DigestAlgorithm alg) {
+        return engine.digest(alg);
+    }
+
+    @Override
+    public byte[] pbkdf2(DigestAlgorithm digestAlgorithms, char[] password, int iterations, byte[] salt, int keyLen) {
+        return engine.pbkdf2(digestAlgorithms, password, iterations, salt, keyLen);
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * Source of the current time used for request and response timestamps, which can be replaced to control time in
+ * tests (see {@link SystemClock} for the default implementation).
+ */
+public interface Clock {
+    /**
+     * Get the current time
+     *
+     * @return current time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+}
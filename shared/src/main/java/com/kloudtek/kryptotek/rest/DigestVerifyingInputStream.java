@@ -0,0 +1,145 @@
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.Digest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that digests data as it is read, and calls {@link #verify(byte[])} once the end of the stream has been
+ * reached. If verification fails, the read that reached the end of the stream (and all subsequent ones) will throw
+ * an {@link InvalidContentSignatureException}.
+ */
+public abstract class DigestVerifyingInputStream extends FilterInputStream {
+    private final Digest digest;
+    private final Long maxSize;
+    private long count;
+    private boolean verified;
+    private IOException failure;
+
+    public DigestVerifyingInputStream(InputStream in, Digest digest, Long maxSize) {
+        super(in);
+        this.digest = digest;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkFailure();
+        int b = in.read();
+        if (b == -1) {
+            eof();
+        } else {
+            digest.update((byte) b);
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+        int read = in.read(b, off, len);
+        if (read == -1) {
+            eof();
+        } else if (read > 0) {
+            digest.update(b, off, read);
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        // skipped data still needs to be digested
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * Read (and discard) any content not yet consumed, in order to trigger the verification.
+     *
+     * @throws InvalidContentSignatureException If the content signature is invalid
+     * @throws IOException                      If an error occurred while reading the content
+     */
+    public void verifyFully() throws IOException {
+        if (!verified) {
+            byte[] buf = new byte[8192];
+            while (read(buf, 0, buf.length) != -1) {
+                // digesting remaining data
+            }
+        }
+    }
+
+    private void count(int read) throws IOException {
+        count += read;
+        if (maxSize != null && count > maxSize) {
+            failure = new IOException("Content exceeds maximum size of " + maxSize);
+            throw failure;
+        }
+    }
+
+    private void eof() throws IOException {
+        if (!verified) {
+            boolean valid;
+            try {
+                valid = verify(digest.digest());
+            } catch (IOException e) {
+                // the digest can't be recomputed, so later reads must fail rather than report a clean end of stream
+                failure = e;
+                throw e;
+            }
+            if (valid) {
+                verified = true;
+            } else {
+                failure = new InvalidContentSignatureException("Content does not match signature");
+                throw failure;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Verify the digest of the content
+     *
+     * @param contentDigest Digest of the full content
+     * @return true if the content is valid
+     * @throws IOException If an error occurred while verifying the content
+     */
+    protected abstract boolean verify(byte[] contentDigest) throws IOException;
+}
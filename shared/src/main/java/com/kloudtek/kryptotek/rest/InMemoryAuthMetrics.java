@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link AuthMetrics} that keeps a {@link LatencyHistogram} per stage and a counter per failure reason, for as long as
+ * the instance lives. Use {@link AuthMetricsJmxExporter} to publish them.
+ */
+public class InMemoryAuthMetrics implements AuthMetrics {
+    private final LatencyHistogram[] histograms;
+    private final ConcurrentHashMap<Enum<?>, StripedCounter> failures = new ConcurrentHashMap<Enum<?>, StripedCounter>();
+
+    public InMemoryAuthMetrics() {
+        histograms = new LatencyHistogram[AuthStage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void stop(AuthStage stage, long start) {
+        histograms[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void failure(Enum<?> reason) {
+        StripedCounter counter = failures.get(reason);
+        if (counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = failures.putIfAbsent(reason, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.increment();
+    }
+
+    public LatencyHistogram getHistogram(AuthStage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Get the number of failures recorded for a reason
+     *
+     * @param reason Reason
+     * @return number of failures
+     */
+    public long getFailures(Enum<?> reason) {
+        StripedCounter counter = failures.get(reason);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Get the number of failures recorded for each reason
+     *
+     * @return failure counts, for reasons that have occurred at least once
+     */
+    public Map<Enum<?>, Long> getFailures() {
+        Map<Enum<?>, Long> counts = new LinkedHashMap<Enum<?>, Long>();
+        for (Map.Entry<Enum<?>, StripedCounter> entry : failures.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+}
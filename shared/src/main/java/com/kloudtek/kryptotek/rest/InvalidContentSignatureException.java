@@ -0,0 +1,16 @@
+package com.kloudtek.kryptotek.rest;
+
+import java.io.IOException;
+
+/**
+ * Thrown when reading a streamed request or response body whose digest does not match the signature.
+ */
+public class InvalidContentSignatureException extends IOException {
+    public InvalidContentSignatureException(String message) {
+        super(message);
+    }
+
+    public InvalidContentSignatureException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
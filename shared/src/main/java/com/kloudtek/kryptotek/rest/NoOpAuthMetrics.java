@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+/**
+ * {@link AuthMetrics} that ignores everything (the default)
+ */
+public final class NoOpAuthMetrics implements AuthMetrics {
+    public static final NoOpAuthMetrics INSTANCE = new NoOpAuthMetrics();
+
+    private NoOpAuthMetrics() {
+    }
+
+    @Override
+    public long start() {
+        return 0;
+    }
+
+    @Override
+    public void stop(AuthStage stage, long start) {
+    }
+
+    @Override
+    public void failure(Enum<?> reason) {
+    }
+}
@@ -5,15 +5,14 @@
 package com.kloudtek.kryptotek.rest;
 
 import com.kloudtek.kryptotek.CryptoUtils;
-import com.kloudtek.util.StringUtils;
-import com.kloudtek.util.TimeUtils;
+import com.kloudtek.kryptotek.Digest;
 import com.kloudtek.util.validation.ValidationUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
+import javax.crypto.Mac;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.UUID;
 
 /**
@@ -25,12 +24,35 @@ public class RESTRequestSigner {
     public static final String HEADER_IDENTITY = "X-IDENTITY";
     public static final String HEADER_SIGNATURE = "X-SIGNATURE";
     public static final String HEADER_EXCLUDEBODY = "X-SIGNATURE-EXCLUDEBODY";
+    /**
+     * When set to true, the signed content is the digest of the body (using the signature's digest algorithm) rather
+     * than the body itself, which allows the body to be verified as it is streamed. This mode is part of the data to
+     * sign (see {@link #setDigestedContent(boolean)}).
+     */
+    public static final String HEADER_DIGESTBODY = "X-SIGNATURE-DIGESTBODY";
+    /**
+     * When set to true, the client accepts responses whose signature covers the digest of the body (see
+     * {@link #HEADER_DIGESTBODY}), so that the server can stream them. This is independent of the request content,
+     * and is also sent with requests that don't have any (ie: GET).
+     */
+    public static final String HEADER_ACCEPT_DIGESTBODY = "X-SIGNATURE-ACCEPT-DIGESTBODY";
+    /**
+     * Id of the session (see {@link SessionHandshake}) whose key signed the request, and must be used to sign the
+     * response.
+     */
+    public static final String HEADER_SESSION = "X-SESSION";
+    /**
+     * Algorithm used to sign the request (see {@link SignatureAlgorithms}), which is also used to sign the response.
+     * When not set the server's default algorithm is used.
+     */
+    public static final String HEADER_SIGNATURE_ALG = "X-SIGNATURE-ALG";
     private String method;
     private String uri;
     private String nonce;
     private String timestamp;
     private String identity;
     private byte[] content;
+    private boolean digestedContent;
 
     public RESTRequestSigner(@NotNull String method, @NotNull String uri, @NotNull String nonce, @NotNull String timestamp, @NotNull String identity) {
         this.method = method.toUpperCase();
@@ -45,7 +67,11 @@ public class RESTRequestSigner {
     }
 
     public RESTRequestSigner(@NotNull String method, @NotNull String uri, long timeDifferential, @NotNull String identity, byte[] content) {
-        this(method, uri, UUID.randomUUID().toString(), TimeUtils.formatISOUTCDateTime(new Date(System.currentTimeMillis() - timeDifferential)), identity );
+        this(method, uri, SystemClock.INSTANCE, timeDifferential, identity, content);
+    }
+
+    public RESTRequestSigner(@NotNull String method, @NotNull String uri, @NotNull Clock clock, long timeDifferential, @NotNull String identity, byte[] content) {
+        this(method, uri, UUID.randomUUID().toString(), TimestampCodec.format(clock.currentTimeMillis() - timeDifferential), identity);
         this.content = content;
     }
 
@@ -97,6 +123,20 @@ public class RESTRequestSigner {
         this.content = content;
     }
 
+    public boolean isDigestedContent() {
+        return digestedContent;
+    }
+
+    /**
+     * Set whether the content is the digest of the body (see {@link #HEADER_DIGESTBODY}), which is part of the data
+     * to sign
+     *
+     * @param digestedContent true if the content is a digest
+     */
+    public void setDigestedContent(boolean digestedContent) {
+        this.digestedContent = digestedContent;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -104,6 +144,7 @@ public class RESTRequestSigner {
 
         RESTRequestSigner that = (RESTRequestSigner) o;
 
+        if (digestedContent != that.digestedContent) return false;
         if (!Arrays.equals(content, that.content)) return false;
         if (identity != null ? !identity.equals(that.identity) : that.identity != null) return false;
         if (method != null ? !method.equals(that.method) : that.method != null) return false;
@@ -121,6 +162,7 @@ public class RESTRequestSigner {
         result = 31 * result + (timestamp != null ? timestamp.hashCode() : 0);
         result = 31 * result + (identity != null ? identity.hashCode() : 0);
         result = 31 * result + (content != null ? Arrays.hashCode(content) : 0);
+        result = 31 * result + (digestedContent ? 1 : 0);
         return result;
     }
 
@@ -133,18 +175,49 @@ public class RESTRequestSigner {
                 ", timestamp='" + timestamp + '\'' +
                 ", identity='" + identity + '\'' +
                 ", content=" +(content != null ? CryptoUtils.fingerprint(content) : "null") +
+                ", digestedContent=" + digestedContent +
                 '}';
     }
 
     public byte[] getDataToSign() throws IOException {
+        validate();
+        return SigningDataEncoder.encodeRequest(method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Write the data to sign into a buffer, without any intermediate allocation.
+     *
+     * @param buffer Buffer to write the data to
+     * @throws java.nio.BufferOverflowException if the buffer isn't large enough
+     */
+    public void writeDataToSign(ByteBuffer buffer) {
+        validate();
+        SigningDataEncoder.encodeRequest(buffer, method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Update a digest with the data to sign, without any intermediate allocation.
+     *
+     * @param digest Digest to update
+     */
+    public void writeDataToSign(Digest digest) {
+        validate();
+        SigningDataEncoder.encodeRequest(digest, method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Update a MAC with the data to sign, without any intermediate allocation.
+     *
+     * @param mac MAC to update
+     */
+    public void writeDataToSign(Mac mac) {
+        validate();
+        SigningDataEncoder.encodeRequest(mac, method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    private void validate() {
         if (!ValidationUtils.notEmpty(method, uri, nonce, timestamp, identity)) {
             throw new IllegalArgumentException("Not all signing parameters have been set");
         }
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        buf.write(StringUtils.utf8(method.toUpperCase().trim() + '\n' + uri.trim() + '\n' + nonce + '\n' + timestamp.trim().toUpperCase() + '\n' + identity + '\n'));
-        if( content != null ) {
-            buf.write(content);
-        }
-        return buf.toByteArray();
     }
 }
@@ -4,8 +4,11 @@
 
 package com.kloudtek.kryptotek.rest;
 
-import java.io.ByteArrayOutputStream;
+import com.kloudtek.kryptotek.Digest;
+
+import javax.crypto.Mac;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by yannick on 28/10/2014.
@@ -16,6 +19,7 @@ public class RESTResponseSigner {
     private int statusCode;
     private boolean excludeContent;
     private byte[] content;
+    private boolean digestedContent;
 
     public RESTResponseSigner() {
     }
@@ -76,14 +80,49 @@ public class RESTResponseSigner {
         this.excludeContent = excludeContent;
     }
 
+    public boolean isDigestedContent() {
+        return digestedContent;
+    }
+
+    /**
+     * Set whether the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY}), which is
+     * part of the data to sign
+     *
+     * @param digestedContent true if the content is a digest
+     */
+    public void setDigestedContent(boolean digestedContent) {
+        this.digestedContent = digestedContent;
+    }
+
     public byte[] getDataToSign() throws IOException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        String str = nonce.trim() + "\n" + requestSignature.trim() + "\n" + Integer.toString(statusCode) + "\n" + (excludeContent ? "y" : "n") + "\n";
-        buf.write(str.getBytes("UTF-8"));
-        if( content != null && !excludeContent ) {
-            buf.write(content);
-        }
-        buf.close();
-        return buf.toByteArray();
+        return SigningDataEncoder.encodeResponse(nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    /**
+     * Write the data to sign into a buffer, without any intermediate allocation.
+     *
+     * @param buffer Buffer to write the data to
+     * @throws java.nio.BufferOverflowException if the buffer isn't large enough
+     */
+    public void writeDataToSign(ByteBuffer buffer) {
+        SigningDataEncoder.encodeResponse(buffer, nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    /**
+     * Update a digest with the data to sign, without any intermediate allocation.
+     *
+     * @param digest Digest to update
+     */
+    public void writeDataToSign(Digest digest) {
+        SigningDataEncoder.encodeResponse(digest, nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    /**
+     * Update a MAC with the data to sign, without any intermediate allocation.
+     *
+     * @param mac MAC to update
+     */
+    public void writeDataToSign(Mac mac) {
+        SigningDataEncoder.encodeResponse(mac, nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.key.DHKeyPair;
+import com.kloudtek.kryptotek.key.DHParameters;
+import com.kloudtek.kryptotek.key.DHPrivateKey;
+import com.kloudtek.kryptotek.key.HMACKey;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+
+/**
+ * Session handshake, which lets a client replace per-request asymmetric signatures with HMAC signatures.
+ * <p>
+ * The client sends a request signed with its long-term key to the session endpoint, whose body is the encoded public
+ * key of an ephemeral Diffie-Hellman key pair ({@link #generateKeyPair(CryptoEngine)}). The server answers with a
+ * response signed with its long-term key, containing a session id, the session's time to live, and its own ephemeral
+ * public key ({@link #encodeResponse(String, long, byte[])}). Both sides then derive the same HMAC key
+ * ({@link #deriveKey(CryptoEngine, DHPrivateKey, byte[])}), which signs subsequent requests (sent with the
+ * {@link RESTRequestSigner#HEADER_SESSION} header) and their responses until the session expires. Since both public
+ * keys are covered by the long-term signatures, the exchange can't be tampered with.
+ * </p>
+ */
+public final class SessionHandshake {
+    public static final String CONTENT_TYPE = "application/x-kryptotek-session";
+    public static final DigestAlgorithm KEY_ALGORITHM = DigestAlgorithm.SHA256;
+    /**
+     * RFC 3526 2048-bit MODP group, with 256 bits private exponents
+     */
+    public static final DHParameters DH_PARAMETERS = new DHParameters(new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
+                    "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+                    "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F" +
+                    "83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B" +
+                    "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA0510" +
+                    "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16), BigInteger.valueOf(2), 256);
+    private static final int RESPONSE_MAGIC = 0x4B545331; // KTS1
+
+    private SessionHandshake() {
+    }
+
+    /**
+     * Generate an ephemeral key pair for a handshake
+     *
+     * @param cryptoEngine Crypto engine
+     * @return key pair
+     */
+    public static DHKeyPair generateKeyPair(CryptoEngine cryptoEngine) {
+        return cryptoEngine.generateDHKeyPair(DH_PARAMETERS);
+    }
+
+    /**
+     * Encode the public key of an ephemeral key pair
+     *
+     * @param keyPair Key pair
+     * @return encoded public key
+     */
+    public static byte[] encodePublicKey(DHKeyPair keyPair) {
+        return keyPair.getPublicKey().getEncoded().getEncodedKey();
+    }
+
+    /**
+     * Derive the session key
+     *
+     * @param cryptoEngine  Crypto engine
+     * @param privateKey    Our ephemeral private key
+     * @param peerPublicKey The other side's encoded ephemeral public key
+     * @return session key
+     * @throws InvalidKeyException If the public key is invalid
+     */
+    public static HMACKey deriveKey(CryptoEngine cryptoEngine, DHPrivateKey privateKey, byte[] peerPublicKey) throws InvalidKeyException {
+        return cryptoEngine.generateHMACKey(KEY_ALGORITHM, privateKey, cryptoEngine.readDHPublicKey(peerPublicKey));
+    }
+
+    public static byte[] encodeResponse(String sessionId, long ttl, byte[] serverPublicKey) {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(RESPONSE_MAGIC);
+            out.writeUTF(sessionId);
+            out.writeLong(ttl);
+            out.writeInt(serverPublicKey.length);
+            out.write(serverPublicKey);
+            out.flush();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode session: " + e.getMessage(), e);
+        }
+    }
+
+    public static Response decodeResponse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != RESPONSE_MAGIC) {
+            throw new IOException("Invalid session handshake response");
+        }
+        String sessionId = in.readUTF();
+        long ttl = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid session handshake response");
+        }
+        byte[] publicKey = new byte[length];
+        in.readFully(publicKey);
+        return new Response(sessionId, ttl, publicKey);
+    }
+
+    /**
+     * Decoded handshake response
+     */
+    public static class Response {
+        private final String sessionId;
+        private final long ttl;
+        private final byte[] publicKey;
+
+        public Response(String sessionId, long ttl, byte[] publicKey) {
+            this.sessionId = sessionId;
+            this.ttl = ttl;
+            this.publicKey = publicKey;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Get the session's time to live
+         *
+         * @return time to live in milliseconds
+         */
+        public long getTtl() {
+            return ttl;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.DigestAlgorithm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the algorithms that can be declared in the {@link RESTRequestSigner#HEADER_SIGNATURE_ALG} header.
+ * <p>
+ * The declared algorithm is the digest used by the signature (for RSA keys), and for the content digest when the body
+ * is digested (see {@link RESTRequestSigner#HEADER_DIGESTBODY}). HMAC keys are bound to their own digest algorithm.
+ * </p>
+ */
+public final class SignatureAlgorithms {
+    private static final Map<String, DigestAlgorithm> algorithms = new HashMap<String, DigestAlgorithm>();
+
+    static {
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            algorithms.put(algorithm.name(), algorithm);
+            algorithms.put(algorithm.getJceId(), algorithm);
+        }
+    }
+
+    private SignatureAlgorithms() {
+    }
+
+    /**
+     * Resolve an algorithm
+     *
+     * @param name Name as set in the header (for example {@code SHA512} or {@code SHA-512})
+     * @return algorithm, or null if it isn't supported
+     */
+    public static DigestAlgorithm get(String name) {
+        return algorithms.get(name);
+    }
+}
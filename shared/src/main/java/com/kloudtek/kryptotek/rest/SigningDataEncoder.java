@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.Digest;
+import com.kloudtek.util.StringUtils;
+
+import javax.crypto.Mac;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Encodes the canonical data to sign for requests ({@link RESTRequestSigner#getDataToSign()}) and responses
+ * ({@link RESTResponseSigner#getDataToSign()}) directly into a caller provided {@link ByteBuffer}, {@link Digest} or
+ * {@link Mac}, without building intermediate strings or buffers. The output is byte-identical to the original format.
+ * ASCII values are encoded in place, while values that contain non-ASCII characters fall back to the equivalent
+ * {@link String} operations.
+ * <p>
+ * When the content is a digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY}), the data to sign for
+ * requests and responses starts with a NUL byte and a {@code DIGEST} line. Since the first field is trimmed, data for
+ * raw content never starts with a NUL byte, so a signature over digested content can't be replayed with the digest
+ * sent as a raw body.
+ * </p>
+ */
+public final class SigningDataEncoder {
+    private static final byte NL = '\n';
+    private static final byte[] DIGESTED_CONTENT_MARKER = {0, 'D', 'I', 'G', 'E', 'S', 'T', NL};
+    private static final boolean LOCALE_SENSITIVE_CASE;
+
+    static {
+        // toUpperCase() in turkish, azeri and lithuanian locales doesn't map 'i' to 'I'
+        String lang = Locale.getDefault().getLanguage();
+        LOCALE_SENSITIVE_CASE = lang.equals("tr") || lang.equals("az") || lang.equals("lt");
+    }
+
+    private SigningDataEncoder() {
+    }
+
+    /**
+     * Encode the request data to sign into a new array (of exactly the right size)
+     *
+     * @param method          Request method
+     * @param uri             Request URI (including the query string)
+     * @param nonce           Request nonce
+     * @param timestamp       Request timestamp
+     * @param identity        Identity of the client
+     * @param digestedContent true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content         Request content, or null if there is none
+     * @return data to sign
+     */
+    public static byte[] encodeRequest(String method, String uri, String nonce, String timestamp, String identity, boolean digestedContent, byte[] content) {
+        CountingSink counter = new CountingSink();
+        writeRequest(counter, method, uri, nonce, timestamp, identity, digestedContent, content);
+        ByteBufferSink sink = new ByteBufferSink(ByteBuffer.allocate(counter.count));
+        writeRequest(sink, method, uri, nonce, timestamp, identity, digestedContent, content);
+        return sink.buffer.array();
+    }
+
+    /**
+     * Encode the request data to sign into a buffer
+     *
+     * @param buffer          Buffer to write the data to
+     * @param method          Request method
+     * @param uri             Request URI (including the query string)
+     * @param nonce           Request nonce
+     * @param timestamp       Request timestamp
+     * @param identity        Identity of the client
+     * @param digestedContent true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content         Request content, or null if there is none
+     * @throws java.nio.BufferOverflowException if the buffer isn't large enough
+     */
+    public static void encodeRequest(ByteBuffer buffer, String method, String uri, String nonce, String timestamp, String identity, boolean digestedContent, byte[] content) {
+        writeRequest(new ByteBufferSink(buffer), method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Update a digest with the request data to sign
+     *
+     * @param digest          Digest to update
+     * @param method          Request method
+     * @param uri             Request URI (including the query string)
+     * @param nonce           Request nonce
+     * @param timestamp       Request timestamp
+     * @param identity        Identity of the client
+     * @param digestedContent true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content         Request content, or null if there is none
+     */
+    public static void encodeRequest(Digest digest, String method, String uri, String nonce, String timestamp, String identity, boolean digestedContent, byte[] content) {
+        writeRequest(new DigestSink(digest), method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Update a MAC with the request data to sign
+     *
+     * @param mac             MAC to update
+     * @param method          Request method
+     * @param uri             Request URI (including the query string)
+     * @param nonce           Request nonce
+     * @param timestamp       Request timestamp
+     * @param identity        Identity of the client
+     * @param digestedContent true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content         Request content, or null if there is none
+     */
+    public static void encodeRequest(Mac mac, String method, String uri, String nonce, String timestamp, String identity, boolean digestedContent, byte[] content) {
+        writeRequest(new MacSink(mac), method, uri, nonce, timestamp, identity, digestedContent, content);
+    }
+
+    /**
+     * Encode the response data to sign into a new array (of exactly the right size)
+     *
+     * @param nonce            Nonce of the request
+     * @param requestSignature Signature of the request
+     * @param statusCode       Response status code
+     * @param excludeContent   true if the content isn't signed (see {@link RESTRequestSigner#HEADER_EXCLUDEBODY})
+     * @param digestedContent  true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content          Response content, or null if there is none
+     * @return data to sign
+     */
+    public static byte[] encodeResponse(String nonce, String requestSignature, int statusCode, boolean excludeContent, boolean digestedContent, byte[] content) {
+        CountingSink counter = new CountingSink();
+        writeResponse(counter, nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+        ByteBufferSink sink = new ByteBufferSink(ByteBuffer.allocate(counter.count));
+        writeResponse(sink, nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+        return sink.buffer.array();
+    }
+
+    /**
+     * Encode the response data to sign into a buffer
+     *
+     * @param buffer           Buffer to write the data to
+     * @param nonce            Nonce of the request
+     * @param requestSignature Signature of the request
+     * @param statusCode       Response status code
+     * @param excludeContent   true if the content isn't signed (see {@link RESTRequestSigner#HEADER_EXCLUDEBODY})
+     * @param digestedContent  true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content          Response content, or null if there is none
+     * @throws java.nio.BufferOverflowException if the buffer isn't large enough
+     */
+    public static void encodeResponse(ByteBuffer buffer, String nonce, String requestSignature, int statusCode, boolean excludeContent, boolean digestedContent, byte[] content) {
+        writeResponse(new ByteBufferSink(buffer), nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    /**
+     * Update a digest with the response data to sign
+     *
+     * @param digest           Digest to update
+     * @param nonce            Nonce of the request
+     * @param requestSignature Signature of the request
+     * @param statusCode       Response status code
+     * @param excludeContent   true if the content isn't signed (see {@link RESTRequestSigner#HEADER_EXCLUDEBODY})
+     * @param digestedContent  true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content          Response content, or null if there is none
+     */
+    public static void encodeResponse(Digest digest, String nonce, String requestSignature, int statusCode, boolean excludeContent, boolean digestedContent, byte[] content) {
+        writeResponse(new DigestSink(digest), nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    /**
+     * Update a MAC with the response data to sign
+     *
+     * @param mac              MAC to update
+     * @param nonce            Nonce of the request
+     * @param requestSignature Signature of the request
+     * @param statusCode       Response status code
+     * @param excludeContent   true if the content isn't signed (see {@link RESTRequestSigner#HEADER_EXCLUDEBODY})
+     * @param digestedContent  true if the content is the digest of the body (see {@link RESTRequestSigner#HEADER_DIGESTBODY})
+     * @param content          Response content, or null if there is none
+     */
+    public static void encodeResponse(Mac mac, String nonce, String requestSignature, int statusCode, boolean excludeContent, boolean digestedContent, byte[] content) {
+        writeResponse(new MacSink(mac), nonce, requestSignature, statusCode, excludeContent, digestedContent, content);
+    }
+
+    private static void writeRequest(Sink sink, String method, String uri, String nonce, String timestamp, String identity, boolean digestedContent, byte[] content) {
+        // method.toUpperCase().trim() + '\n' + uri.trim() + '\n' + nonce + '\n' + timestamp.trim().toUpperCase() + '\n' + identity + '\n'
+        if (digestedContent) {
+            sink.put(DIGESTED_CONTENT_MARKER);
+        }
+        if (isAscii(method)) {
+            writeAscii(sink, method, true, true);
+        } else {
+            writeUtf8(sink, method.toUpperCase().trim());
+        }
+        sink.put(NL);
+        if (isAscii(uri)) {
+            writeAscii(sink, uri, true, false);
+        } else {
+            writeUtf8(sink, uri.trim());
+        }
+        sink.put(NL);
+        write(sink, nonce);
+        sink.put(NL);
+        if (isAscii(timestamp)) {
+            writeAscii(sink, timestamp, true, true);
+        } else {
+            writeUtf8(sink, timestamp.trim().toUpperCase());
+        }
+        sink.put(NL);
+        write(sink, identity);
+        sink.put(NL);
+        if (content != null) {
+            sink.put(content);
+        }
+    }
+
+    private static void writeResponse(Sink sink, String nonce, String requestSignature, int statusCode, boolean excludeContent, boolean digestedContent, byte[] content) {
+        // nonce.trim() + "\n" + requestSignature.trim() + "\n" + Integer.toString(statusCode) + "\n" + (excludeContent ? "y" : "n") + "\n"
+        if (digestedContent) {
+            sink.put(DIGESTED_CONTENT_MARKER);
+        }
+        if (isAscii(nonce)) {
+            writeAscii(sink, nonce, true, false);
+        } else {
+            writeUtf8(sink, nonce.trim());
+        }
+        sink.put(NL);
+        if (isAscii(requestSignature)) {
+            writeAscii(sink, requestSignature, true, false);
+        } else {
+            writeUtf8(sink, requestSignature.trim());
+        }
+        sink.put(NL);
+        writeInt(sink, statusCode);
+        sink.put(NL);
+        sink.put((byte) (excludeContent ? 'y' : 'n'));
+        sink.put(NL);
+        if (content != null && !excludeContent) {
+            sink.put(content);
+        }
+    }
+
+    private static void write(Sink sink, String str) {
+        if (isAscii(str)) {
+            writeAscii(sink, str, false, false);
+        } else {
+            writeUtf8(sink, str);
+        }
+    }
+
+    /**
+     * Checks if a value only contains ASCII characters, and so can be encoded without going through {@link String}
+     * operations. Case conversion of some ASCII characters differs under some locales, in which case this returns false.
+     */
+    private static boolean isAscii(String str) {
+        if (LOCALE_SENSITIVE_CASE) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeAscii(Sink sink, String str, boolean trim, boolean upperCase) {
+        int start = 0;
+        int end = str.length();
+        if (trim) {
+            // same as String.trim()
+            while (start < end && str.charAt(start) <= ' ') {
+                start++;
+            }
+            while (start < end && str.charAt(end - 1) <= ' ') {
+                end--;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (upperCase && c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            sink.put((byte) c);
+        }
+    }
+
+    private static void writeUtf8(Sink sink, String str) {
+        sink.put(StringUtils.utf8(str));
+    }
+
+    private static void writeInt(Sink sink, int value) {
+        if (value == Integer.MIN_VALUE) {
+            writeAscii(sink, Integer.toString(value), false, false);
+            return;
+        }
+        if (value < 0) {
+            sink.put((byte) '-');
+            value = -value;
+        }
+        int div = 1;
+        while (value / div >= 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            sink.put((byte) ('0' + (value / div) % 10));
+        }
+    }
+
+    private static abstract class Sink {
+        abstract void put(byte b);
+
+        abstract void put(byte[] data);
+    }
+
+    private static class CountingSink extends Sink {
+        private int count;
+
+        @Override
+        void put(byte b) {
+            count++;
+        }
+
+        @Override
+        void put(byte[] data) {
+            count += data.length;
+        }
+    }
+
+    private static class ByteBufferSink extends Sink {
+        private final ByteBuffer buffer;
+
+        ByteBufferSink(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        void put(byte b) {
+            buffer.put(b);
+        }
+
+        @Override
+        void put(byte[] data) {
+            buffer.put(data);
+        }
+    }
+
+    private static class DigestSink extends Sink {
+        private final Digest digest;
+
+        DigestSink(Digest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        void put(byte b) {
+            digest.update(b);
+        }
+
+        @Override
+        void put(byte[] data) {
+            digest.update(data);
+        }
+    }
+
+    private static class MacSink extends Sink {
+        private final Mac mac;
+
+        MacSink(Mac mac) {
+            this.mac = mac;
+        }
+
+        @Override
+        void put(byte b) {
+            mac.update(b);
+        }
+
+        @Override
+        void put(byte[] data) {
+            mac.update(data);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter split across padded cells picked by thread, so that threads updating it concurrently rarely contend on the
+ * same cache line. Reading it sums all cells, so it's only suitable for counters that are written far more often than
+ * read.
+ */
+class StripedCounter {
+    // 8 longs = 64 bytes, so each cell sits on its own cache line
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+    private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * PADDING);
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors() * 2;
+        int stripes = Integer.highestOneBit(processors);
+        STRIPES = stripes < processors ? stripes << 1 : stripes;
+    }
+
+    void add(long value) {
+        cells.getAndAdd(index(), value);
+    }
+
+    void increment() {
+        cells.getAndIncrement(index());
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 1; i <= STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        // cell 0 is left unused so that no cell shares a line with the array header
+        return ((hash >>> 16 & (STRIPES - 1)) + 1) * PADDING;
+    }
+}
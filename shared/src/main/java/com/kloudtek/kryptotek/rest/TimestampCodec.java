@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.TimeUtils;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Formats and parses request/response timestamps ({@code yyyy-MM-dd'T'HH:mm:ss} in UTC), with the same results as
+ * {@link TimeUtils#formatISOUTCDateTime(Date)} and {@link TimeUtils#parseISOUTCDateTime(String)} but without locking
+ * or intermediate objects. Values outside the usual range (or not in the strict format when parsing) are delegated to
+ * {@link TimeUtils}.
+ */
+public final class TimestampCodec {
+    /**
+     * Length of a formatted timestamp
+     */
+    public static final int LENGTH = 19;
+    private static final long MIN_FAST = -11676096000000L; // 1600-01-01T00:00:00
+    private static final long MAX_FAST = 253402300799999L; // 9999-12-31T23:59:59.999
+    private static volatile CachedTimestamp cached = new CachedTimestamp(Long.MIN_VALUE, null);
+
+    private TimestampCodec() {
+    }
+
+    /**
+     * Format a timestamp
+     *
+     * @param millis Time in milliseconds since the epoch
+     * @return formatted timestamp
+     */
+    public static String format(long millis) {
+        if (millis < MIN_FAST || millis > MAX_FAST) {
+            return TimeUtils.formatISOUTCDateTime(new Date(millis));
+        }
+        char[] buf = new char[LENGTH];
+        format(millis, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Format a timestamp, caching the result so that formatting the current time is only done once per second
+     * (intended for response timestamps)
+     *
+     * @param millis Time in milliseconds since the epoch
+     * @return formatted timestamp
+     */
+    public static String formatCached(long millis) {
+        long second = floorDiv(millis, 1000);
+        CachedTimestamp timestamp = cached;
+        if (timestamp.second != second) {
+            timestamp = new CachedTimestamp(second, format(millis));
+            cached = timestamp;
+        }
+        return timestamp.value;
+    }
+
+    /**
+     * Format a timestamp into a buffer
+     *
+     * @param millis Time in milliseconds since the epoch (between years 1600 and 9999)
+     * @param buf    Buffer
+     * @param offset Offset at which to write the {@link #LENGTH} characters of the timestamp
+     */
+    public static void format(long millis, char[] buf, int offset) {
+        if (millis < MIN_FAST || millis > MAX_FAST) {
+            throw new IllegalArgumentException("Time out of range: " + millis);
+        }
+        long seconds = floorDiv(millis, 1000);
+        long days = floorDiv(seconds, 86400);
+        int secondOfDay = (int) (seconds - days * 86400);
+        // civil date from days since the epoch (proleptic gregorian)
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+        write4(buf, offset, year);
+        buf[offset + 4] = '-';
+        write2(buf, offset + 5, month);
+        buf[offset + 7] = '-';
+        write2(buf, offset + 8, day);
+        buf[offset + 10] = 'T';
+        write2(buf, offset + 11, secondOfDay / 3600);
+        buf[offset + 13] = ':';
+        write2(buf, offset + 14, (secondOfDay / 60) % 60);
+        buf[offset + 16] = ':';
+        write2(buf, offset + 17, secondOfDay % 60);
+    }
+
+    /**
+     * Parse a timestamp
+     *
+     * @param timestamp Timestamp
+     * @return time in milliseconds since the epoch
+     * @throws ParseException If the timestamp is invalid
+     */
+    public static long parse(String timestamp) throws ParseException {
+        if (timestamp.length() >= LENGTH && (timestamp.length() == LENGTH || !isDigit(timestamp.charAt(LENGTH)))
+                && timestamp.charAt(4) == '-' && timestamp.charAt(7) == '-' && timestamp.charAt(10) == 'T'
+                && timestamp.charAt(13) == ':' && timestamp.charAt(16) == ':') {
+            int year = read(timestamp, 0, 4);
+            int month = read(timestamp, 5, 2);
+            int day = read(timestamp, 8, 2);
+            int hour = read(timestamp, 11, 2);
+            int minute = read(timestamp, 14, 2);
+            int second = read(timestamp, 17, 2);
+            if (year >= 1600 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+                    && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                return (daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second) * 1000;
+            }
+        }
+        // not in the strict format, so let the lenient parser decide
+        return TimeUtils.parseISOUTCDateTime(timestamp).getTime();
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Read digits
+     *
+     * @return value or -1 if a character isn't a digit
+     */
+    private static int read(String str, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = str.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void write4(char[] buf, int offset, int value) {
+        write2(buf, offset, value / 100);
+        write2(buf, offset + 2, value % 100);
+    }
+
+    private static void write2(char[] buf, int offset, int value) {
+        buf[offset] = (char) ('0' + value / 10);
+        buf[offset + 1] = (char) ('0' + value % 10);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long r = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            r--;
+        }
+        return r;
+    }
+
+    private static final class CachedTimestamp {
+        private final long second;
+        private final String value;
+
+        CachedTimestamp(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.jce.JCECryptoEngine;
+import com.kloudtek.kryptotek.key.HMACKey;
+import com.kloudtek.kryptotek.key.RSAKeyPair;
+import org.testng.annotations.Test;
+
+import java.security.SignatureException;
+
+import static org.testng.Assert.*;
+
+public class CachingCryptoEngineTest {
+    private static final byte[] DATA = "safdfsa893wfjsafj893q2fjidwaqjf8913rjo14879fsdkjdl".getBytes();
+    private final CryptoEngine jceEngine = new JCECryptoEngine();
+
+    @Test
+    public void testHmac() throws Exception {
+        CachingCryptoEngine engine = new CachingCryptoEngine(jceEngine);
+        HMACKey key = jceEngine.generateHMACKey(DigestAlgorithm.SHA256);
+        byte[] expected = jceEngine.sign(key, DigestAlgorithm.SHA256, DATA);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(engine.sign(key, DigestAlgorithm.SHA256, DATA), expected);
+            engine.verifySignature(key, DigestAlgorithm.SHA256, DATA, expected);
+        }
+        // same key material read into a different key object
+        HMACKey copy = jceEngine.readHMACKey(DigestAlgorithm.SHA256, key.getEncoded().getEncodedKey());
+        assertEquals(engine.sign(copy, DigestAlgorithm.SHA256, DATA), expected);
+        assertEquals(engine.getCachedKeys(), 1);
+        try {
+            engine.verifySignature(key, DigestAlgorithm.SHA256, "other".getBytes(), expected);
+            fail("Invalid signature wasn't rejected");
+        } catch (SignatureException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRsa() throws Exception {
+        CachingCryptoEngine engine = new CachingCryptoEngine(jceEngine);
+        RSAKeyPair keyPair = jceEngine.generateRSAKeyPair(2048);
+        byte[] expected = jceEngine.sign(keyPair.getPrivateKey(), DigestAlgorithm.SHA256, DATA);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(engine.sign(keyPair.getPrivateKey(), DigestAlgorithm.SHA256, DATA), expected);
+            engine.verifySignature(keyPair.getPublicKey(), DigestAlgorithm.SHA256, DATA, expected);
+        }
+        // no algorithm defaults to SHA256, like the wrapped engine
+        assertEquals(engine.sign(keyPair.getPrivateKey(), null, DATA), jceEngine.sign(keyPair.getPrivateKey(), null, DATA));
+        engine.verifySignature(keyPair.getPublicKey(), null, DATA, expected);
+        try {
+            engine.verifySignature(keyPair.getPublicKey(), DigestAlgorithm.SHA256, "other".getBytes(), expected);
+            fail("Invalid signature wasn't rejected");
+        } catch (SignatureException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        CachingCryptoEngine engine = new CachingCryptoEngine(jceEngine, 10, 2);
+        for (int i = 0; i < 100; i++) {
+            HMACKey key = jceEngine.generateHMACKey(DigestAlgorithm.SHA256);
+            assertEquals(engine.sign(key, DigestAlgorithm.SHA256, DATA), jceEngine.sign(key, DigestAlgorithm.SHA256, DATA));
+            assertTrue(engine.getCachedKeys() <= 10);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.DigestAlgorithm;
+import com.kloudtek.kryptotek.jce.JCECryptoEngine;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.testng.Assert.*;
+
+public class DigestVerifyingInputStreamTest {
+    private static final byte[] DATA = "safdfsa893wfjsafj893q2fjidwaqjf8913rjo14879fsdkjdl".getBytes();
+
+    @Test
+    public void testSkipNegative() throws Exception {
+        DigestVerifyingInputStream stream = create(true, false);
+        assertEquals(stream.skip(-1), 0);
+        assertEquals(stream.skip(0), 0);
+        assertEquals(stream.skip(10), 10);
+        stream.verifyFully();
+        assertTrue(stream.isVerified());
+    }
+
+    @Test
+    public void testInvalidFailureIsSticky() throws Exception {
+        DigestVerifyingInputStream stream = create(false, false);
+        assertFailsAtEof(stream, InvalidContentSignatureException.class);
+    }
+
+    @Test
+    public void testVerifyErrorIsSticky() throws Exception {
+        DigestVerifyingInputStream stream = create(true, true);
+        assertFailsAtEof(stream, IOException.class);
+    }
+
+    private static void assertFailsAtEof(DigestVerifyingInputStream stream, Class<? extends IOException> type) throws IOException {
+        byte[] buf = new byte[DATA.length];
+        assertEquals(stream.read(buf, 0, buf.length), DATA.length);
+        for (int i = 0; i < 2; i++) {
+            try {
+                stream.read();
+                fail("Expected " + type.getSimpleName());
+            } catch (IOException e) {
+                assertTrue(type.isInstance(e));
+            }
+        }
+        assertFalse(stream.isVerified());
+    }
+
+    private static DigestVerifyingInputStream create(final boolean valid, final boolean error) {
+        return new DigestVerifyingInputStream(new ByteArrayInputStream(DATA), new JCECryptoEngine().digest(DigestAlgorithm.SHA256), null) {
+            @Override
+            protected boolean verify(byte[] contentDigest) throws IOException {
+                if (error) {
+                    throw new IOException("Backend unavailable");
+                }
+                return valid;
+            }
+        };
+    }
+}
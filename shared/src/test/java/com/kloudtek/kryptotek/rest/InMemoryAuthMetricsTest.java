@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static org.testng.Assert.*;
+
+public class InMemoryAuthMetricsTest {
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getValueAtPercentile(50), 0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMaxNanos(), 1000000);
+        assertEquals(histogram.getMeanNanos(), 500500.0, 0.1);
+        assertWithin(histogram.getValueAtPercentile(50), 500000);
+        assertWithin(histogram.getValueAtPercentile(99), 990000);
+        assertEquals(histogram.getValueAtPercentile(100), 1000000);
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value, Long.toString(value));
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < value, Long.toString(value));
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        InMemoryAuthMetrics metrics = new InMemoryAuthMetrics();
+        metrics.stop(AuthStage.SIGNATURE_VERIFICATION, metrics.start());
+        metrics.failure(AuthStage.REPLAY_CHECK);
+        metrics.failure(AuthStage.REPLAY_CHECK);
+        assertEquals(metrics.getHistogram(AuthStage.SIGNATURE_VERIFICATION).getCount(), 1);
+        assertEquals(metrics.getHistogram(AuthStage.RESPONSE_SIGNING).getCount(), 0);
+        assertEquals(metrics.getFailures(AuthStage.REPLAY_CHECK), 2);
+        assertEquals(metrics.getFailures(AuthStage.TIMESTAMP_CHECK), 0);
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName(AuthMetricsJmxExporter.DEFAULT_OBJECT_NAME);
+        AuthMetricsJmxExporter exporter = new AuthMetricsJmxExporter(metrics);
+        exporter.register(mBeanServer, name);
+        assertEquals(mBeanServer.getAttribute(name, "SIGNATURE_VERIFICATION.count"), 1L);
+        assertEquals(mBeanServer.getAttribute(name, "failures.REPLAY_CHECK"), 2L);
+        exporter.unregister();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final InMemoryAuthMetrics metrics = new InMemoryAuthMetrics();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        metrics.stop(AuthStage.AUTHENTICATION, metrics.start());
+                        metrics.failure(AuthStage.TIMESTAMP_CHECK);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(metrics.getHistogram(AuthStage.AUTHENTICATION).getCount(), 80000);
+        assertEquals(metrics.getFailures(AuthStage.TIMESTAMP_CHECK), 80000);
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual >= expected && actual <= expected + expected / 8, actual + " not within 12.5% of " + expected);
+    }
+}
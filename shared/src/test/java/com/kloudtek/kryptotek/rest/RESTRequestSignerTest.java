@@ -5,12 +5,19 @@
 package com.kloudtek.kryptotek.rest;
 
 import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.Digest;
 import com.kloudtek.kryptotek.DigestAlgorithm;
 import com.kloudtek.kryptotek.key.HMACKey;
 import com.kloudtek.util.StringUtils;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 
 /**
  * Created by yannick on 17/2/16.
@@ -31,4 +38,71 @@ public class RESTRequestSignerTest {
         byte[] rsig = CryptoUtils.sign(hmacKey, responseSigner.getDataToSign());
         assertEquals(rsig, StringUtils.base64Decode("f2yV/Zi8U/Boi9Ui0A5r3/FIYhyG5xv5PrfW9hDIMLA="));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDigestedContentIsSigned() throws Exception {
+        byte[] digest = CryptoUtils.digest("hello world".getBytes(), DigestAlgorithm.SHA256);
+        RESTRequestSigner requestSigner = new RESTRequestSigner("POST", "/some/api", NONCE, "2016-03-30T23:54:46", "somekeyid");
+        requestSigner.setContent(digest);
+        byte[] raw = requestSigner.getDataToSign();
+        requestSigner.setDigestedContent(true);
+        byte[] digested = requestSigner.getDataToSign();
+        assertFalse(Arrays.equals(digested, raw));
+        assertEquals(digested[0], 0);
+        // the method is trimmed, so data for raw content can't start with the digested content prefix
+        requestSigner.setDigestedContent(false);
+        requestSigner.setMethod("\u0000DIGEST\nPOST");
+        assertFalse(requestSigner.getDataToSign()[0] == 0);
+        RESTResponseSigner responseSigner = new RESTResponseSigner(NONCE, "c2ln", 200, digest);
+        raw = responseSigner.getDataToSign();
+        responseSigner.setDigestedContent(true);
+        digested = responseSigner.getDataToSign();
+        assertFalse(Arrays.equals(digested, raw));
+        assertEquals(digested[0], 0);
+    }
+
+    @Test
+    public void testEncoderMatchesLegacyFormat() throws Exception {
+        String[][] requests = {
+                {"get", " /some/api?a=b ", NONCE, " 2016-03-30t23:54:46 ", "somekeyid"},
+                {"P\u00f6st", "/\u00e9t\u00e9", "n\u00f6nce", "2016-03-30T23:54:46\u00df", "\ud83d\ude00user"},
+        };
+        for (String[] r : requests) {
+            byte[] expected = legacyRequestData(r[0], r[1], r[2], r[3], r[4], "hello world".getBytes());
+            assertEquals(SigningDataEncoder.encodeRequest(r[0], r[1], r[2], r[3], r[4], false, "hello world".getBytes()), expected);
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+            SigningDataEncoder.encodeRequest(buffer, r[0], r[1], r[2], r[3], r[4], false, "hello world".getBytes());
+            assertEquals(buffer.array(), expected);
+            Digest digest = CryptoUtils.getEngine().digest(DigestAlgorithm.SHA256);
+            SigningDataEncoder.encodeRequest(digest, r[0], r[1], r[2], r[3], r[4], false, "hello world".getBytes());
+            assertEquals(digest.digest(), CryptoUtils.digest(expected, DigestAlgorithm.SHA256));
+        }
+        for (int status : new int[]{0, 7, 200, 404, -1, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            for (boolean exclude : new boolean[]{true, false}) {
+                assertEquals(SigningDataEncoder.encodeResponse(" " + NONCE, "sig\u00e9 ", status, exclude, false, "success".getBytes()),
+                        legacyResponseData(" " + NONCE, "sig\u00e9 ", status, exclude, "success".getBytes()));
+                assertEquals(SigningDataEncoder.encodeResponse(NONCE, "c2ln", status, exclude, false, null),
+                        legacyResponseData(NONCE, "c2ln", status, exclude, null));
+            }
+        }
+    }
+
+    private static byte[] legacyRequestData(String method, String uri, String nonce, String timestamp, String identity, byte[] content) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.write(StringUtils.utf8(method.toUpperCase().trim() + '\n' + uri.trim() + '\n' + nonce + '\n' + timestamp.trim().toUpperCase() + '\n' + identity + '\n'));
+        if (content != null) {
+            buf.write(content);
+        }
+        return buf.toByteArray();
+    }
+
+    private static byte[] legacyResponseData(String nonce, String requestSignature, int statusCode, boolean excludeContent, byte[] content) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        String str = nonce.trim() + "\n" + requestSignature.trim() + "\n" + Integer.toString(statusCode) + "\n" + (excludeContent ? "y" : "n") + "\n";
+        buf.write(str.getBytes("UTF-8"));
+        if (content != null && !excludeContent) {
+            buf.write(content);
+        }
+        return buf.toByteArray();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.kryptotek.CryptoEngine;
+import com.kloudtek.kryptotek.CryptoUtils;
+import com.kloudtek.kryptotek.key.DHKeyPair;
+import com.kloudtek.kryptotek.key.HMACKey;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class SessionHandshakeTest {
+    @Test
+    public void testKeyAgreement() throws Exception {
+        CryptoEngine cryptoEngine = CryptoUtils.getEngine();
+        DHKeyPair client = SessionHandshake.generateKeyPair(cryptoEngine);
+        DHKeyPair server = SessionHandshake.generateKeyPair(cryptoEngine);
+        byte[] encoded = SessionHandshake.encodeResponse("abc", 60000L, SessionHandshake.encodePublicKey(server));
+        SessionHandshake.Response response = SessionHandshake.decodeResponse(encoded);
+        assertEquals(response.getSessionId(), "abc");
+        assertEquals(response.getTtl(), 60000L);
+        HMACKey clientKey = SessionHandshake.deriveKey(cryptoEngine, client.getPrivateKey(), response.getPublicKey());
+        HMACKey serverKey = SessionHandshake.deriveKey(cryptoEngine, server.getPrivateKey(), SessionHandshake.encodePublicKey(client));
+        byte[] data = "data".getBytes("UTF-8");
+        byte[] signature = cryptoEngine.sign(clientKey, SessionHandshake.KEY_ALGORITHM, data);
+        cryptoEngine.verifySignature(serverKey, SessionHandshake.KEY_ALGORITHM, data, signature);
+    }
+}
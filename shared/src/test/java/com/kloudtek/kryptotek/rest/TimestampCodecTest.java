@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017 Kloudtek Ltd
+ */
+
+package com.kloudtek.kryptotek.rest;
+
+import com.kloudtek.util.TimeUtils;
+import org.testng.annotations.Test;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class TimestampCodecTest {
+    @Test
+    public void testSameAsTimeUtils() throws ParseException {
+        Random random = new Random(42);
+        long[] times = {0L, -1L, 999L, 1000L, 951782400000L, 951868800000L, 4107542399000L, -11676096000000L, 253402300799999L};
+        for (long time : times) {
+            check(time);
+        }
+        for (int i = 0; i < 10000; i++) {
+            check((long) (random.nextDouble() * 5000000000000L) - 1000000000000L);
+        }
+    }
+
+    @Test
+    public void testParseLenientFormats() throws ParseException {
+        String[] timestamps = {"2017-06-25T10:11:12Z", "2017-06-25T10:11:12.123Z", "2017-06-25T10:11:123", "2017-6-25T10:11:12",
+                "2017-02-30T10:11:12", "1500-06-25T10:11:12", "2017-06-25T24:00:00"};
+        for (String timestamp : timestamps) {
+            assertEquals(TimestampCodec.parse(timestamp), TimeUtils.parseISOUTCDateTime(timestamp).getTime(), timestamp);
+        }
+    }
+
+    @Test(expectedExceptions = ParseException.class)
+    public void testParseInvalid() throws ParseException {
+        TimestampCodec.parse("yesterday");
+    }
+
+    @Test
+    public void testFormatCached() {
+        String formatted = TimestampCodec.formatCached(1498385472000L);
+        assertEquals(formatted, "2017-06-25T10:11:12");
+        assertSame(TimestampCodec.formatCached(1498385472999L), formatted);
+        assertEquals(TimestampCodec.formatCached(1498385473000L), "2017-06-25T10:11:13");
+    }
+
+    private static void check(long time) throws ParseException {
+        String expected = TimeUtils.formatISOUTCDateTime(new Date(time));
+        assertEquals(TimestampCodec.format(time), expected, Long.toString(time));
+        assertEquals(TimestampCodec.parse(expected), TimeUtils.parseISOUTCDateTime(expected).getTime(), expected);
+    }
+}